@@ -0,0 +1,90 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import scout.AppState;
+
+/**
+ * Flight Recorder implementation of {@link PersistenceEvents}, loaded by name if the JDK has Flight Recorder.
+ */
+final class JfrPersistenceEvents implements PersistenceEvents.Factory {
+
+    @Name("plugin.PersistenceOperation")
+    @Label("Persistence Operation")
+    @Category("Multi-User Plugin")
+    @Description("Loading, copying, merging or saving a state model")
+    @StackTrace(false)
+    static final class OperationEvent extends jdk.jfr.Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Product")
+        String product;
+
+        @Label("States")
+        long states;
+
+        @Label("Widgets")
+        long widgets;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    private static final class Operation implements PersistenceEvents.Event {
+        private final OperationEvent event;
+        private AppState model = null;
+
+        Operation(OperationEvent event) {
+            this.event = event;
+        }
+
+        @Override
+        public PersistenceEvents.Event model(AppState state) {
+            model = state;
+            return this;
+        }
+
+        @Override
+        public PersistenceEvents.Event bytes(long bytes) {
+            event.bytes = bytes;
+            return this;
+        }
+
+        @Override
+        public void commit() {
+            event.end();
+            if (!event.shouldCommit()) {
+                return;
+            }
+            if (model != null) {
+                StateTraversal.forEachState(model, state -> {
+                    event.states++;
+                    event.widgets += state.getAllWidgets().size();
+                });
+            }
+            event.commit();
+        }
+    }
+
+    @Override
+    public PersistenceEvents.Event begin(String operation, String product) {
+        OperationEvent event = new OperationEvent();
+        if (!event.isEnabled()) {
+            return PersistenceEvents.NOOP;
+        }
+        event.operation = operation;
+        event.product = product;
+        event.begin();
+        return new Operation(event);
+    }
+}
@@ -0,0 +1,103 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+public class JfrPersistenceEventsTest {
+
+    private static final String EVENT = "plugin.PersistenceOperation";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testNotRecording() {
+        assertTrue(PersistenceEvents.isAvailable());
+        assertSame(PersistenceEvents.NOOP, PersistenceEvents.begin(PersistenceEvents.SAVE, "product"));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File productFolder = folder.newFolder("jfr-product");
+        String filePath = new File(productFolder, "shared-state.json").getPath();
+        MultiUser multiUser = new MultiUser(true);
+        AppState home = createModel();
+
+        Path dump = folder.getRoot().toPath().resolve("recording.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(EVENT).withThreshold(Duration.ZERO);
+            recording.start();
+            assertTrue(multiUser.saveStateModel(filePath, home, 1623332401000L));
+            multiUser.loadStateModel(filePath);
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        Map<String, RecordedEvent> events = new HashMap<>();
+        List<RecordedEvent> recorded = RecordingFile.readAllEvents(dump);
+        for (RecordedEvent event : recorded) {
+            if (event.getEventType().getName().equals(EVENT)) {
+                events.put(event.getString("operation"), event);
+            }
+        }
+
+        RecordedEvent save = events.get(PersistenceEvents.SAVE);
+        assertEquals("jfr-product", save.getString("product"));
+        assertEquals(2, save.getLong("states"));
+        assertEquals(3, save.getLong("widgets"));
+        assertEquals(new File(filePath).length(), save.getLong("bytes"));
+
+        RecordedEvent load = events.get(PersistenceEvents.LOAD);
+        assertEquals(3, load.getLong("widgets"));
+        assertEquals(new File(filePath).length(), load.getLong("bytes"));
+        assertEquals(2, events.get(PersistenceEvents.PARSE).getLong("states"));
+    }
+
+    /**
+     * @return home with the widgets w1 and w2, w2 leads to a state with the widget w3
+     */
+    private AppState createModel() {
+        AppState home = new AppState("0", "Home");
+        AppState next = new AppState("1", "Next");
+        next.addWidget(createWidget("w3", null));
+        home.addWidget(createWidget("w1", null));
+        home.addWidget(createWidget("w2", next));
+        return home;
+    }
+
+    private Widget createWidget(String id, AppState nextState) {
+        Widget widget = new Widget();
+        widget.setId(id);
+        widget.setWidgetType(WidgetType.ACTION);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.putMetadata("xpath", "/html[1]/body[1]/a[" + id + "]");
+        widget.setNextState(nextState);
+        return widget;
+    }
+}
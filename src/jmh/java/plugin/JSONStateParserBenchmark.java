@@ -0,0 +1,97 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scout.AppState;
+
+/**
+ * Round-trips between Scout objects and the JSON file format.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JSONStateParserBenchmark {
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Benchmark
+    public String serialize(SyntheticModel model) {
+        return JSONStateParser.appStateAsJSONObject(model.sharedState).toJSONString();
+    }
+
+    @Benchmark
+    public void serializeStreaming(SyntheticModel model) throws Exception {
+        JSONStateWriter.writeAppState(model.sharedState, DISCARD);
+    }
+
+    @Benchmark
+    public void serializeParallel(SyntheticModel model) throws Exception {
+        JSONStateWriter.writeAppState(model.sharedState, 1623332401000L, DISCARD, true);
+    }
+
+    @Benchmark
+    public AppState parse(SyntheticModel model) throws Exception {
+        JSONObject json = (JSONObject) new JSONParser().parse(model.sharedJSON);
+        return JSONStateParser.parseCompleteAppState(json);
+    }
+
+    @Benchmark
+    public AppState parseFile(SyntheticModel model) throws Exception {
+        try (Reader reader = new BufferedReader(new FileReader(model.sharedModelFilePath))) {
+            JSONObject json = (JSONObject) new JSONParser().parse(reader);
+            return JSONStateParser.parseCompleteAppState(json);
+        }
+    }
+
+    @Benchmark
+    public AppState parseFileStreaming(SyntheticModel model) throws Exception {
+        try (Reader reader = new BufferedReader(new FileReader(model.sharedModelFilePath))) {
+            return JSONStateReader.readCompleteAppState(reader);
+        }
+    }
+
+    @Benchmark
+    public AppState parseFileStreamingV2(SyntheticModel model) throws Exception {
+        try (Reader reader = new BufferedReader(new FileReader(model.sharedModelV2FilePath))) {
+            return JSONStateReader.readCompleteAppState(reader);
+        }
+    }
+
+    @Benchmark
+    public void serializeStreamingV2(SyntheticModel model) throws Exception {
+        JSONStateWriter.writeAppState(model.sharedState, 1623332401000L, DISCARD, false, JSONStateParser.FORMAT_V2);
+    }
+
+    @Benchmark
+    public AppState parseCompleteAppState(SyntheticModel model) {
+        return JSONStateParser.parseCompleteAppState(model.sharedJSONObject);
+    }
+}
@@ -0,0 +1,117 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scout.AppState;
+
+/**
+ * Copy, diff and merge steps of the multi-user plugin.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultiUserBenchmark {
+
+    @Benchmark
+    public AppState deepCopy(SyntheticModel model) {
+        return model.multiUser.deepCopy(model.sharedState);
+    }
+
+    /**
+     * The former implementation of {@link MultiUser#deepCopy(AppState)}, as baseline for the cloner.
+     */
+    @Benchmark
+    public AppState deepCopySerialization(SyntheticModel model) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(model.sharedState);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+            return (AppState) in.readObject();
+        }
+    }
+
+    @Benchmark
+    public AppState annotateDiffsInStates(SyntheticModel model) {
+        model.multiUser.annotateDiffsInStates(model.sharedState, model.sessionState);
+        return model.sessionState;
+    }
+
+    @Benchmark
+    public AppState mergeStateChanges(SyntheticModel model) {
+        model.multiUser.annotateDiffsInStates(model.sharedState, model.sessionState);
+        return model.multiUser.mergeStateChanges(model.sharedState, model.sessionState);
+    }
+
+    /**
+     * The merge without splitting the tree, as baseline for the parallel merge. The scaling of the
+     * parallel merge can be measured with larger models and the size of the common pool, e.g.
+     * {@code -p depth=6 -jvmArgs -Djava.util.concurrent.ForkJoinPool.common.parallelism=4}.
+     */
+    @Benchmark
+    public AppState mergeStateChangesSequential(SyntheticModel model) {
+        model.sequentialMultiUser.annotateDiffsInStates(model.sharedState, model.sessionState);
+        return model.sequentialMultiUser.mergeStateChanges(model.sharedState, model.sessionState);
+    }
+
+    /**
+     * Same steps as {@link MultiUser#saveState()}: annotate the session, load the shared model with the
+     * streaming reader, merge, and write the shared and the session model. The peak heap footprint
+     * is reported with {@code -prof plugin.PeakHeapProfiler}, the allocations per save with {@code -prof gc}.
+     */
+    @Benchmark
+    public AppState saveState(SyntheticModel model) {
+        MultiUser multiUser = model.multiUser;
+        multiUser.annotateDiffsInStates(model.sharedState, model.sessionState);
+
+        AppState currentSharedState = multiUser.loadStateModel(model.sharedModelFilePath);
+        AppState merged = multiUser.mergeStateChanges(currentSharedState, model.sessionState);
+
+        multiUser.saveStateModel(new File(model.folder, "merged-state.json").getPath(), merged);
+        multiUser.saveStateModel(new File(model.folder, "session-state.json").getPath(), model.sessionState);
+        return merged;
+    }
+
+    /**
+     * {@link #saveState(SyntheticModel)} with the former loading of the shared model, which parses the
+     * whole file into JSON objects first, as baseline for the streaming reader.
+     */
+    @Benchmark
+    public AppState saveStateDom(SyntheticModel model) throws Exception {
+        MultiUser multiUser = model.multiUser;
+        multiUser.annotateDiffsInStates(model.sharedState, model.sessionState);
+
+        JSONObject jsonSharedModel;
+        try (FileReader reader = new FileReader(model.sharedModelFilePath)) {
+            jsonSharedModel = (JSONObject) new JSONParser().parse(reader);
+        }
+        AppState currentSharedState = JSONStateParser.parseCompleteAppState(jsonSharedModel);
+        AppState merged = multiUser.mergeStateChanges(currentSharedState, model.sessionState);
+
+        multiUser.saveStateModel(new File(model.folder, "merged-state.json").getPath(), merged);
+        multiUser.saveStateModel(new File(model.folder, "session-state.json").getPath(), model.sessionState);
+        return merged;
+    }
+}
@@ -0,0 +1,95 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import scout.AppState;
+
+/**
+ * Benchmark state holding a generated shared model and a session model derived from it.
+ * The shape of the model is controlled with JMH parameters, e.g. {@code -p depth=6 -p widgetsPerState=40}.
+ */
+@State(Scope.Benchmark)
+public class SyntheticModel {
+
+    @Param({ "3", "5" })
+    public int depth;
+
+    @Param({ "4" })
+    public int fanOut;
+
+    @Param({ "20" })
+    public int widgetsPerState;
+
+    @Param({ "5" })
+    public int metadataSize;
+
+    @Param({ "0.05" })
+    public double issueRatio;
+
+    @Param({ "0.1" })
+    public double changeRatio;
+
+    public final MultiUser multiUser = new MultiUser(true);
+    public final MultiUser sequentialMultiUser = new MultiUser(true) {
+        @Override
+        protected boolean isParallelMergeEnabled() {
+            return false;
+        }
+    };
+
+    public AppState sharedState;
+    public AppState sessionState;
+    public String sharedJSON;
+    public JSONObject sharedJSONObject;
+
+    public File folder;
+    public String sharedModelFilePath;
+    public String sharedModelV2FilePath;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        AppStateGenerator generator = new AppStateGenerator(depth, fanOut, widgetsPerState, metadataSize, issueRatio, 42L);
+        sharedState = generator.generate();
+        sessionState = generator.mutate(multiUser.deepCopy(sharedState), changeRatio, changeRatio);
+
+        sharedJSON = JSONStateParser.appStateAsJSONObject(sharedState).toJSONString();
+        sharedJSONObject = (JSONObject) new JSONParser().parse(sharedJSON);
+
+        folder = Files.createTempDirectory("multi-user-bench").toFile();
+        sharedModelFilePath = new File(folder, "shared-state.json").getPath();
+        try (FileWriter writer = new FileWriter(sharedModelFilePath)) {
+            writer.write(sharedJSON);
+        }
+        sharedModelV2FilePath = new File(folder, "shared-state-v2.json").getPath();
+        try (FileWriter writer = new FileWriter(sharedModelV2FilePath)) {
+            JSONStateWriter.writeAppState(sharedState, 0L, writer, false, JSONStateParser.FORMAT_V2);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        Files.deleteIfExists(folder.toPath());
+    }
+}
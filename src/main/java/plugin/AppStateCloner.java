@@ -0,0 +1,247 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import scout.AppState;
+import scout.Path;
+import scout.PathStep;
+import scout.Widget;
+
+/**
+ * Structural deep copy of a Scout state graph.
+ * <p>
+ * Every state, widget and path of the original is copied exactly once, so
+ * widgets leading to the same state, widgets referenced as "matching_widget"
+ * and the widgets of path steps point to the same copies as in the original.
+ * Metadata values are copied if they are widgets, states, maps, lists or dates;
+ * all other values (strings, numbers, enums) are immutable and shared.
+ * <p>
+ * Like the copy constructor of {@link Widget}, the copy of a widget gets a
+ * new timestamp, as Scout does not allow to set it.
+ */
+public class AppStateCloner {
+
+    private final Map<AppState, AppState> states = new IdentityHashMap<>();
+    private final Map<Widget, Widget> widgets = new IdentityHashMap<>();
+    private final Map<Path, Path> paths = new IdentityHashMap<>();
+    // Originals of states which have been copied without their content yet
+    private final Deque<AppState> pendingStates = new ArrayDeque<>();
+    private boolean copyingStates = false;
+
+    /**
+     * @return a copy of the state and of all states and widgets reachable from it
+     */
+    public static AppState copy(AppState original) {
+        return new AppStateCloner().copyState(original);
+    }
+
+    /**
+     * @return a copy of the widget and of all states and widgets reachable from it
+     */
+    public static Widget copy(Widget original) {
+        return new AppStateCloner().copyWidget(original);
+    }
+
+    public AppState copyState(AppState original) {
+        if (original == null) {
+            return null;
+        }
+        AppState copy = states.get(original);
+        if (copy != null) {
+            return copy;
+        }
+
+        copy = new AppState(original.getId(), original.getBookmark());
+        states.put(original, copy);
+        pendingStates.add(original);
+        copyPendingStates();
+        return copy;
+    }
+
+    /**
+     * Fill the copies of the pending states one after the other, instead of recursively
+     * from the widgets leading to them, so long navigation chains do not overflow the call stack.
+     */
+    private void copyPendingStates() {
+        if (copyingStates) {
+            return;
+        }
+        copyingStates = true;
+        try {
+            while (!pendingStates.isEmpty()) {
+                AppState original = pendingStates.poll();
+                fillState(original, states.get(original));
+            }
+        } finally {
+            copyingStates = false;
+        }
+    }
+
+    private void fillState(AppState original, AppState copy) {
+        copy.setIteration(original.getIteration());
+        for (String productVersion : original.getProductVersions()) {
+            copy.addProductVersion(productVersion);
+        }
+        for (String key : original.getMetadataKeys()) {
+            copy.putMetadata(key, copyValue(original.getMetadata(key)));
+        }
+
+        List<Path> pathCopies = new ArrayList<>(original.getPaths().size());
+        for (Path path : original.getPaths()) {
+            pathCopies.add(copyPath(path));
+        }
+        copy.setPaths(pathCopies);
+
+        for (Widget widget : original.getAllWidgets()) {
+            Widget widgetCopy = copyWidget(widget);
+            copy.addWidget(widgetCopy, widgetCopy.getWidgetVisibility(), widgetCopy.getCreatedByPlugin());
+        }
+    }
+
+    public Widget copyWidget(Widget original) {
+        if (original == null) {
+            return null;
+        }
+        Widget copy = widgets.get(original);
+        if (copy != null) {
+            return copy;
+        }
+
+        copy = new Widget();
+        widgets.put(original, copy);
+        copyProperties(original, copy);
+        copy.setNextState(copyState(original.getNextState()));
+        return copy;
+    }
+
+    /**
+     * @return a copy of the widget alone, which leads to the given state instead of a copy of its next state
+     */
+    public static Widget copyLeadingTo(Widget original, AppState nextState) {
+        Widget copy = new Widget();
+        new AppStateCloner().copyProperties(original, copy);
+        copy.setNextState(nextState);
+        return copy;
+    }
+
+    private void copyProperties(Widget original, Widget copy) {
+        // Action
+        copy.setId(original.getId());
+        copy.setDeltaTime(original.getDeltaTime());
+        copy.setTimesManual(original.getTimesManual());
+        copy.setTimesAuto((int) original.getTimesAuto());
+        copy.setTimesAutoFailed(original.getTimesAutoFailed());
+        copy.setWeight(original.getWeight());
+        copy.setComment(original.getComment());
+        copy.setCreatedByPlugin(original.getCreatedByPlugin());
+        copy.setToolbarAction(original.isToolbarAction());
+        copy.setInvalidMetadata(original.getInvalidMetadata() == null ? null : new ArrayList<>(original.getInvalidMetadata()));
+        for (String key : original.getMetadataKeys()) {
+            copy.putMetadata(key, copyValue(original.getMetadata(key)));
+            // The list of ignored keys is not readable, only the keys in use can be taken over
+            if (original.isIgnoredMetadata(key)) {
+                copy.addIgnoredMetadata(key);
+            }
+        }
+
+        // MoveAction
+        copy.setImagePath(original.getImagePath());
+        copy.setDeltaX(original.getDeltaX());
+        copy.setDeltaY(original.getDeltaY());
+        copy.setLocation(original.getLocation() == null ? null : new Point(original.getLocation()));
+        copy.setLocationArea(original.getLocationArea() == null ? null : new Rectangle(original.getLocationArea()));
+
+        // Widget
+        copy.setWidgetType(original.getWidgetType());
+        copy.setWidgetSubtype(original.getWidgetSubtype());
+        copy.setWidgetStatus(original.getWidgetStatus());
+        copy.setWidgetVisibility(original.getWidgetVisibility());
+        copy.setPriority(original.getPriority());
+        copy.setCreatedDate(copyDate(original.getCreatedDate()));
+        copy.setResolvedDate(copyDate(original.getResolvedDate()));
+        copy.setReportedDate(copyDate(original.getReportedDate()));
+        copy.setCreatedBy(original.getCreatedBy());
+        copy.setResolvedBy(original.getResolvedBy());
+        copy.setReportedBy(original.getReportedBy());
+        copy.setCreatedProductVersion(original.getCreatedProductVersion());
+        copy.setResolvedProductVersion(original.getResolvedProductVersion());
+        copy.setReportedProductVersion(original.getReportedProductVersion());
+        copy.setValidExpression(original.getValidExpression());
+        copy.setText(original.getText());
+        copy.setReportedText(original.getReportedText());
+        copy.setResolvedText(original.getResolvedText());
+        copy.setSteps(original.getSteps());
+    }
+
+    public Path copyPath(Path original) {
+        if (original == null) {
+            return null;
+        }
+        Path copy = paths.get(original);
+        if (copy != null) {
+            return copy;
+        }
+
+        copy = new Path(original.getId());
+        paths.put(original, copy);
+
+        copy.setSessionId(original.getSessionId());
+        copy.setProductVersion(original.getProductVersion());
+        copy.setTester(original.getTester());
+        copy.setSessionLog(original.getSessionLog());
+        copy.setCreatedDate(copyDate(original.getCreatedDate()));
+        copy.setSessionDuration(original.getSessionDuration());
+        for (PathStep step : original.getPathSteps()) {
+            copy.addPathStep(new PathStep(copyWidget(step.getAction())));
+        }
+        return copy;
+    }
+
+    private Object copyValue(Object value) {
+        if (value instanceof Widget) {
+            return copyWidget((Widget) value);
+        }
+        if (value instanceof AppState) {
+            return copyState((AppState) value);
+        }
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            Map<Object, Object> copy = new HashMap<>(Math.max(16, (int) (map.size() / .75f) + 1));
+            map.forEach((k, v) -> copy.put(k, copyValue(v)));
+            return copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>(((List<?>) value).size());
+            ((Collection<?>) value).forEach(v -> copy.add(copyValue(v)));
+            return copy;
+        }
+        if (value instanceof Date) {
+            return copyDate((Date) value);
+        }
+        if (value instanceof Point) {
+            return new Point((Point) value);
+        }
+        if (value instanceof Rectangle) {
+            return new Rectangle((Rectangle) value);
+        }
+        return value;
+    }
+
+    private static Date copyDate(Date date) {
+        return date == null ? null : new Date(date.getTime());
+    }
+}
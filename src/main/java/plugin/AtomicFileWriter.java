@@ -0,0 +1,164 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.SecureRandom;
+
+/**
+ * Writes files so that they either have the old or the new content, even if the process crashes.
+ * <p>
+ * The content is written to a temporary file in the same folder, which then replaces the target file
+ * with an atomic move. Optionally the previous content is kept as backup, the last known good file.
+ */
+public final class AtomicFileWriter {
+
+    /**
+     * How much is flushed to the storage device before a write returns.
+     */
+    public enum SyncMode {
+        /** Leave it to the operating system, fastest */
+        NONE,
+        /** Sync the content of the file before it replaces the target */
+        FILE,
+        /** Sync the content of the file and the folder after the move, so the move itself survives a power loss */
+        ALL;
+
+        public static SyncMode parse(String value, SyncMode defaultValue) {
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (Exception e) {
+                return defaultValue;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static final String BACKUP_SUFFIX = ".bak";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private AtomicFileWriter() {
+    }
+
+    /**
+     * @return path of the backup kept for the given file
+     */
+    public static Path backupOf(Path target) {
+        return target.resolveSibling(target.getFileName() + BACKUP_SUFFIX);
+    }
+
+    /**
+     * Write a file atomically. If the content cannot be written, the target file is not changed.
+     *
+     * @param target     file to write
+     * @param content    writes the content of the file
+     * @param syncMode   what to flush to the storage device
+     * @param keepBackup true to keep the previous content of the target file as backup
+     */
+    public static void write(Path target, Content content, SyncMode syncMode, boolean keepBackup) throws IOException {
+        Path folder = target.toAbsolutePath().getParent();
+        Path temp = createTempFile(folder, target);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                OutputStream out = Channels.newOutputStream(channel);
+                content.writeTo(out);
+                out.flush();
+                if (syncMode != SyncMode.NONE) {
+                    channel.force(true);
+                }
+            }
+
+            if (keepBackup && Files.exists(target)) {
+                keepBackup(target);
+            }
+            move(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        if (syncMode == SyncMode.ALL) {
+            syncFolder(folder);
+        }
+    }
+
+    /**
+     * Create the temporary file for the target. Unlike {@link Files#createTempFile}, which restricts it
+     * to the owner, the file gets the permissions of the existing target or the defaults of the process
+     * (umask), so other testers can still read a shared file after it has been replaced.
+     */
+    private static Path createTempFile(Path folder, Path target) throws IOException {
+        String prefix = target.getFileName().toString();
+        while (true) {
+            Path temp = folder.resolve(prefix + Long.toUnsignedString(RANDOM.nextLong()) + TEMP_SUFFIX);
+            try {
+                Files.newByteChannel(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            try {
+                copyPermissions(target, temp);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            return temp;
+        }
+    }
+
+    private static void copyPermissions(Path source, Path target) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+        if (view == null || !Files.exists(source)) {
+            // No POSIX permissions on this file system or nothing to copy from
+            return;
+        }
+        Files.setPosixFilePermissions(target, view.readAttributes().permissions());
+    }
+
+    /**
+     * Keep the current content of the target as backup. The target stays in place, so it is
+     * never missing, even if the process crashes now.
+     */
+    private static void keepBackup(Path target) throws IOException {
+        Path backup = backupOf(target);
+        Files.deleteIfExists(backup);
+        try {
+            Files.createLink(backup, target);
+        } catch (UnsupportedOperationException | IOException e) {
+            // No hard links on this file system
+            Files.copy(target, backup, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void syncFolder(Path folder) {
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Folders cannot be synced on all platforms, e.g. Windows
+        }
+    }
+}
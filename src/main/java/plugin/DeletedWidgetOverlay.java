@@ -0,0 +1,126 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
+
+import scout.AppState;
+import scout.Widget;
+
+/**
+ * Highlights the widgets of the current state which are marked as deleted.
+ * <p>
+ * The areas of the deleted widgets are collected once per state and drawn into a transparent
+ * image the size of the capture, so a repaint only draws that image. The areas are collected again
+ * when another state is painted or the number of widgets of the state changes; other changes of the
+ * widgets, like marking a widget as deleted, require {@link #invalidate()}.
+ */
+public class DeletedWidgetOverlay {
+
+    private static final BasicStroke STROKE = new BasicStroke(3);
+    private static final Color COLOR = Color.red;
+
+    private final Predicate<Widget> isDeleted;
+    private final IntUnaryOperator scaleX;
+    private final IntUnaryOperator scaleY;
+
+    // State and number of its widgets the areas were collected of
+    private AppState state = null;
+    private int widgetCount = -1;
+    private List<Rectangle> deletedAreas = Collections.emptyList();
+    // Cleared without locking, as widgets are marked as deleted by parallel merges
+    private volatile boolean valid = false;
+
+    private BufferedImage image = null;
+
+    /**
+     * @param isDeleted true for widgets marked as deleted
+     * @param scaleX    scales x coordinates of the state model to the capture
+     * @param scaleY    scales y coordinates of the state model to the capture
+     */
+    public DeletedWidgetOverlay(Predicate<Widget> isDeleted, IntUnaryOperator scaleX, IntUnaryOperator scaleY) {
+        this.isDeleted = isDeleted;
+        this.scaleX = scaleX;
+        this.scaleY = scaleY;
+    }
+
+    /**
+     * Collect the areas again on the next paint.
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Draw the deleted widgets of the state.
+     *
+     * @param width  width of the capture
+     * @param height height of the capture
+     */
+    public synchronized void paint(Graphics2D g2, AppState state, int width, int height) {
+        if (state == null || width <= 0 || height <= 0) {
+            return;
+        }
+        if (getDeletedAreas(state).isEmpty()) {
+            return;
+        }
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            image = render(width, height);
+        }
+        g2.drawImage(image, 0, 0, null);
+    }
+
+    /**
+     * @return the areas of the visible widgets of the state which are marked as deleted
+     */
+    public synchronized List<Rectangle> getDeletedAreas(AppState state) {
+        int count = state.getAllWidgets().size();
+        if (!valid || state != this.state || count != widgetCount) {
+            valid = true;
+            List<Rectangle> areas = new ArrayList<>();
+            for (Widget widget : state.getVisibleWidgets()) {
+                Rectangle rect = widget.getLocationArea();
+                if (rect != null && isDeleted.test(widget)) {
+                    areas.add(new Rectangle(rect));
+                }
+            }
+            this.state = state;
+            widgetCount = count;
+            deletedAreas = Collections.unmodifiableList(areas);
+            image = null;
+        }
+        return deletedAreas;
+    }
+
+    private BufferedImage render(int width, int height) {
+        BufferedImage overlay = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = overlay.createGraphics();
+        try {
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+            g2.setStroke(STROKE);
+            g2.setColor(COLOR);
+            for (Rectangle rect : deletedAreas) {
+                int x = scaleX.applyAsInt((int) rect.getX() + 1);
+                int y = scaleY.applyAsInt((int) rect.getY() + 1);
+                int w = scaleX.applyAsInt((int) rect.getWidth() - 2);
+                int h = scaleY.applyAsInt((int) rect.getHeight() - 2);
+                g2.drawRect(x, y, w, h);
+            }
+        } finally {
+            g2.dispose();
+        }
+        return overlay;
+    }
+}
@@ -4,15 +4,19 @@
 
 package plugin;
 
-import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.json.simple.JSONArray;
@@ -27,7 +31,25 @@ import scout.Widget.WidgetVisibility;
 
 public class JSONStateParser {
 
-    private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * Format of {@link #appStateAsJSONObject(AppState)}, the only format without "format-version".
+     */
+    public static final int FORMAT_V1 = 1;
+    /**
+     * Format with a "strings" table, string values of widgets may be indices into the table,
+     * see {@link JSONStateWriter#writeAppState(AppState, long, java.io.Writer, boolean, int)}.
+     */
+    public static final int FORMAT_V2 = 2;
+    /**
+     * Format V2 in which states reachable from several widgets are written once, see {@link StateReferences}.
+     */
+    public static final int FORMAT_V3 = 3;
+    /**
+     * Format V3 in which the time a widget has been marked as deleted is written as number
+     * "deleted-at-ms" of the widget instead of as string in its meta-data, see {@link Tombstones}.
+     */
+    public static final int FORMAT_V4 = 4;
 
 
     // ********************************************
@@ -51,39 +73,162 @@ public class JSONStateParser {
 
         json.put("state", stateTreeAsJSONObject(state, allUsedWidgets));
 
-        List<String> issues = state.getAllIssues().stream()
+        List<String> issues = allIssuesOf(state).stream()
                 .map(w -> w.getId())
                 .collect(Collectors.toList());
         json.put("issues", issues);
 
-        List<JSONObject> allUsedWidgetsAsJSON = allUsedWidgets.values().stream()
+        List<JSONObject> allUsedWidgetsAsJSON = allWidgetsOf(allUsedWidgets.values()).stream()
                 .map(w -> widgetAsJSONObject(w))
                 .collect(Collectors.toList());
 
-        List<JSONObject> matchingWidgetsAsJSON = allUsedWidgets.values().stream()
-                .filter(w -> w.hasMetadata("matching_widget"))
-                .map(w -> (Widget) w.getMetadata("matching_widget"))
-                .map(w -> widgetAsJSONObject(w))
-                .collect(Collectors.toList());
-
-        allUsedWidgetsAsJSON.addAll(matchingWidgetsAsJSON);
         json.put("all-widgets", allUsedWidgetsAsJSON);
         return json;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * The widgets of the "all-widgets" array: the used widgets followed by their matching widgets.
+     * Matching widgets with the ID of a widget before them are left out, as only the first
+     * widget with an ID is used when the model is parsed, see {@link #indexWidgets(List)}.
+     *
+     * @param usedWidgets widgets of the state tree
+     * @return the widgets in the order they are written
+     */
+    public static List<Widget> allWidgetsOf(Collection<Widget> usedWidgets) {
+        List<Widget> widgets = new ArrayList<>(usedWidgets);
+        Set<String> ids = new HashSet<>();
+        usedWidgets.forEach(w -> ids.add(w.getId()));
+        for (Widget widget : usedWidgets) {
+            if (!widget.hasMetadata("matching_widget")) {
+                continue;
+            }
+            Widget matchingWidget = (Widget) widget.getMetadata("matching_widget");
+            if (ids.add(matchingWidget.getId())) {
+                widgets.add(matchingWidget);
+            }
+        }
+        return widgets;
+    }
+
+    /**
+     * The issues of the state and all states reachable with its visible widgets in the order of
+     * {@link AppState#getAllIssues()}, which calls itself for each following state.
+     */
+    public static List<Widget> allIssuesOf(AppState state) {
+        List<Widget> issues = new ArrayList<>();
+        StateTraversal.run(new IssuesStep(state, issues, Collections.newSetFromMap(new IdentityHashMap<>())));
+        return issues;
+    }
+
+    private static final class IssuesStep implements StateTraversal.Step {
+        private final AppState state;
+        private final List<Widget> issues;
+        private final Set<AppState> visited;
+        private List<Widget> visibleWidgets = null;
+        private int next = 0;
+
+        IssuesStep(AppState state, List<Widget> issues, Set<AppState> visited) {
+            this.state = state;
+            this.issues = issues;
+            this.visited = visited;
+        }
+
+        @Override
+        public StateTraversal.Step next() {
+            if (visibleWidgets == null) {
+                issues.addAll(state.getIssues());
+                visibleWidgets = state.getVisibleWidgets();
+            }
+            while (next < visibleWidgets.size()) {
+                AppState nextState = visibleWidgets.get(next++).getNextState();
+                if (nextState != null && !nextState.isHome() && visited.add(nextState)) {
+                    return new IssuesStep(nextState, issues, visited);
+                }
+            }
+            return null;
+        }
+    }
+
     public static JSONObject stateTreeAsJSONObject(AppState state, Map<String, Widget> allUsedWidgets) {
-        JSONObject json = new JSONObject();
-        json.put("state-id", state.getId());
-        json.put("product-version", state.getProductVersions());
-        json.put("bookmarks", state.getBookmark());
+        return stateTreeAsJSONObject(state, allUsedWidgets, null);
+    }
+
+    /**
+     * @param references states written as reference, see {@link StateReferences}, or null to write all following states inline
+     */
+    public static JSONObject stateTreeAsJSONObject(AppState state, Map<String, Widget> allUsedWidgets, StateReferences references) {
+        StateTreeStep step = new StateTreeStep(state, allUsedWidgets, references);
+        StateTraversal.run(step);
+        return step.json;
+    }
+
+    /**
+     * Builds the JSON object of a state, the following states are built by the steps it returns.
+     */
+    private static final class StateTreeStep implements StateTraversal.Step {
+        private final AppState state;
+        private final Map<String, Widget> allUsedWidgets;
+        private final StateReferences references;
+
+        private JSONObject json = null;
+        private List<Widget> visibleWidgets;
+        private List<JSONObject> jsonWidgets;
+        private int next = 0;
+        // Widget waiting for its following state
+        private JSONObject jsonWidget = null;
+        private StateTreeStep nextStateStep = null;
+
+        StateTreeStep(AppState state, Map<String, Widget> allUsedWidgets, StateReferences references) {
+            this.state = state;
+            this.allUsedWidgets = allUsedWidgets;
+            this.references = references;
+        }
 
-        List<Widget> visibleWidgets = state.getVisibleWidgets();
+        @Override
+        @SuppressWarnings("unchecked")
+        public StateTraversal.Step next() {
+            if (json == null) {
+                json = new JSONObject();
+                json.put("state-id", state.getId());
+                json.put("product-version", state.getProductVersions());
+                json.put("bookmarks", state.getBookmark());
+                visibleWidgets = state.getVisibleWidgets();
+                jsonWidgets = new ArrayList<>();
+            }
+            if (nextStateStep != null) {
+                jsonWidget.put("next-state", nextStateStep.json);
+                jsonWidgets.add(jsonWidget);
+                nextStateStep = null;
+            }
 
-        json.put("visible-widgets", visibleWidgets.stream().map(w -> stateWidgetAsSimpleJSONObject(w, allUsedWidgets)).collect(Collectors.toList()));
+            while (next < visibleWidgets.size()) {
+                int i = next++;
+                Widget widget = visibleWidgets.get(i);
+                AppState nextState = widget.getNextState();
+                JSONObject item = new JSONObject();
+                item.put("id", widget.getId());
+                if (nextState == null || nextState.isHome()) {
+                    item.put("next-state", null);
+                } else if (references != null && !references.isInline(state, i, nextState)) {
+                    references.putReference(item, nextState);
+                } else {
+                    jsonWidget = item;
+                    nextStateStep = new StateTreeStep(nextState, allUsedWidgets, references);
+                    return nextStateStep;
+                }
+                jsonWidgets.add(item);
+            }
+            json.put("visible-widgets", jsonWidgets);
 
-        visibleWidgets.forEach(w -> allUsedWidgets.put(w.getId(), w));
+            visibleWidgets.forEach(w -> allUsedWidgets.put(w.getId(), w));
 
+            json.put("meta-data", stateMetadataAsJSONObject(state));
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static JSONObject stateMetadataAsJSONObject(AppState state) {
         JSONObject jsonMetaData = new JSONObject();
         state.getMetadataKeys().stream()
                 .filter(k -> k != "multi-user-diff-widgets")
@@ -96,9 +241,7 @@ public class JSONStateParser {
             jsonMetaData.put("multi-user-diff-widgets", diffStr);
         }
 
-        json.put("meta-data", jsonMetaData);
-
-        return json;
+        return jsonMetaData;
     }
 
     @SuppressWarnings("unchecked")
@@ -181,8 +324,12 @@ public class JSONStateParser {
         return json;
     }
 
-    @SuppressWarnings("unchecked")
     public static JSONObject stateWidgetAsSimpleJSONObject(Widget widget, Map<String, Widget> allUsedWidgets) {
+        return stateWidgetAsSimpleJSONObject(widget, allUsedWidgets, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject stateWidgetAsSimpleJSONObject(Widget widget, Map<String, Widget> allUsedWidgets, StateReferences references) {
         JSONObject json = new JSONObject();
         json.put("id", widget.getId());
 
@@ -192,7 +339,7 @@ public class JSONStateParser {
             return json;
         }
 
-        json.put("next-state", stateTreeAsJSONObject(widget.getNextState(), allUsedWidgets));
+        json.put("next-state", stateTreeAsJSONObject(widget.getNextState(), allUsedWidgets, references));
 
         return json;
     }
@@ -206,75 +353,167 @@ public class JSONStateParser {
         AppState appState = null;
 
         try {
-            allWidgets = parseWidgets((JSONArray) jsonState.get("all-widgets"));
-            appState = parseState((JSONObject) jsonState.get("state"), allWidgets);
+            allWidgets = parseWidgets((JSONArray) jsonState.get("all-widgets"), parseStrings(jsonState.get("strings")));
+            appState = parseState((JSONObject) jsonState.get("state"), indexWidgets(allWidgets));
         } catch (Exception e) {
-            e.printStackTrace();
+            PluginLog.error("Unable to parse state model: " + e.getMessage(), e);
         }
 
         return appState;
     }
 
     public static AppState parseState(JSONObject jsonState, List<Widget> allWidgets) {
-        String id = (String) jsonState.get("state-id");
-        String bookmark = (String) jsonState.get("bookmarks");
-        JSONArray jsonWidgets = (JSONArray) jsonState.get("visible-widgets");
+        return parseState(jsonState, indexWidgets(allWidgets));
+    }
 
-        List<Widget> visibleWidgets = new LinkedList<>();
-        Iterator i = jsonWidgets.iterator();
-        while (i.hasNext()) {
-            JSONObject item = (JSONObject) i.next();
-            String widgetID = (String) item.get("id");
-            Widget widget = allWidgets.stream()
-                    .filter(w -> w.getId().equals(widgetID))
-                    .findFirst()
-                    .orElse(null);
-
-            JSONObject jsonMetaData = (JSONObject) item.get("meta-data");
-            if (jsonMetaData != null) {
-                String matchingWidgetId = String.valueOf(jsonMetaData.get("matching_widget"));
-                if (matchingWidgetId != null && matchingWidgetId.length() > 0) {
-                    Widget matchingWidget = allWidgets.stream()
-                            .filter(w -> w.getId().equals(matchingWidgetId))
-                            .findFirst()
-                            .orElse(null);
-                    widget.putMetadata("matching_widget", matchingWidget);
-                }
+    /**
+     * Parse a state and all following states.
+     *
+     * @param jsonState   state as JSON object
+     * @param widgetIndex all widgets of the model by widget ID, see {@link #indexWidgets(List)}
+     * @return the parsed state
+     */
+    public static AppState parseState(JSONObject jsonState, Map<String, Widget> widgetIndex) {
+        return parseState(jsonState, widgetIndex, new StateReferences.Resolver());
+    }
+
+    /**
+     * @param states states parsed before, to resolve references to them
+     */
+    private static AppState parseState(JSONObject jsonState, Map<String, Widget> widgetIndex, StateReferences.Resolver states) {
+        ParseStateStep step = new ParseStateStep(jsonState, widgetIndex, states);
+        StateTraversal.run(step);
+        return step.state;
+    }
+
+    /**
+     * Parses a state, the following states are parsed by the steps it returns.
+     */
+    private static final class ParseStateStep implements StateTraversal.Step {
+        private final JSONObject jsonState;
+        private final Map<String, Widget> widgetIndex;
+        private final StateReferences.Resolver states;
+
+        private AppState state = null;
+        private Iterator<?> items;
+        private final List<Widget> visibleWidgets = new LinkedList<>();
+        // Widget waiting for its following state
+        private Widget widget = null;
+        private ParseStateStep nextStateStep = null;
+
+        ParseStateStep(JSONObject jsonState, Map<String, Widget> widgetIndex, StateReferences.Resolver states) {
+            this.jsonState = jsonState;
+            this.widgetIndex = widgetIndex;
+            this.states = states;
+        }
+
+        @Override
+        public StateTraversal.Step next() {
+            if (state == null) {
+                String id = (String) jsonState.get("state-id");
+                String bookmark = (String) jsonState.get("bookmarks");
+                items = ((JSONArray) jsonState.get("visible-widgets")).iterator();
+
+                // Known before the following states are parsed, as they may refer to it
+                state = new AppState(id, bookmark);
+                states.add(state);
+            }
+            if (nextStateStep != null) {
+                widget.setNextState(nextStateStep.state);
+                visibleWidgets.add(widget);
+                nextStateStep = null;
             }
 
-            JSONObject nextStatJsonObject = (JSONObject) item.get("next-state");
-            if (nextStatJsonObject != null) {
-                AppState nextState = parseState(nextStatJsonObject, allWidgets);
-                widget.setNextState(nextState);
+            while (items.hasNext()) {
+                JSONObject item = (JSONObject) items.next();
+                String widgetID = (String) item.get("id");
+                widget = widgetIndex.get(widgetID);
+
+                JSONObject jsonMetaData = (JSONObject) item.get("meta-data");
+                if (jsonMetaData != null) {
+                    String matchingWidgetId = String.valueOf(jsonMetaData.get("matching_widget"));
+                    if (matchingWidgetId != null && matchingWidgetId.length() > 0) {
+                        Widget matchingWidget = widgetIndex.get(matchingWidgetId);
+                        widget.putMetadata("matching_widget", matchingWidget);
+                    }
+                }
+
+                JSONObject nextStatJsonObject = (JSONObject) item.get("next-state");
+                if (nextStatJsonObject != null) {
+                    nextStateStep = new ParseStateStep(nextStatJsonObject, widgetIndex, states);
+                    return nextStateStep;
+                } else if (item.get(StateReferences.REF) != null) {
+                    widget.setNextState(states.resolve(item.get(StateReferences.REF), item.get(StateReferences.REF_INDEX)));
+                }
+                visibleWidgets.add(widget);
             }
-            visibleWidgets.add(widget);
+
+            state.addWidgets(visibleWidgets, WidgetVisibility.VISIBLE, null);
+            return null;
         }
+    }
 
-        AppState state = new AppState(id, bookmark);
-        state.addWidgets(visibleWidgets, WidgetVisibility.VISIBLE, null);
+    /**
+     * Index widgets by their ID. If an ID occurs more than once,
+     * the first widget in the list is used.
+     *
+     * @param widgets list of widgets, e.g. from the "all-widgets" array
+     * @return map of widget ID to widget
+     */
+    public static Map<String, Widget> indexWidgets(List<Widget> widgets) {
+        Map<String, Widget> index = new HashMap<>(Math.max(16, (int) (widgets.size() / 0.75f) + 1));
+        widgets.forEach(w -> index.putIfAbsent(w.getId(), w));
+        return index;
+    }
 
-        return state;
+    /**
+     * @param jsonStrings the "strings" array of the model or null
+     * @return the string table of the model or null if the model has none
+     */
+    public static List<String> parseStrings(Object jsonStrings) {
+        if (!(jsonStrings instanceof JSONArray)) {
+            return null;
+        }
+        List<String> strings = new ArrayList<>(((JSONArray) jsonStrings).size());
+        for (Object value : (JSONArray) jsonStrings) {
+            strings.add((String) value);
+        }
+        return strings;
     }
 
     public static List<Widget> parseWidgets(JSONArray jsonWidgets) {
+        return parseWidgets(jsonWidgets, null);
+    }
+
+    /**
+     * @param strings string table of the model or null
+     */
+    public static List<Widget> parseWidgets(JSONArray jsonWidgets, List<String> strings) {
         List<Widget> widgets = new ArrayList<>();
         Iterator i = jsonWidgets.iterator();
 
         while (i.hasNext()) {
             JSONObject jsonWidget = (JSONObject) i.next();
-            Widget widget = parseWidget(jsonWidget);
+            Widget widget = parseWidget(jsonWidget, strings);
             widgets.add(widget);
         }
         return widgets;
     }
 
     public static Widget parseWidget(JSONObject jsonWidget) {
+        return parseWidget(jsonWidget, null);
+    }
+
+    /**
+     * @param strings string table of the model or null
+     */
+    public static Widget parseWidget(JSONObject jsonWidget, List<String> strings) {
         Widget widget = new Widget();
         widget.setId((String) jsonWidget.get("id"));
-        widget.setText((String) jsonWidget.get("text"));
-        widget.setCreatedBy((String) jsonWidget.get("created-by"));
-        widget.setCreatedByPlugin((String) jsonWidget.get("created-by-plugin"));
-        widget.setComment((String) jsonWidget.get("comment"));
+        widget.setText(stringValue(jsonWidget.get("text"), strings));
+        widget.setCreatedBy(stringValue(jsonWidget.get("created-by"), strings));
+        widget.setCreatedByPlugin(stringValue(jsonWidget.get("created-by-plugin"), strings));
+        widget.setComment(stringValue(jsonWidget.get("comment"), strings));
         widget.setWidgetVisibility(WidgetVisibility.valueOf((String) jsonWidget.get("visibility")));
 
         WidgetStatus status = WidgetStatus.valueOf((String) jsonWidget.get("status"));
@@ -297,8 +536,8 @@ public class JSONStateParser {
         String subType = (String) jsonWidget.get("subtype");
         widget.setWidgetSubtype(WidgetSubtype.valueOf(subType));
 
-        widget.setReportedText((String) jsonWidget.get("reported-text"));
-        widget.setReportedBy((String) jsonWidget.get("reported-by"));
+        widget.setReportedText(stringValue(jsonWidget.get("reported-text"), strings));
+        widget.setReportedBy(stringValue(jsonWidget.get("reported-by"), strings));
 
         JSONObject locRec = (JSONObject) jsonWidget.get("location");
         if (locRec != null) {
@@ -310,22 +549,39 @@ public class JSONStateParser {
         }
 
         JSONObject jsonMetadata = (JSONObject) jsonWidget.get("meta-data");
-        widget.putMetadata("type", (String) jsonMetadata.get("type"));
-        widget.putMetadata("title", (String) jsonMetadata.get("title"));
-        widget.putMetadata("xpath", (String) jsonMetadata.get("xpath"));
-        widget.putMetadata("name", (String) jsonMetadata.get("name"));
-        widget.putMetadata("href", (String) jsonMetadata.get("href"));
-        widget.putMetadata("id", (String) jsonMetadata.get("id"));
-        widget.putMetadata("text", (String) jsonMetadata.get("text"));
-        widget.putMetadata("tag", (String) jsonMetadata.get("tag"));
-        widget.putMetadata("class", (String) jsonMetadata.get("class"));
-        if(jsonMetadata.get("multi-user-merge-deleted-at") != null) {
-            widget.putMetadata("multi-user-merge-deleted-at", (String) jsonMetadata.get("multi-user-merge-deleted-at"));
+        widget.putMetadata("type", stringValue(jsonMetadata.get("type"), strings));
+        widget.putMetadata("title", stringValue(jsonMetadata.get("title"), strings));
+        widget.putMetadata("xpath", stringValue(jsonMetadata.get("xpath"), strings));
+        widget.putMetadata("name", stringValue(jsonMetadata.get("name"), strings));
+        widget.putMetadata("href", stringValue(jsonMetadata.get("href"), strings));
+        widget.putMetadata("id", stringValue(jsonMetadata.get("id"), strings));
+        widget.putMetadata("text", stringValue(jsonMetadata.get("text"), strings));
+        widget.putMetadata("tag", stringValue(jsonMetadata.get("tag"), strings));
+        widget.putMetadata("class", stringValue(jsonMetadata.get("class"), strings));
+        Long deletedAt = Tombstones.parse(jsonWidget.get("deleted-at-ms"));
+        if (deletedAt == null && jsonMetadata.get(MultiUser.DELETED_AT) != null) {
+            deletedAt = Tombstones.parse(stringValue(jsonMetadata.get(MultiUser.DELETED_AT), strings));
+        }
+        if (deletedAt != null) {
+            Tombstones.markAsDeleted(widget, deletedAt);
+        }
+        if (jsonMetadata.get(SessionDelta.KIND) != null) {
+            widget.putMetadata(SessionDelta.KIND, stringValue(jsonMetadata.get(SessionDelta.KIND), strings));
         }
 
         return widget;
     }
 
+    /**
+     * @return the string or, if the value is an index into the string table, the string of the table
+     */
+    private static String stringValue(Object value, List<String> strings) {
+        if (value instanceof Number && strings != null) {
+            return strings.get(((Number) value).intValue());
+        }
+        return (String) value;
+    }
+
     protected static Date parseDate(Object jsonMilliseconds) {
         try {
             return new Date((long) jsonMilliseconds);
@@ -335,7 +591,6 @@ public class JSONStateParser {
     }
 
     private static void log(String message) {
-        String now = df.format(new Date());
-        System.out.printf("[%s] %s \n", now, message);
+        PluginLog.info(message);
     }
 }
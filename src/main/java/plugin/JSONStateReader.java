@@ -0,0 +1,427 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetVisibility;
+
+/**
+ * Reads a state model file token by token, without building the JSON document in memory.
+ * <p>
+ * Widgets of the "all-widgets" array are parsed one by one with {@link JSONStateParser#parseWidget(JSONObject, List)}.
+ * In files with a string table, widgets read before the table are kept until the table is known.
+ * Of the "state" tree only state IDs, bookmarks and widget references are kept until all
+ * widgets are known, then the Scout states are created like {@link JSONStateParser#parseState(JSONObject, Map)} does.
+ * The meta-data of states is only read if requested, as it is written as text and other plugins may keep values of
+ * other types in it; {@link SessionDelta}s keep changed meta-data of states. All other entries of the file are skipped.
+ */
+public class JSONStateReader implements ContentHandler {
+
+    private enum FrameType {
+        ROOT, ALL_WIDGETS, STATE, VISIBLE_WIDGETS, STATE_WIDGET, VALUE, SKIP
+    }
+
+    private static class Frame {
+        final FrameType type;
+        String key;
+        Object value;
+        int depth;
+
+        Frame(FrameType type, Object value) {
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private static class StateNode {
+        String id;
+        String bookmark;
+        JSONObject metaData;
+        final List<WidgetRef> widgets = new ArrayList<>();
+    }
+
+    private static class WidgetRef {
+        String id;
+        JSONObject metaData;
+        StateNode nextState;
+        Object nextStateRef;
+        Object nextStateRefIndex;
+    }
+
+    private final boolean readStateMetadata;
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private final List<Widget> allWidgets = new ArrayList<>();
+    private final List<JSONObject> pendingWidgets = new ArrayList<>();
+    private long formatVersion = JSONStateParser.FORMAT_V1;
+    private List<String> strings = null;
+    private StateNode rootState = null;
+    private Long lastUpdatedAtMs = null;
+
+    public JSONStateReader() {
+        this(false);
+    }
+
+    /**
+     * @param readStateMetadata true to read the meta-data of states as text values,
+     *                          except the diff annotations of {@link MultiUser}
+     */
+    public JSONStateReader(boolean readStateMetadata) {
+        this.readStateMetadata = readStateMetadata;
+    }
+
+    /**
+     * Read a complete state model.
+     *
+     * @param reader reader for the JSON document
+     * @return the home state with all following states or null if the document does not contain a state
+     */
+    public static AppState readCompleteAppState(Reader reader) throws IOException, ParseException {
+        return new JSONStateReader().read(reader);
+    }
+
+    /**
+     * Read a complete state model, like {@link #readCompleteAppState(Reader)}.
+     * Afterwards the time of the last update is available with {@link #getLastUpdatedAtMs()}.
+     */
+    public AppState read(Reader reader) throws IOException, ParseException {
+        new JSONParser().parse(reader, this);
+        return getAppState();
+    }
+
+    /**
+     * @return the value of "last-updated-at-ms" of the last read document or null if not present
+     */
+    public Long getLastUpdatedAtMs() {
+        return lastUpdatedAtMs;
+    }
+
+    protected AppState getAppState() {
+        if (rootState == null) {
+            return null;
+        }
+        parsePendingWidgets();
+        return buildState(rootState, JSONStateParser.indexWidgets(allWidgets), new StateReferences.Resolver());
+    }
+
+    private AppState buildState(StateNode node, Map<String, Widget> widgetIndex, StateReferences.Resolver states) {
+        BuildStateStep step = new BuildStateStep(node, widgetIndex, states);
+        StateTraversal.run(step);
+        return step.state;
+    }
+
+    /**
+     * Creates the Scout state of a node, the following states are created by the steps it returns.
+     */
+    private static final class BuildStateStep implements StateTraversal.Step {
+        private final StateNode node;
+        private final Map<String, Widget> widgetIndex;
+        private final StateReferences.Resolver states;
+
+        private AppState state = null;
+        private int next = 0;
+        private final List<Widget> visibleWidgets = new LinkedList<>();
+        // Widget waiting for its following state
+        private Widget widget = null;
+        private BuildStateStep nextStateStep = null;
+
+        BuildStateStep(StateNode node, Map<String, Widget> widgetIndex, StateReferences.Resolver states) {
+            this.node = node;
+            this.widgetIndex = widgetIndex;
+            this.states = states;
+        }
+
+        @Override
+        public StateTraversal.Step next() {
+            if (state == null) {
+                state = new AppState(node.id, node.bookmark);
+                if (node.metaData != null) {
+                    node.metaData.forEach((key, value) -> {
+                        if (!MultiUser.META_DATA_DIFF.equals(key)) {
+                            state.putMetadata((String) key, value);
+                        }
+                    });
+                }
+                states.add(state);
+            }
+            if (nextStateStep != null) {
+                widget.setNextState(nextStateStep.state);
+                visibleWidgets.add(widget);
+                nextStateStep = null;
+            }
+
+            while (next < node.widgets.size()) {
+                WidgetRef ref = node.widgets.get(next++);
+                widget = widgetIndex.get(ref.id);
+
+                if (ref.metaData != null) {
+                    String matchingWidgetId = String.valueOf(ref.metaData.get("matching_widget"));
+                    if (matchingWidgetId != null && matchingWidgetId.length() > 0) {
+                        Widget matchingWidget = widgetIndex.get(matchingWidgetId);
+                        widget.putMetadata("matching_widget", matchingWidget);
+                    }
+                }
+
+                if (ref.nextState != null) {
+                    nextStateStep = new BuildStateStep(ref.nextState, widgetIndex, states);
+                    return nextStateStep;
+                } else if (ref.nextStateRef != null) {
+                    widget.setNextState(states.resolve(ref.nextStateRef, ref.nextStateRefIndex));
+                }
+                visibleWidgets.add(widget);
+            }
+
+            state.addWidgets(visibleWidgets, WidgetVisibility.VISIBLE, null);
+            return null;
+        }
+    }
+
+    @Override
+    public void startJSON() {
+        stack.clear();
+        allWidgets.clear();
+        pendingWidgets.clear();
+        formatVersion = JSONStateParser.FORMAT_V1;
+        strings = null;
+        rootState = null;
+        lastUpdatedAtMs = null;
+    }
+
+    @Override
+    public void endJSON() {
+    }
+
+    @Override
+    public boolean startObject() {
+        Frame top = stack.peek();
+        if (top == null) {
+            stack.push(new Frame(FrameType.ROOT, null));
+            return true;
+        }
+
+        switch (top.type) {
+            case ROOT:
+                if ("state".equals(top.key)) {
+                    rootState = new StateNode();
+                    stack.push(new Frame(FrameType.STATE, rootState));
+                } else {
+                    pushSkip();
+                }
+                break;
+            case ALL_WIDGETS:
+                stack.push(new Frame(FrameType.VALUE, new JSONObject()));
+                break;
+            case STATE:
+                if (readStateMetadata && "meta-data".equals(top.key)) {
+                    stack.push(new Frame(FrameType.VALUE, new JSONObject()));
+                } else {
+                    pushSkip();
+                }
+                break;
+            case VISIBLE_WIDGETS:
+                WidgetRef ref = new WidgetRef();
+                ((StateNode) top.value).widgets.add(ref);
+                stack.push(new Frame(FrameType.STATE_WIDGET, ref));
+                break;
+            case STATE_WIDGET:
+                if ("next-state".equals(top.key)) {
+                    StateNode nextState = new StateNode();
+                    ((WidgetRef) top.value).nextState = nextState;
+                    stack.push(new Frame(FrameType.STATE, nextState));
+                } else if ("meta-data".equals(top.key)) {
+                    stack.push(new Frame(FrameType.VALUE, new JSONObject()));
+                } else {
+                    pushSkip();
+                }
+                break;
+            case VALUE:
+                stack.push(new Frame(FrameType.VALUE, new JSONObject()));
+                break;
+            case SKIP:
+                top.depth++;
+                break;
+            default:
+                pushSkip();
+                break;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endObject() {
+        return endValue();
+    }
+
+    @Override
+    public boolean startObjectEntry(String key) {
+        stack.peek().key = key;
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+        return true;
+    }
+
+    @Override
+    public boolean startArray() {
+        Frame top = stack.peek();
+        if (top == null) {
+            pushSkip();
+            return true;
+        }
+
+        switch (top.type) {
+            case ROOT:
+                if ("all-widgets".equals(top.key)) {
+                    stack.push(new Frame(FrameType.ALL_WIDGETS, null));
+                } else if ("strings".equals(top.key)) {
+                    stack.push(new Frame(FrameType.VALUE, new JSONArray()));
+                } else {
+                    pushSkip();
+                }
+                break;
+            case STATE:
+                if ("visible-widgets".equals(top.key)) {
+                    stack.push(new Frame(FrameType.VISIBLE_WIDGETS, top.value));
+                } else {
+                    pushSkip();
+                }
+                break;
+            case VALUE:
+                stack.push(new Frame(FrameType.VALUE, new JSONArray()));
+                break;
+            case SKIP:
+                top.depth++;
+                break;
+            default:
+                pushSkip();
+                break;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endArray() {
+        return endValue();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean primitive(Object value) {
+        Frame top = stack.peek();
+        if (top == null) {
+            return true;
+        }
+
+        switch (top.type) {
+            case ROOT:
+                if ("last-updated-at-ms".equals(top.key) && value instanceof Number) {
+                    lastUpdatedAtMs = ((Number) value).longValue();
+                } else if ("format-version".equals(top.key) && value instanceof Number) {
+                    formatVersion = ((Number) value).longValue();
+                }
+                break;
+            case STATE:
+                StateNode node = (StateNode) top.value;
+                if ("state-id".equals(top.key)) {
+                    node.id = (String) value;
+                } else if ("bookmarks".equals(top.key)) {
+                    node.bookmark = (String) value;
+                }
+                break;
+            case STATE_WIDGET:
+                if ("id".equals(top.key)) {
+                    ((WidgetRef) top.value).id = (String) value;
+                } else if (StateReferences.REF.equals(top.key)) {
+                    ((WidgetRef) top.value).nextStateRef = value;
+                } else if (StateReferences.REF_INDEX.equals(top.key)) {
+                    ((WidgetRef) top.value).nextStateRefIndex = value;
+                }
+                break;
+            case VALUE:
+                if (top.value instanceof JSONObject) {
+                    ((JSONObject) top.value).put(top.key, value);
+                } else {
+                    ((JSONArray) top.value).add(value);
+                }
+                break;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean endValue() {
+        Frame frame = stack.peek();
+        if (frame.type == FrameType.SKIP && frame.depth > 0) {
+            frame.depth--;
+            return true;
+        }
+
+        stack.pop();
+        Frame parent = stack.peek();
+        if (frame.type != FrameType.VALUE || parent == null) {
+            return true;
+        }
+
+        switch (parent.type) {
+            case ROOT:
+                if ("strings".equals(parent.key)) {
+                    strings = JSONStateParser.parseStrings(frame.value);
+                    parsePendingWidgets();
+                }
+                break;
+            case ALL_WIDGETS:
+                if (formatVersion >= JSONStateParser.FORMAT_V2 && strings == null) {
+                    pendingWidgets.add((JSONObject) frame.value);
+                } else {
+                    allWidgets.add(JSONStateParser.parseWidget((JSONObject) frame.value, strings));
+                }
+                break;
+            case STATE:
+                ((StateNode) parent.value).metaData = (JSONObject) frame.value;
+                break;
+            case STATE_WIDGET:
+                ((WidgetRef) parent.value).metaData = (JSONObject) frame.value;
+                break;
+            case VALUE:
+                if (parent.value instanceof JSONObject) {
+                    ((JSONObject) parent.value).put(parent.key, frame.value);
+                } else {
+                    ((JSONArray) parent.value).add(frame.value);
+                }
+                break;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    private void parsePendingWidgets() {
+        pendingWidgets.forEach(w -> allWidgets.add(JSONStateParser.parseWidget(w, strings)));
+        pendingWidgets.clear();
+    }
+
+    private void pushSkip() {
+        stack.push(new Frame(FrameType.SKIP, null));
+    }
+}
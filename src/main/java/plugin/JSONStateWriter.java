@@ -0,0 +1,830 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static plugin.JSONStateParser.locationAreaAsJSONObject;
+import static plugin.JSONStateParser.metadataAsJSONObject;
+import static plugin.JSONStateParser.pathAsJSONObject;
+import static plugin.JSONStateParser.stateMetadataAsJSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import scout.*;
+
+/**
+ * Writes a state model in the format of {@link JSONStateParser#appStateAsJSONObject(AppState)}
+ * directly to a stream, without building the JSON object tree and the complete document as string.
+ * <p>
+ * The output is byte-identical to {@code appStateAsJSONObject(state).toJSONString()}.
+ * The JSON objects of json-simple are hash maps, therefore the keys are written in the
+ * iteration order of a hash map containing the same keys.
+ * <p>
+ * Large models can be encoded in parallel, see {@link #writeAppState(AppState, long, Writer, boolean)}.
+ * The output is the same as of the sequential encoding.
+ */
+public class JSONStateWriter {
+
+    private static final List<String> APP_STATE_KEYS = keyOrder("product", "last-updated-at-ms", "paths", "state", "issues", "all-widgets");
+    // The string table is written before the widgets, so they can be resolved while the file is read
+    private static final List<String> APP_STATE_KEYS_V2 = Arrays.asList("format-version", "strings",
+            "product", "last-updated-at-ms", "paths", "state", "issues", "all-widgets");
+    private static final List<String> STATE_KEYS = keyOrder("state-id", "product-version", "bookmarks", "visible-widgets", "meta-data");
+    private static final List<String> STATE_WIDGET_KEYS = keyOrder("id", "next-state");
+
+    // Minimal number of states of a subtree and widgets of a chunk of "all-widgets" to encode them on their own thread
+    private static final int PARALLEL_STATES = 16;
+    private static final int PARALLEL_WIDGETS = 256;
+    // Each nested task waits for the tasks it has forked, below this depth subtrees are encoded by the task itself
+    private static final int MAX_PARALLEL_DEPTH = 64;
+
+    private static final int CREATED_DATE = 1;
+    private static final int RESOLVED_DATE = 2;
+    private static final int REPORTED_DATE = 4;
+    private static final int DELETED_AT_MS = 8;
+    private static final List<List<String>> WIDGET_KEYS = new ArrayList<>();
+
+    static {
+        // One key order for every combination of the optional date keys
+        for (int dates = 0; dates < 16; dates++) {
+            List<String> keys = new ArrayList<>();
+            keys.add("id");
+            keys.add("text");
+            keys.add("weight");
+            keys.add("type");
+            keys.add("subtype");
+            keys.add("status");
+            if ((dates & CREATED_DATE) != 0) {
+                keys.add("created-date-ms");
+            }
+            if ((dates & RESOLVED_DATE) != 0) {
+                keys.add("resolved-date-ms");
+            }
+            if ((dates & REPORTED_DATE) != 0) {
+                keys.add("reported-date-ms");
+            }
+            if ((dates & DELETED_AT_MS) != 0) {
+                keys.add("deleted-at-ms");
+            }
+            keys.add("created-by");
+            keys.add("created-by-plugin");
+            keys.add("comment");
+            keys.add("reported-text");
+            keys.add("reported-by");
+            keys.add("meta-data");
+            keys.add("visibility");
+            keys.add("location");
+            WIDGET_KEYS.add(keyOrder(keys.toArray(new String[0])));
+        }
+    }
+
+    /**
+     * Write the state model to the output stream using the platform charset
+     * (like {@link java.io.FileWriter}). The stream is flushed but not closed.
+     */
+    public static void writeAppState(AppState state, OutputStream out) throws IOException {
+        writeAppState(state, Instant.now().toEpochMilli(), out);
+    }
+
+    public static void writeAppState(AppState state, long lastUpdatedAtMs, OutputStream out) throws IOException {
+        writeAppState(state, lastUpdatedAtMs, out, false);
+    }
+
+    public static void writeAppState(AppState state, long lastUpdatedAtMs, OutputStream out, boolean parallel) throws IOException {
+        writeAppState(state, lastUpdatedAtMs, out, parallel, JSONStateParser.FORMAT_V1);
+    }
+
+    public static void writeAppState(AppState state, long lastUpdatedAtMs, OutputStream out, boolean parallel, int formatVersion) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()), 1 << 16);
+        writeAppState(state, lastUpdatedAtMs, writer, parallel, formatVersion);
+        writer.flush();
+    }
+
+    public static void writeAppState(AppState state, long lastUpdatedAtMs, Writer out) throws IOException {
+        writeAppState(state, lastUpdatedAtMs, out, false);
+    }
+
+    /**
+     * Write the state model to the writer.
+     * <p>
+     * If parallel is true, large subtrees of the state tree and the widgets of "all-widgets" are encoded
+     * in the common fork/join pool and written in the same order as they would be written sequentially.
+     * The state tree must not be modified while it is written.
+     */
+    public static void writeAppState(AppState state, long lastUpdatedAtMs, Writer out, boolean parallel) throws IOException {
+        writeAppState(state, lastUpdatedAtMs, out, parallel, JSONStateParser.FORMAT_V1);
+    }
+
+    /**
+     * Write the state model to the writer in the given format.
+     * <p>
+     * {@link JSONStateParser#FORMAT_V2} adds "format-version" and a "strings" table. Text, creator, comment,
+     * reporter and meta-data values of widgets which occur more than once are written as index into the table.
+     * {@link JSONStateParser#FORMAT_V3} writes states reachable from several widgets once, see {@link StateReferences}.
+     * {@link JSONStateParser#FORMAT_V4} writes the deletion time of widgets as number "deleted-at-ms".
+     * Files of all formats can be read with {@link JSONStateReader} and {@link JSONStateParser#parseCompleteAppState(org.json.simple.JSONObject)}.
+     */
+    public static void writeAppState(AppState state, long lastUpdatedAtMs, Writer out, boolean parallel, int formatVersion) throws IOException {
+        StateReferences references = formatVersion >= JSONStateParser.FORMAT_V3 ? new StateReferences(state) : null;
+        EncodedState encodedTree = null;
+        Map<String, Widget> allUsedWidgets = new HashMap<>();
+        if (parallel) {
+            try {
+                encodedTree = ForkJoinPool.commonPool().invoke(new StateTreeTask(state, countSubtreeStates(state, references), references, 0));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            encodedTree.usedWidgets.forEach(w -> allUsedWidgets.put(w.getId(), w));
+        } else if (references != null) {
+            List<Widget> usedWidgets = new ArrayList<>();
+            collectUsedWidgets(state, usedWidgets, references);
+            usedWidgets.forEach(w -> allUsedWidgets.put(w.getId(), w));
+        } else {
+            collectUsedWidgets(state, allUsedWidgets);
+        }
+
+        List<Widget> allWidgets = JSONStateParser.allWidgetsOf(allUsedWidgets.values());
+        StringTable strings = formatVersion >= JSONStateParser.FORMAT_V2 ? StringTable.of(allWidgets, formatVersion) : null;
+
+        out.write('{');
+        boolean first = true;
+        for (String key : strings != null ? APP_STATE_KEYS_V2 : APP_STATE_KEYS) {
+            first = writeKey(key, first, out);
+            switch (key) {
+                case "format-version":
+                    writeValue(formatVersion, out);
+                    break;
+                case "strings":
+                    writeValue(strings.strings, out);
+                    break;
+                case "product":
+                    writeValue(StateController.getProduct(), out);
+                    break;
+                case "last-updated-at-ms":
+                    writeValue(lastUpdatedAtMs, out);
+                    break;
+                case "paths":
+                    writePaths(state.getPaths(), out);
+                    break;
+                case "state":
+                    if (encodedTree != null) {
+                        out.write(encodedTree.json);
+                    } else {
+                        writeStateTree(state, out, null, references);
+                    }
+                    break;
+                case "issues":
+                    writeIssues(JSONStateParser.allIssuesOf(state), out);
+                    break;
+                case "all-widgets":
+                    if (parallel) {
+                        writeAllWidgetsParallel(allWidgets, strings, out);
+                    } else {
+                        writeAllWidgets(allWidgets, strings, out);
+                    }
+                    break;
+            }
+        }
+        out.write('}');
+    }
+
+    /**
+     * Collect the widgets of the state tree in the same order as
+     * {@link JSONStateParser#stateTreeAsJSONObject(AppState, Map)} does.
+     */
+    protected static void collectUsedWidgets(AppState state, Map<String, Widget> allUsedWidgets) {
+        StateTraversal.run(new CollectStep(state, w -> allUsedWidgets.put(w.getId(), w), null));
+    }
+
+    /**
+     * Collect the widgets of the state tree in the order they are put into the map by
+     * {@link #collectUsedWidgets(AppState, Map)}, including widgets with the same ID.
+     * Referenced states are not collected again.
+     */
+    private static void collectUsedWidgets(AppState state, List<Widget> usedWidgets, StateReferences references) {
+        StateTraversal.run(new CollectStep(state, usedWidgets::add, references));
+    }
+
+    /**
+     * Collects the widgets of a state after the widgets of its following states, which are collected by the steps it returns.
+     */
+    private static final class CollectStep implements StateTraversal.Step {
+        private final AppState state;
+        private final Consumer<Widget> usedWidgets;
+        private final StateReferences references;
+        private List<Widget> visibleWidgets = null;
+        private int next = 0;
+
+        CollectStep(AppState state, Consumer<Widget> usedWidgets, StateReferences references) {
+            this.state = state;
+            this.usedWidgets = usedWidgets;
+            this.references = references;
+        }
+
+        @Override
+        public StateTraversal.Step next() {
+            if (visibleWidgets == null) {
+                visibleWidgets = state.getVisibleWidgets();
+            }
+            while (next < visibleWidgets.size()) {
+                int i = next++;
+                AppState nextState = visibleWidgets.get(i).getNextState();
+                if (isInline(state, i, nextState, references)) {
+                    return new CollectStep(nextState, usedWidgets, references);
+                }
+            }
+            visibleWidgets.forEach(usedWidgets);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the following state of the widget at the index is written inline
+     */
+    private static boolean isInline(AppState state, int widgetIndex, AppState nextState, StateReferences references) {
+        if (nextState == null || nextState.isHome()) {
+            return false;
+        }
+        return references == null || references.isInline(state, widgetIndex, nextState);
+    }
+
+    protected static void writeStateTree(AppState state, Writer out) throws IOException {
+        writeStateTree(state, out, null, null);
+    }
+
+    /**
+     * @param encodedStates following states which have already been encoded or null
+     * @param references    states written as reference or null to write all following states inline
+     */
+    private static void writeStateTree(AppState state, Writer out, Map<AppState, String> encodedStates,
+            StateReferences references) throws IOException {
+        try {
+            StateTraversal.run(new WriteStateStep(state, out, encodedStates, references));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeStateWidgetReference(Widget widget, StateReferences references, Writer out) throws IOException {
+        JSONObject json = new JSONObject();
+        json.put("id", widget.getId());
+        references.putReference(json, widget.getNextState());
+        writeValue(json, out);
+    }
+
+    /**
+     * Writes a state, the following states written inline are written by the steps it returns.
+     * Each step continues writing where it has returned the step of a following state.
+     */
+    private static final class WriteStateStep implements StateTraversal.Step {
+        private final AppState state;
+        private final Writer out;
+        private final Map<AppState, String> encodedStates;
+        private final StateReferences references;
+
+        private List<Widget> visibleWidgets = null;
+        // Next key of the state, next visible widget and next key of that widget, 0 if the widget has not been started
+        private int key = 0;
+        private int widget = 0;
+        private int widgetKey = 0;
+
+        WriteStateStep(AppState state, Writer out, Map<AppState, String> encodedStates, StateReferences references) {
+            this.state = state;
+            this.out = out;
+            this.encodedStates = encodedStates;
+            this.references = references;
+        }
+
+        @Override
+        public StateTraversal.Step next() {
+            try {
+                return write();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private StateTraversal.Step write() throws IOException {
+            if (visibleWidgets == null) {
+                visibleWidgets = state.getVisibleWidgets();
+                out.write('{');
+            }
+            while (key < STATE_KEYS.size()) {
+                String name = STATE_KEYS.get(key);
+                boolean resumed = name.equals("visible-widgets") && (widget > 0 || widgetKey > 0);
+                if (!resumed) {
+                    writeKey(name, key == 0, out);
+                }
+                switch (name) {
+                    case "state-id":
+                        writeValue(state.getId(), out);
+                        break;
+                    case "product-version":
+                        writeValue(state.getProductVersions(), out);
+                        break;
+                    case "bookmarks":
+                        writeValue(state.getBookmark(), out);
+                        break;
+                    case "visible-widgets":
+                        if (!resumed) {
+                            out.write('[');
+                        }
+                        StateTraversal.Step following = writeStateWidgets();
+                        if (following != null) {
+                            return following;
+                        }
+                        out.write(']');
+                        break;
+                    case "meta-data":
+                        writeValue(stateMetadataAsJSONObject(state), out);
+                        break;
+                }
+                key++;
+            }
+            out.write('}');
+            return null;
+        }
+
+        /**
+         * @return the step of a following state to write inline or null if all widgets are written
+         */
+        private StateTraversal.Step writeStateWidgets() throws IOException {
+            while (widget < visibleWidgets.size()) {
+                Widget current = visibleWidgets.get(widget);
+                AppState nextState = current.getNextState();
+                if (widgetKey == 0) {
+                    if (widget > 0) {
+                        out.write(',');
+                    }
+                    if (references != null && nextState != null && !nextState.isHome() && !references.isInline(state, widget, nextState)) {
+                        writeStateWidgetReference(current, references, out);
+                        widget++;
+                        continue;
+                    }
+                    out.write('{');
+                }
+                while (widgetKey < STATE_WIDGET_KEYS.size()) {
+                    String name = STATE_WIDGET_KEYS.get(widgetKey++);
+                    writeKey(name, widgetKey == 1, out);
+                    if (name.equals("id")) {
+                        writeValue(current.getId(), out);
+                    } else if (nextState == null || nextState.isHome()) {
+                        out.write("null");
+                    } else if (encodedStates != null && encodedStates.containsKey(nextState)) {
+                        out.write(encodedStates.get(nextState));
+                    } else {
+                        return new WriteStateStep(nextState, out, encodedStates, references);
+                    }
+                }
+                out.write('}');
+                widget++;
+                widgetKey = 0;
+            }
+            return null;
+        }
+    }
+
+    private static void writePaths(List<Path> paths, Writer out) throws IOException {
+        out.write('[');
+        boolean first = true;
+        for (Path path : paths) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeValue(pathAsJSONObject(path), out);
+        }
+        out.write(']');
+    }
+
+    private static void writeIssues(List<Widget> issues, Writer out) throws IOException {
+        out.write('[');
+        boolean first = true;
+        for (Widget issue : issues) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeValue(issue.getId(), out);
+        }
+        out.write(']');
+    }
+
+    private static void writeAllWidgets(List<Widget> widgets, StringTable strings, Writer out) throws IOException {
+        out.write('[');
+        boolean first = true;
+        for (Widget widget : widgets) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeWidget(widget, strings, out);
+        }
+        out.write(']');
+    }
+
+    private static void writeAllWidgetsParallel(List<Widget> widgets, StringTable strings, Writer out) throws IOException {
+        int chunks = (widgets.size() + PARALLEL_WIDGETS - 1) / PARALLEL_WIDGETS;
+        List<String> encodedChunks;
+        try {
+            encodedChunks = ForkJoinPool.commonPool().submit(() -> IntStream.range(0, chunks).parallel()
+                    .mapToObj(i -> encodeWidgets(widgets.subList(i * PARALLEL_WIDGETS, Math.min(widgets.size(), (i + 1) * PARALLEL_WIDGETS)), strings))
+                    .collect(Collectors.toList())).join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        out.write('[');
+        boolean first = true;
+        for (String chunk : encodedChunks) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write(chunk);
+        }
+        out.write(']');
+    }
+
+    /**
+     * @return the widgets separated by commas
+     */
+    private static String encodeWidgets(List<Widget> widgets, StringTable strings) {
+        StringWriter out = new StringWriter(widgets.size() * 512);
+        try {
+            boolean first = true;
+            for (Widget widget : widgets) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                writeWidget(widget, strings, out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write a widget like {@link JSONStateParser#widgetAsJSONObject(Widget)}.
+     */
+    protected static void writeWidget(Widget widget, Writer out) throws IOException {
+        writeWidget(widget, null, out);
+    }
+
+    /**
+     * @param strings string table of the model or null to write all values as strings
+     */
+    private static void writeWidget(Widget widget, StringTable strings, Writer out) throws IOException {
+        int dates = 0;
+        if (widget.getCreatedDate() != null) {
+            dates |= CREATED_DATE;
+        }
+        if (widget.getResolvedDate() != null) {
+            dates |= RESOLVED_DATE;
+        }
+        if (widget.getReportedDate() != null) {
+            dates |= REPORTED_DATE;
+        }
+        long deletedAt = strings != null && strings.hasDeletedAtMs() ? Tombstones.deletedAt(widget) : 0;
+        if (deletedAt > 0) {
+            dates |= DELETED_AT_MS;
+        }
+
+        out.write('{');
+        boolean first = true;
+        for (String key : WIDGET_KEYS.get(dates)) {
+            first = writeKey(key, first, out);
+            switch (key) {
+                case "id":
+                    writeValue(widget.getId(), out);
+                    break;
+                case "text":
+                    writeValue(valueOf(widget.getText(), strings), out);
+                    break;
+                case "weight":
+                    writeValue(widget.getWeight(), out);
+                    break;
+                case "type":
+                    writeValue(widget.getWidgetType().name(), out);
+                    break;
+                case "subtype":
+                    writeValue(widget.getWidgetSubtype().toString(), out);
+                    break;
+                case "status":
+                    writeValue(widget.getWidgetStatus().toString(), out);
+                    break;
+                case "created-date-ms":
+                    writeValue(widget.getCreatedDate().getTime(), out);
+                    break;
+                case "resolved-date-ms":
+                    writeValue(widget.getResolvedDate().getTime(), out);
+                    break;
+                case "reported-date-ms":
+                    writeValue(widget.getReportedDate().getTime(), out);
+                    break;
+                case "deleted-at-ms":
+                    writeValue(deletedAt, out);
+                    break;
+                case "created-by":
+                    writeValue(valueOf(widget.getCreatedBy(), strings), out);
+                    break;
+                case "created-by-plugin":
+                    writeValue(valueOf(widget.getCreatedByPlugin(), strings), out);
+                    break;
+                case "comment":
+                    writeValue(valueOf(widget.getComment(), strings), out);
+                    break;
+                case "reported-text":
+                    writeValue(valueOf(widget.getReportedText(), strings), out);
+                    break;
+                case "reported-by":
+                    writeValue(valueOf(widget.getReportedBy(), strings), out);
+                    break;
+                case "meta-data":
+                    writeValue(strings != null ? strings.metadataAsJSONObject(widget) : metadataAsJSONObject(widget), out);
+                    break;
+                case "visibility":
+                    writeValue(widget.getWidgetVisibility().name(), out);
+                    break;
+                case "location":
+                    writeValue(locationAreaAsJSONObject(widget.getLocationArea()), out);
+                    break;
+            }
+        }
+        out.write('}');
+    }
+
+    private static Object valueOf(String value, StringTable strings) {
+        return strings != null ? strings.valueOf(value) : value;
+    }
+
+    // ********************************************
+    // * String table                             *
+    // ********************************************
+
+    /**
+     * Strings of the widgets of a model which occur more than once, in the order of their first occurrence.
+     * The table is not changed after it has been built and can be used by several threads.
+     * <p>
+     * From {@link JSONStateParser#FORMAT_V4} on the deletion time is not part of the meta-data of widgets.
+     */
+    static final class StringTable {
+        // Shorter strings are not shorter as index
+        private static final int MIN_LENGTH = 4;
+
+        final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> indices = new HashMap<>();
+        private final boolean deletedAtMs;
+
+        private StringTable(int formatVersion) {
+            deletedAtMs = formatVersion >= JSONStateParser.FORMAT_V4;
+        }
+
+        static StringTable of(List<Widget> widgets, int formatVersion) {
+            StringTable table = new StringTable(formatVersion);
+            Map<String, Integer> counts = new HashMap<>();
+            List<String> order = new ArrayList<>();
+            for (Widget widget : widgets) {
+                for (String value : table.internableValues(widget)) {
+                    if (value != null && value.length() >= MIN_LENGTH && counts.merge(value, 1, Integer::sum) == 1) {
+                        order.add(value);
+                    }
+                }
+            }
+
+            for (String value : order) {
+                if (counts.get(value) > 1) {
+                    table.indices.put(value, table.strings.size());
+                    table.strings.add(value);
+                }
+            }
+            return table;
+        }
+
+        boolean hasDeletedAtMs() {
+            return deletedAtMs;
+        }
+
+        private List<String> internableValues(Widget widget) {
+            List<String> values = new ArrayList<>();
+            values.add(widget.getText());
+            values.add(widget.getCreatedBy());
+            values.add(widget.getCreatedByPlugin());
+            values.add(widget.getComment());
+            values.add(widget.getReportedText());
+            values.add(widget.getReportedBy());
+            widget.getMetadataKeys().stream()
+                    .filter(k -> !k.equals("matching_widget"))
+                    .filter(k -> !k.equals("neighbors"))
+                    .filter(k -> !deletedAtMs || !k.equals(MultiUser.DELETED_AT))
+                    .forEach(k -> values.add(String.valueOf(widget.getMetadata(k))));
+            return values;
+        }
+
+        /**
+         * @return the index of the value in the table or the value itself if it is not in the table
+         */
+        Object valueOf(String value) {
+            Integer index = value == null ? null : indices.get(value);
+            return index != null ? (Object) index.longValue() : value;
+        }
+
+        /**
+         * Like {@link JSONStateParser#metadataAsJSONObject(Widget)} with values of the table as index.
+         */
+        @SuppressWarnings("unchecked")
+        JSONObject metadataAsJSONObject(Widget widget) {
+            JSONObject json = JSONStateParser.metadataAsJSONObject(widget);
+            if (deletedAtMs) {
+                json.remove(MultiUser.DELETED_AT);
+            }
+            for (Object key : json.keySet()) {
+                if (!"matching_widget".equals(key)) {
+                    json.put(key, valueOf((String) json.get(key)));
+                }
+            }
+            return json;
+        }
+    }
+
+    // ********************************************
+    // * Parallel encoding of the state tree      *
+    // ********************************************
+
+    /**
+     * A state tree encoded as JSON with its used widgets in the order of {@link #collectUsedWidgets(AppState, List, StateReferences)}.
+     */
+    private static final class EncodedState {
+        final String json;
+        final List<Widget> usedWidgets;
+
+        EncodedState(String json, List<Widget> usedWidgets) {
+            this.json = json;
+            this.usedWidgets = usedWidgets;
+        }
+    }
+
+    /**
+     * Encodes a state tree. Following states with at least {@link #PARALLEL_STATES} states in
+     * their subtree are encoded by their own tasks, smaller ones together with the state.
+     * Below {@link #MAX_PARALLEL_DEPTH} nested tasks all following states are encoded together with the state.
+     */
+    private static final class StateTreeTask extends RecursiveTask<EncodedState> {
+        private static final long serialVersionUID = 1L;
+
+        private final AppState state;
+        private final Map<AppState, Integer> subtreeStates;
+        private final StateReferences references;
+        private final int depth;
+
+        StateTreeTask(AppState state, Map<AppState, Integer> subtreeStates, StateReferences references, int depth) {
+            this.state = state;
+            this.subtreeStates = subtreeStates;
+            this.references = references;
+            this.depth = depth;
+        }
+
+        @Override
+        protected EncodedState compute() {
+            List<Widget> visibleWidgets = state.getVisibleWidgets();
+            Map<AppState, StateTreeTask> tasks = new IdentityHashMap<>();
+            for (int i = 0; i < visibleWidgets.size(); i++) {
+                AppState nextState = visibleWidgets.get(i).getNextState();
+                if (depth < MAX_PARALLEL_DEPTH && isInline(state, i, nextState, references) && !tasks.containsKey(nextState)
+                        && subtreeStates.getOrDefault(nextState, 0) >= PARALLEL_STATES) {
+                    StateTreeTask task = new StateTreeTask(nextState, subtreeStates, references, depth + 1);
+                    task.fork();
+                    tasks.put(nextState, task);
+                }
+            }
+
+            // Encode the small subtrees while the large ones are encoded by other threads
+            List<List<Widget>> subtreeWidgets = new ArrayList<>();
+            for (int i = 0; i < visibleWidgets.size(); i++) {
+                AppState nextState = visibleWidgets.get(i).getNextState();
+                if (isInline(state, i, nextState, references) && !tasks.containsKey(nextState)) {
+                    List<Widget> usedWidgets = new ArrayList<>();
+                    collectUsedWidgets(nextState, usedWidgets, references);
+                    subtreeWidgets.add(usedWidgets);
+                } else {
+                    subtreeWidgets.add(null);
+                }
+            }
+
+            Map<AppState, String> encodedStates = new IdentityHashMap<>();
+            Map<AppState, EncodedState> results = new IdentityHashMap<>();
+            for (Map.Entry<AppState, StateTreeTask> task : tasks.entrySet()) {
+                EncodedState result = task.getValue().join();
+                results.put(task.getKey(), result);
+                encodedStates.put(task.getKey(), result.json);
+            }
+
+            StringWriter out = new StringWriter();
+            try {
+                writeStateTree(state, out, encodedStates, references);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            List<Widget> usedWidgets = new ArrayList<>();
+            for (int i = 0; i < visibleWidgets.size(); i++) {
+                AppState nextState = visibleWidgets.get(i).getNextState();
+                if (subtreeWidgets.get(i) != null) {
+                    usedWidgets.addAll(subtreeWidgets.get(i));
+                } else if (isInline(state, i, nextState, references)) {
+                    usedWidgets.addAll(results.get(nextState).usedWidgets);
+                }
+            }
+            usedWidgets.addAll(visibleWidgets);
+            return new EncodedState(out.toString(), usedWidgets);
+        }
+    }
+
+    /**
+     * @return number of states written in the subtree of each state of the tree
+     */
+    private static Map<AppState, Integer> countSubtreeStates(AppState root, StateReferences references) {
+        Map<AppState, Integer> subtreeStates = new IdentityHashMap<>();
+        List<AppState> order = new ArrayList<>();
+        Deque<AppState> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            AppState state = stack.pop();
+            order.add(state);
+            List<Widget> visibleWidgets = state.getVisibleWidgets();
+            for (int i = 0; i < visibleWidgets.size(); i++) {
+                AppState nextState = visibleWidgets.get(i).getNextState();
+                if (isInline(state, i, nextState, references)) {
+                    stack.push(nextState);
+                }
+            }
+        }
+        // Following states are counted before the states leading to them
+        for (int i = order.size() - 1; i >= 0; i--) {
+            AppState state = order.get(i);
+            int count = 1;
+            List<Widget> visibleWidgets = state.getVisibleWidgets();
+            for (int j = 0; j < visibleWidgets.size(); j++) {
+                AppState nextState = visibleWidgets.get(j).getNextState();
+                if (isInline(state, j, nextState, references)) {
+                    count += subtreeStates.getOrDefault(nextState, 0);
+                }
+            }
+            subtreeStates.put(state, count);
+        }
+        return subtreeStates;
+    }
+
+    private static boolean writeKey(String key, boolean first, Writer out) throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+        out.write('"');
+        out.write(JSONValue.escape(key));
+        out.write("\":");
+        return false;
+    }
+
+    private static void writeValue(Object value, Writer out) throws IOException {
+        JSONValue.writeJSONString(value, out);
+    }
+
+    /**
+     * Iteration order of a hash map (and thereby of a JSONObject) after inserting the keys in the given order.
+     */
+    private static List<String> keyOrder(String... keys) {
+        Map<String, Boolean> map = new HashMap<>();
+        for (String key : keys) {
+            map.put(key, Boolean.TRUE);
+        }
+        return new ArrayList<>(map.keySet());
+    }
+}
@@ -0,0 +1,331 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetVisibility;
+
+/**
+ * Widget lookups in the states of one merge pass.
+ * <p>
+ * The lookups of a state are built when the state is accessed for the first time
+ * and are kept up to date as long as widgets are only added with {@link #addWidget(AppState, Widget)}.
+ * They return the same widgets as {@link AppState#getWidget(String)} and a linear search
+ * in {@link AppState#getVisibleWidgets()} with {@link MultiUser#indexOfSameWidget(Widget, List)}.
+ * <p>
+ * An index is not thread-safe. Subtrees merged in parallel use their own index, see {@link #fork()}.
+ */
+public class MergeIndex {
+
+    /**
+     * Merge of following states, deferred to be run after the merge of the current state.
+     */
+    public static class DeferredMerge {
+        final AppState sharedState;
+        final AppState sessionState;
+        // Number of changes recorded before the merge was deferred
+        final int position;
+        List<String> recordedChanges = Collections.emptyList();
+
+        DeferredMerge(AppState sharedState, AppState sessionState, int position) {
+            this.sharedState = sharedState;
+            this.sessionState = sessionState;
+            this.position = position;
+        }
+
+        public AppState getSharedState() {
+            return sharedState;
+        }
+
+        public AppState getSessionState() {
+            return sessionState;
+        }
+    }
+
+    private static class StateLookup {
+        final Map<String, Widget> byId = new HashMap<>();
+        final Set<Widget> all = Collections.newSetFromMap(new IdentityHashMap<>());
+        final List<Widget> visible = new ArrayList<>();
+        WidgetIndex visibleIndex = null;
+
+        StateLookup(AppState state) {
+            for (Widget widget : state.getAllWidgets()) {
+                add(widget);
+            }
+        }
+
+        void add(Widget widget) {
+            all.add(widget);
+            byId.putIfAbsent(widget.getId(), widget);
+            if (widget.getWidgetVisibility() == WidgetVisibility.VISIBLE) {
+                if (visibleIndex != null) {
+                    visibleIndex.add(widget);
+                } else {
+                    visible.add(widget);
+                }
+            }
+        }
+
+        WidgetIndex visibleIndex() {
+            if (visibleIndex == null) {
+                visibleIndex = new WidgetIndex(visible);
+                visible.clear();
+            }
+            return visibleIndex;
+        }
+    }
+
+    private final Map<AppState, StateLookup> states = new IdentityHashMap<>();
+    private List<String> journal;
+    private final long deletedAt;
+    private List<DeferredMerge> deferredMerges = null;
+    private List<DeferredMerge> collectedMerges = null;
+    // Shared with the forks of the merge pass
+    private final LongAdder createdWidgets;
+    private final LongAdder deletedWidgets;
+    private final LongAdder unchangedWidgets;
+    private MultiUserMetrics metrics = null;
+
+    public MergeIndex() {
+        this(false);
+    }
+
+    /**
+     * @param recordChanges true to record the changes of the merge as {@link StateJournal} records
+     */
+    public MergeIndex(boolean recordChanges) {
+        this(recordChanges, Instant.now().toEpochMilli());
+    }
+
+    /**
+     * @param recordChanges true to record the changes of the merge as {@link StateJournal} records
+     * @param deletedAt     time all widgets deleted in this merge pass are marked as deleted at
+     */
+    public MergeIndex(boolean recordChanges, long deletedAt) {
+        this(recordChanges, deletedAt, new LongAdder(), new LongAdder(), new LongAdder());
+    }
+
+    private MergeIndex(boolean recordChanges, long deletedAt, LongAdder createdWidgets, LongAdder deletedWidgets,
+            LongAdder unchangedWidgets) {
+        this.journal = recordChanges ? new ArrayList<>() : null;
+        this.deletedAt = deletedAt;
+        this.createdWidgets = createdWidgets;
+        this.deletedWidgets = deletedWidgets;
+        this.unchangedWidgets = unchangedWidgets;
+    }
+
+    /**
+     * @return a new index for merging a subtree of this merge pass on another thread
+     */
+    public MergeIndex fork() {
+        MergeIndex fork = new MergeIndex(journal != null, deletedAt, createdWidgets, deletedWidgets, unchangedWidgets);
+        fork.metrics = metrics;
+        return fork;
+    }
+
+    public long getDeletedAt() {
+        return deletedAt;
+    }
+
+    /**
+     * @param metrics metrics the merge pass is recorded in, or null
+     */
+    public void setMetrics(MultiUserMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public MultiUserMetrics getMetrics() {
+        return metrics;
+    }
+
+    // ********************************************
+    // * Counts                                   *
+    // ********************************************
+
+    /**
+     * Count a merged diff annotation, in this index and all indexes forked from the same merge pass.
+     */
+    void countDiff(MultiUser.DiffType diffType) {
+        switch (diffType) {
+            case CREATED:
+                createdWidgets.increment();
+                break;
+            case DELETED:
+                deletedWidgets.increment();
+                break;
+            case NO_CHANGES:
+                unchangedWidgets.increment();
+                break;
+            default:
+                break;
+        }
+    }
+
+    public long getCreatedWidgets() {
+        return createdWidgets.sum();
+    }
+
+    public long getDeletedWidgets() {
+        return deletedWidgets.sum();
+    }
+
+    public long getUnchangedWidgets() {
+        return unchangedWidgets.sum();
+    }
+
+    // ********************************************
+    // * Deferred merges                          *
+    // ********************************************
+
+    /**
+     * Defer the merges of following states until {@link #stopDeferring()} is called.
+     *
+     * @return the list the deferred merges are added to
+     */
+    public List<DeferredMerge> startDeferring() {
+        deferredMerges = new ArrayList<>();
+        return deferredMerges;
+    }
+
+    public void stopDeferring() {
+        deferredMerges = null;
+    }
+
+    /**
+     * Collect the merges of following states until {@link #stopCollecting()} is called, so the caller can run
+     * them right afterwards instead of the merge calling itself. Deferring takes precedence over collecting.
+     */
+    public void startCollecting() {
+        collectedMerges = new ArrayList<>();
+    }
+
+    /**
+     * @return the merges collected since {@link #startCollecting()} in the order they were requested
+     */
+    public List<DeferredMerge> stopCollecting() {
+        List<DeferredMerge> collected = collectedMerges == null ? Collections.emptyList() : collectedMerges;
+        collectedMerges = null;
+        return collected;
+    }
+
+    /**
+     * @return true if the merge of the following states has been deferred or collected, false if it shall be done now
+     */
+    public boolean defer(AppState sharedState, AppState sessionState) {
+        if (deferredMerges != null) {
+            deferredMerges.add(new DeferredMerge(sharedState, sessionState, getRecordedChanges().size()));
+            return true;
+        }
+        if (collectedMerges != null) {
+            collectedMerges.add(new DeferredMerge(sharedState, sessionState, getRecordedChanges().size()));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take the changes recorded by the index of the deferred merge.
+     */
+    public void completeDeferred(DeferredMerge merge, MergeIndex mergeIndex) {
+        if (mergeIndex.journal != null && !mergeIndex.journal.isEmpty()) {
+            merge.recordedChanges = mergeIndex.journal;
+            mergeIndex.journal = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Insert the changes of the completed deferred merges where they would have been recorded
+     * if the merges had not been deferred.
+     *
+     * @param merges deferred merges in the order they were deferred
+     */
+    public void insertDeferredChanges(List<DeferredMerge> merges) {
+        if (journal == null) {
+            return;
+        }
+        int offset = 0;
+        for (DeferredMerge merge : merges) {
+            journal.addAll(merge.position + offset, merge.recordedChanges);
+            offset += merge.recordedChanges.size();
+        }
+    }
+
+    /**
+     * @return the first widget of the state with the given id or null
+     */
+    public Widget getWidget(AppState state, String widgetId) {
+        return lookup(state).byId.get(widgetId);
+    }
+
+    /**
+     * @return the first visible widget of the state which is the same as the given widget or null
+     */
+    public Widget findSameVisibleWidget(AppState state, Widget widget) {
+        if (widget == null) {
+            return null;
+        }
+        return lookup(state).visibleIndex().find(widget);
+    }
+
+    /**
+     * Add the widget to the state like {@link AppState#addWidget(Widget)}.
+     */
+    public void addWidget(AppState state, Widget widget) {
+        StateLookup lookup = lookup(state);
+        if (lookup.all.contains(widget)) {
+            return;
+        }
+        state.addWidget(widget);
+        lookup.add(widget);
+
+        // Only visible widgets are stored in a state model file
+        if (journal != null && widget.getWidgetVisibility() == WidgetVisibility.VISIBLE) {
+            journal.add(StateJournal.createdRecord(state, widget));
+        }
+    }
+
+    /**
+     * Record that the widget and all widgets of its following states have been marked as deleted.
+     */
+    public void recordDeletion(AppState state, Widget widget) {
+        if (journal == null || widget == null) {
+            return;
+        }
+        long deletedAt = Tombstones.deletedAt(widget);
+        journal.add(StateJournal.deletedRecord(state, widget, deletedAt));
+    }
+
+    /**
+     * Record that changes of a session have been merged into the widget.
+     */
+    public void recordMerge(AppState state, Widget widget) {
+        if (journal == null) {
+            return;
+        }
+        journal.add(StateJournal.mergedRecord(state, widget));
+    }
+
+    /**
+     * @return the recorded changes in the order they were made
+     */
+    public List<String> getRecordedChanges() {
+        return journal == null ? Collections.emptyList() : journal;
+    }
+
+    private StateLookup lookup(AppState state) {
+        return states.computeIfAbsent(state, StateLookup::new);
+    }
+}
@@ -4,31 +4,27 @@
 
 package plugin;
 
-import static java.lang.Long.parseLong;
-import static plugin.JSONStateParser.appStateAsJSONObject;
-import static plugin.JSONStateParser.parseCompleteAppState;
-
 import java.awt.*;
 import java.awt.font.FontRenderContext;
 import java.awt.geom.AffineTransform;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.InputStreamReader;
 import java.io.FileWriter;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.PrintWriter;
-import java.io.Serializable;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
 import java.time.Instant;
-import java.util.Date;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -36,29 +32,57 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
 
 import javax.swing.JFileChooser;
-import javax.swing.plaf.nimbus.State;
+import javax.swing.SwingUtilities;
 
-import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
+import javax.swing.plaf.nimbus.State;
 
 import scout.*;
 
 public class MultiUser {
 
-    private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private static final SimpleDateFormat dfFiles = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
     private static final String DATA_FILEPATH = "data";
     private static final String MODEL_FILENAME = "shared-state.json";
+    private static final String JOURNAL_FILENAME = "shared-state.journal";
+    private static final String LOCK_FILENAME = "shared-state.lock";
+    private static final long DEFAULT_JOURNAL_COMPACTION_SIZE = 4L * 1024 * 1024;
     private static final String PRODUCT_PROPERTIES_FILE = "product.properties";
+    private static final long SAVE_TIMEOUT_SECONDS = 60;
+    private static final long DEFAULT_SAVE_WAIT_SECONDS = 10;
+    // Nested parallel merges, deeper subtrees are merged sequentially
+    private static final int MAX_PARALLEL_MERGE_DEPTH = 64;
 
     protected static final String META_DATA_DIFF = "multi-user-diff-widgets";
     protected static final String DELETED_AT = "multi-user-merge-deleted-at";
 
     private static AppState stateFromSessionStart = null;
+    // Version of the shared state model the session has started from, the length of the journal replayed onto it
+    // and the stamp of its file if it can be linked
+    private static Long sessionBaseVersion = null;
+    private static long sessionBaseJournalLength = 0;
+    private static SharedModelCache.FileStamp sessionBaseStamp = null;
     private static String sharedModelFolder = null;
+    private static volatile SaveScheduler saveScheduler = null;
+    private static final SharedModelCache sharedModelCache = new SharedModelCache();
+
+    // Used by the event dispatch thread and the save thread
+    private final Map<String, StateJournal> journals = new ConcurrentHashMap<>();
+    private final DeletedWidgetOverlay deletedWidgetOverlay =
+            new DeletedWidgetOverlay(this::isMarkedAsDeleted, StateController::getScaledX, StateController::getScaledY);
 
     // crowdsourcing variables
     private static String startingHomeLocator = null;
@@ -76,6 +100,41 @@ public class MultiUser {
         CREATED, DELETED, CHANGED, NO_CHANGES
     }
 
+    /**
+     * A state model with the version and stamp it has been loaded with. Returned by the load methods
+     * instead of being kept in fields, as the shared state model is loaded by the event dispatch thread
+     * and by the save thread.
+     */
+    protected static final class LoadedModel {
+        static final LoadedModel NONE = new LoadedModel(null, null, null, 0);
+        // The journal could not be replayed completely
+        static final long UNKNOWN_JOURNAL_LENGTH = -1;
+
+        // null if the model could not be loaded
+        final AppState state;
+        // "last-updated-at-ms" of the state model file
+        final Long version;
+        // Stamp of the state model file, null if it was not read from the given path
+        final SharedModelCache.FileStamp stamp;
+        // Length of the journal replayed onto the state model file, 0 if there is none
+        final long journalLength;
+
+        LoadedModel(AppState state, Long version, SharedModelCache.FileStamp stamp, long journalLength) {
+            this.state = state;
+            this.version = version;
+            this.stamp = stamp;
+            this.journalLength = journalLength;
+        }
+
+        LoadedModel withoutStamp() {
+            return new LoadedModel(state, version, null, journalLength);
+        }
+
+        LoadedModel withJournalLength(long journalLength) {
+            return new LoadedModel(state, version, stamp, journalLength);
+        }
+    }
+
     public MultiUser() {
         this(false);
     }
@@ -93,7 +152,7 @@ public class MultiUser {
 
     private void startSession(String product, String productVersion, String testerName, String productView, String homeLocator, int productViewWidth, int productViewHeight, boolean isHeadlessBrowser) {
         // Happens after loadSession
-        System.out.println("Start session -- MultiUser");
+        log("Start session -- MultiUser");
 
         StateController.setProduct(product);
         StateController.setProductVersion(productVersion);
@@ -153,6 +212,7 @@ public class MultiUser {
     public void stopSession() {
         microTaskWidget = null;
         microTaskState = null;
+        deletedWidgetOverlay.invalidate();
     }
 
     public void enablePlugin() {
@@ -186,78 +246,82 @@ public class MultiUser {
 
     /**
      * Load state tree for for the current product or create a new home state if not found.
+     * <p>
+     * In asynchronous save mode, a save of the product still running in the background is waited for first, at most
+     * "multiUserPlugin.saveWaitSeconds" seconds (default 10), so the state tree contains the changes of the last session.
+     * A save which takes longer is merged into the shared state model afterwards, like the save of another tester.
      *
      * @return A state tree
      */
     public AppState loadState() {
-        System.out.println("Load state tree");
+        log("Load state tree");
         stateFromSessionStart = null;
+        sessionBaseVersion = null;
+        sessionBaseJournalLength = 0;
+        sessionBaseStamp = null;
         String product = StateController.getProduct();
         String filePath = getFilePathForProduct(product);
         checkOrCreateProductFolder(product);
+        awaitSaves(product);
 
         Properties properties = loadProductProperties(product, filePath);
         StateController.setProductProperties(properties);
 
         String sharedModelFilePath = sharedModelFolder + "/" + product + "/" + MODEL_FILENAME;
-        JSONObject jsonModel = loadJSONModel(sharedModelFilePath);
-
-        if (jsonModel == null) {
-            AppState emptyState = new AppState("0", "Home");
-            saveStateModel(sharedModelFilePath, emptyState);
-            return emptyState;
+        String lockFilePath = new File(new File(sharedModelFilePath).getParentFile(), LOCK_FILENAME).getPath();
+        long readVersion = SharedModelLock.readVersion(lockFilePath);
+        LoadedModel sharedModel = loadCachedSharedModel(sharedModelFilePath, readVersion);
+
+        if (sharedModel.state == null) {
+            sharedModel = createSharedStateModel(sharedModelFilePath, readVersion);
+            if (sharedModel.state == null) {
+                return new AppState("0", "Home");
+            }
         }
+        AppState sharedState = sharedModel.state;
+
+        // The shared state is cached and must not be modified
+        PersistenceEvents.Event copyEvent = PersistenceEvents.begin(PersistenceEvents.DEEP_COPY, product);
+        long start = System.nanoTime();
+        AppState state = deepCopy(sharedState);
+        MultiUserMetrics.forProduct(product).recordPhase(MultiUserMetrics.Phase.DEEP_COPY, System.nanoTime() - start);
+        copyEvent.model(state).commit();
 
-        AppState state = parseCompleteAppState(jsonModel);
 //        removeAllMarkedAsDeletedWidgets(state);
 
 //        markAsDeletedWidgetsInGUI(state);
 
-        stateFromSessionStart = deepCopy(state);
+        stateFromSessionStart = sharedState;
+        // Journal records do not change the version, the replayed length tells models of the same version apart
+        if (sharedModel.journalLength != LoadedModel.UNKNOWN_JOURNAL_LENGTH) {
+            sessionBaseVersion = sharedModel.version;
+            sessionBaseJournalLength = sharedModel.journalLength;
+        }
+        // Only a model read from the state model file alone can be linked as base of session deltas
+        boolean linkable = !isShardedStorageEnabled() && !getJournal(sharedModelFilePath).exists();
+        sessionBaseStamp = linkable ? sharedModel.stamp : null;
 
         startingHomeLocator = StateController.getHomeLocator();
 
-        log("Elenco tutti i widget initial state" + state.getAllIncludingChildWidgets().stream()
+        PluginLog.debug(() -> "Elenco tutti i widget initial state" + state.getAllIncludingChildWidgets().stream()
                 .filter(w -> w.getWidgetVisibility() == Widget.WidgetVisibility.VISIBLE).collect(Collectors.toList()));
 
         return state;
     }
 
     protected void removeAllMarkedAsDeletedWidgets(AppState state) {
-        Iterator<Widget> iter = state.getAllIncludingChildWidgets().iterator();
-        while (iter.hasNext()) {
-            Widget widget = iter.next();
-            if (!isMarkedAsDeleted(widget)) {
-                continue;
-            }
-            AppState widgetState = state.findState(widget);
-            if (widgetState == null) {
-                continue;
+        StateTraversal.forEachWidget(state, (widgetState, widget) -> {
+            if (!Tombstones.isMarkedAsDeleted(widget)) {
+                return;
             }
 
             log("Remove as deleted marked widget with id " + widget.getId() + " from state with id " + widgetState.getId());
             widgetState.removeWidget(widget);
-        }
+        });
     }
 
     protected void markAsDeletedWidgetsInGUI(AppState state, Graphics2D g2) {
-        Iterator<Widget> iter = state.getVisibleWidgets().iterator();
-        while (iter.hasNext()) {
-            Widget widget = iter.next();
-            if (!isMarkedAsDeleted(widget)) {
-                continue;
-            }
-//            AppState widgetState = state.findState(widget);
-//            if (widgetState == null) {
-//                continue;
-//            }
-
-//          Create a graphic representation of the deleted widget
-            Rectangle rect = widget.getLocationArea();
-            if (rect != null) {
-                drawRect(g2, rect);
-            }
-        }
+        deletedWidgetOverlay.paint(g2, state, StateController.getCaptureScaledWidth(), StateController.getCaptureScaledHeight());
     }
 
     public void paintCaptureForeground(Graphics g) {
@@ -269,53 +333,6 @@ public class MultiUser {
         markAsDeletedWidgetsInGUI(StateController.getCurrentState(), g2);
     }
 
-    private void drawRect(Graphics2D g2, Rectangle rect) {
-        int x = StateController.getScaledX((int) rect.getX() + 1);
-        int y = StateController.getScaledY((int) rect.getY() + 1);
-        int width = StateController.getScaledX((int) rect.getWidth() - 2);
-        int height = StateController.getScaledY((int) rect.getHeight() - 2);
-
-        g2.setStroke(new BasicStroke(3));
-        g2.setColor(Color.red);
-//        g2.fillRect(x, y, width, height);
-//        g2.setColor(Color.black);
-        g2.drawRect(x, y, width, height);
-
-//        Composite c_old = g2.getComposite();
-//        Composite c = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, .4f);
-//        g2.setComposite(c);
-//
-//        double angle = Math.toDegrees(Math.atan2(height, width));
-//        double ipotenuse = Math.sqrt(width * width + height * height);
-//        Font fontForCalculation = new Font(null, Font.PLAIN, 20);
-//        AffineTransform affineTransform = new AffineTransform();
-//        FontRenderContext frc = new FontRenderContext(affineTransform, true, true);
-//        float textWidth = (float) (fontForCalculation.getStringBounds("DELETED", frc).getWidth());
-//        float textHeight = (float) (fontForCalculation.getStringBounds("DELETED", frc).getHeight());
-//        double upperWidth = ipotenuse * Math.cos(Math.toRadians(angle));
-//        int fontSize = (int) ((upperWidth / (textWidth)) * 20.0f);
-//
-//        Font font = new Font(null, Font.PLAIN, fontSize);
-//        AffineTransform affineTransform1 = new AffineTransform();
-//        float textHeight1 = (float) (fontForCalculation.getStringBounds("DELETED", frc).getHeight());
-//        double newAngle = Math.toDegrees(Math.atan2(height - Math.min(textHeight*Math.sin(Math.toRadians(90-angle)), textHeight1*Math.sin(Math.toRadians(90-angle))), width - 2));
-//        affineTransform1.rotate(Math.toRadians(newAngle), 0, 0);
-//        Font rotatedFont = font.deriveFont(affineTransform1);
-//
-//        FontRenderContext frc1 = new FontRenderContext(affineTransform, true, true);
-//        AffineTransform affineTransform2 = new AffineTransform();
-//        float textWidth2 = (float) (rotatedFont.getStringBounds("DELETED", frc1).getWidth());
-//        float textHeight2 = (float) (rotatedFont.getStringBounds("DELETED", frc1).getHeight());
-//        int fontSize1 = (int) ((upperWidth / (textWidth2)) * fontSize);
-//        Font font1 = new Font(null, Font.PLAIN, fontSize1);
-//        affineTransform2.rotate(Math.toRadians(newAngle), 0, 0);
-//        Font rotatedFont1 = font1.deriveFont(affineTransform2);
-//
-//        g2.setFont(rotatedFont1);
-//        g2.drawString("DELETED", x + 10, (int) (y + Math.min(textHeight*Math.sin(Math.toRadians(90-angle)), textHeight1*Math.sin(Math.toRadians(90-angle)))));
-//        g2.setComposite(c_old);
-    }
-
     private String getFilePathForProduct(String product) {
         if (product.isEmpty()) {
             return DATA_FILEPATH;
@@ -337,116 +354,789 @@ public class MultiUser {
         }
     }
 
-    private JSONObject loadJSONModel(String filePath) {
-        JSONParser jsonParser = new JSONParser();
-        JSONObject jsonState = null;
-        try {
-            FileReader reader = new FileReader(filePath);
-            jsonState = (JSONObject) jsonParser.parse(reader);
-            reader.close();
+    /**
+     * Load a state model file. If the file is missing or cannot be read, e.g. after a crash,
+     * the backup of the file is loaded, the last known good state model.
+     */
+    protected AppState loadStateModel(String filePath) {
+        return loadStateModelFile(filePath).state;
+    }
+
+    private LoadedModel loadStateModelFile(String filePath) {
+        LoadedModel model = readStateModel(filePath);
+        if (model.state != null) {
+            return model;
+        }
+
+        Path backupPath = AtomicFileWriter.backupOf(Paths.get(filePath));
+        if (!Files.exists(backupPath)) {
+            return LoadedModel.NONE;
+        }
+        log("Load the last known good state model: " + backupPath);
+        // The backup is neither linked nor cached as the state model file
+        return readStateModel(backupPath.toString()).withoutStamp();
+    }
+
+    private LoadedModel readStateModel(String filePath) {
+        SharedModelCache.FileStamp stamp = SharedModelCache.FileStamp.of(Paths.get(filePath));
+        CRC32 checksum = new CRC32();
+        try (Reader reader = new BufferedReader(new InputStreamReader(
+                SessionArchive.decode(new CheckedInputStream(new FileInputStream(filePath), checksum)), Charset.defaultCharset()), 1 << 16)) {
+            MultiUserMetrics metrics = getMetrics(filePath);
+            PersistenceEvents.Event loadEvent = PersistenceEvents.begin(PersistenceEvents.LOAD, metrics.getProduct());
+            JSONStateReader stateReader = new JSONStateReader();
+            long start = System.nanoTime();
+            new JSONParser().parse(reader, stateReader);
+            long read = System.nanoTime();
+            PersistenceEvents.Event parseEvent = PersistenceEvents.begin(PersistenceEvents.PARSE, metrics.getProduct());
+            AppState state = stateReader.getAppState();
+            metrics.recordPhase(MultiUserMetrics.Phase.READ, read - start);
+            metrics.recordPhase(MultiUserMetrics.Phase.PARSE, System.nanoTime() - read);
+            metrics.recordBytesRead(stamp.size);
+            parseEvent.model(state).commit();
+            loadEvent.model(state).bytes(stamp.size).commit();
+            return new LoadedModel(state, stateReader.getLastUpdatedAtMs(), stamp.withChecksum(checksum.getValue()), 0);
         } catch (FileNotFoundException nfe) {
             log("State model file not found at location '" + filePath + "'. Start with empty model.");
-            return null;
+            return LoadedModel.NONE;
         } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+            PluginLog.error("Unable to load state model file '" + filePath + "': " + e.getMessage(), e);
+            return LoadedModel.NONE;
         }
-
-        return jsonState;
     }
 
     /**
      * Save the state tree for the current product.
+     * <p>
+     * In asynchronous save mode, the state tree is saved in the background and true is returned immediately.
+     * The result of the save can be retrieved with {@link #saveStateAsync()} instead.
      *
      * @return true if done
      */
     public Boolean saveState() {
-        String product = StateController.getProduct();
+        if (isAsyncSaveEnabled()) {
+            saveStateAsync();
+            return true;
+        }
+        if (!saveState(createSaveRequest(StateController.getStateTree()))) {
+            return false;
+        }
 
-        String productFilePath = getFilePathForProduct(product);
+        // Update products
+        StateController.setProducts(getFolders(DATA_FILEPATH));
+        return true;
+    }
+
+    /**
+     * Save a copy of the state tree for the current product in the background. Saves of the same product
+     * that have not started yet are replaced by this save, as the current state tree contains all their changes.
+     *
+     * @return completed with true if the state tree has been saved
+     */
+    public CompletableFuture<Boolean> saveStateAsync() {
+        SaveRequest request = createSaveRequest(deepCopy(StateController.getStateTree()));
+        CompletableFuture<Boolean> result = getSaveScheduler().submit(request.product, () -> saveState(request));
+        log("Save state tree of " + request.product + " in the background");
+        return result.whenComplete((done, e) -> {
+            if (e != null) {
+                PluginLog.error("Unable to save state tree of " + request.product + ": " + e.getMessage(), e);
+                return;
+            }
+            if (!done) {
+                PluginLog.error("Unable to save state tree of " + request.product);
+                return;
+            }
+            // The products are updated on the event dispatch thread like the other changes of Scout's state, not by the save thread
+            List<String> products = getFolders(DATA_FILEPATH);
+            SwingUtilities.invokeLater(() -> StateController.setProducts(products));
+        });
+    }
+
+    /**
+     * @return true if a save of the current product is running or waiting to be run
+     */
+    public boolean isSaving() {
+        SaveScheduler scheduler = saveScheduler;
+        return scheduler != null && scheduler.isSaving(StateController.getProduct());
+    }
 
-        createFolderIfNotExist(productFilePath);
+    /**
+     * Everything needed to save a session, taken when the save is requested.
+     */
+    protected static class SaveRequest {
+        final String product;
+        final String productFilePath;
+        final String sharedModelFilePath;
+        final String sessionModelFilePath;
+        final AppState stateFromSessionStart;
+        final Long baseVersion;
+        final long baseJournalLength;
+        final SharedModelCache.FileStamp baseStamp;
+        final AppState sessionState;
+        final Properties productProperties;
+
+        /**
+         * @param baseVersion       version of the shared state model the session has started from, if known
+         * @param baseJournalLength length of the journal replayed onto that version, 0 if there is none
+         * @param baseStamp         stamp of the shared state model file when it was loaded, if it can be linked
+         */
+        SaveRequest(String product, String productFilePath, String sharedModelFilePath, String sessionModelFilePath,
+                AppState stateFromSessionStart, Long baseVersion, long baseJournalLength, SharedModelCache.FileStamp baseStamp,
+                AppState sessionState, Properties productProperties) {
+            this.product = product;
+            this.productFilePath = productFilePath;
+            this.sharedModelFilePath = sharedModelFilePath;
+            this.sessionModelFilePath = sessionModelFilePath;
+            this.stateFromSessionStart = stateFromSessionStart;
+            this.baseVersion = baseVersion;
+            this.baseJournalLength = baseJournalLength;
+            this.baseStamp = baseStamp;
+            this.sessionState = sessionState;
+            this.productProperties = productProperties;
+        }
+
+        /**
+         * @return key of the shared state model the session has started from, see {@link SessionArchive#baseKey(long, long)}
+         */
+        String baseKey() {
+            return SessionArchive.baseKey(baseVersion, baseJournalLength);
+        }
+    }
+
+    protected SaveRequest createSaveRequest(AppState sessionState) {
+        String product = StateController.getProduct();
+        String productFilePath = getFilePathForProduct(product);
+        String sharedModelFilePath = sharedModelFolder + "/" + product + "/" + MODEL_FILENAME;
+        long now = Instant.now().toEpochMilli();
+        SessionArchive archive = getSessionArchive(productFilePath);
+        boolean delta = isDeltaSnapshotEnabled() && stateFromSessionStart != null && sessionBaseVersion != null;
+        String sessionModelFilePath = (delta ? archive.newDeltaPath(now, SessionArchive.baseKey(sessionBaseVersion, sessionBaseJournalLength))
+                : archive.newSnapshotPath(now)).toString();
+
+        Properties productProperties = new Properties();
+        if (StateController.getProductProperties() != null) {
+            productProperties.putAll(StateController.getProductProperties());
+        }
+        return new SaveRequest(product, productFilePath, sharedModelFilePath, sessionModelFilePath,
+                stateFromSessionStart, sessionBaseVersion, sessionBaseJournalLength, sessionBaseStamp, sessionState, productProperties);
+    }
 
-        String sharedModelFilePath = sharedModelFolder + "/" + StateController.getProduct() + "/" + MODEL_FILENAME;
+    protected boolean saveState(SaveRequest request) {
+        createFolderIfNotExist(request.productFilePath);
 
-        AppState sessionState = StateController.getStateTree();
+        AppState sessionState = request.sessionState;
 //        log("Elenco tutti i widget initial state" + stateFromSessionStart.getAllIncludingChildWidgets().stream()
 //                .filter(w -> w.getWidgetVisibility() == Widget.WidgetVisibility.VISIBLE).collect(Collectors.toList()));
 //        log("Elenco tutti i widget session state" + stateFromSessionStart.getAllIncludingChildWidgets().stream()
 //                .filter(w -> w.getWidgetVisibility() == Widget.WidgetVisibility.VISIBLE).collect(Collectors.toList()));
-        annotateDiffsInStates(stateFromSessionStart, sessionState);
-
-        JSONObject jsonSharedModel = loadJSONModel(sharedModelFilePath);
-        AppState currentSharedState = parseCompleteAppState(jsonSharedModel);
-        AppState mergedSharedModel = mergeStateChanges(currentSharedState, sessionState);
+        PersistenceEvents.Event annotateEvent = PersistenceEvents.begin(PersistenceEvents.ANNOTATE, request.product);
+        long start = System.nanoTime();
+        annotateDiffsInStates(request.stateFromSessionStart, sessionState);
+        MultiUserMetrics.forProduct(request.product).recordPhase(MultiUserMetrics.Phase.ANNOTATE, System.nanoTime() - start);
+        annotateEvent.model(sessionState).commit();
+
+        // The base of a delta is archived before the merge replaces the shared state model file
+        String sessionModelFilePath = request.sessionModelFilePath;
+        boolean delta = SessionArchive.isDelta(Paths.get(sessionModelFilePath));
+        if (delta && !archiveSessionBase(request)) {
+            delta = false;
+            sessionModelFilePath = getSessionArchive(request.productFilePath).newSnapshotPath(Instant.now().toEpochMilli()).toString();
+        }
 
-        if (!saveStateModel(sharedModelFilePath, mergedSharedModel)) {
+        if (!mergeIntoSharedStateModel(request.sharedModelFilePath, sessionState)) {
             return false;
         }
 
-        String sessionModelFilePath = productFilePath + "/" + "session-state-" + dfFiles.format(new Date()) + ".json";
-        if (!saveStateModel(sessionModelFilePath, sessionState)) {
+        boolean saved = delta
+                ? saveStateModel(sessionModelFilePath, SessionDelta.of(request.stateFromSessionStart, sessionState), request.baseVersion)
+                : saveStateModel(sessionModelFilePath, sessionState);
+        if (!saved) {
             return false;
         }
+        enforceSessionRetention(request.productFilePath);
 
-        String propertiesFilePath = productFilePath + "/" + PRODUCT_PROPERTIES_FILE;
-        saveProductProperties(propertiesFilePath);
-
-        // Update products
-        StateController.setProducts(getFolders(DATA_FILEPATH));
+        String propertiesFilePath = request.productFilePath + "/" + PRODUCT_PROPERTIES_FILE;
+        saveProductProperties(propertiesFilePath, request.productProperties);
 
         return true;
     }
 
+    /**
+     * Archive the shared state model the session has started from, the base its delta snapshot applies to.
+     * The shared state model file is linked if it is unchanged since it has been loaded, otherwise the base is written.
+     *
+     * @return true if the base is archived
+     */
+    protected boolean archiveSessionBase(SaveRequest request) {
+        SessionArchive archive = getSessionArchive(request.productFilePath);
+        String baseKey = request.baseKey();
+        if (archive.getBasePath(baseKey) != null) {
+            return true;
+        }
+        if (archive.linkBase(baseKey, Paths.get(request.sharedModelFilePath), request.baseStamp)) {
+            log("Link the shared state model of version " + request.baseVersion + " as base of session deltas");
+            return true;
+        }
+        return saveStateModel(archive.newBasePath(baseKey).toString(), request.stateFromSessionStart, request.baseVersion);
+    }
+
+    private static synchronized SaveScheduler getSaveScheduler() {
+        if (saveScheduler == null) {
+            SaveScheduler scheduler = new SaveScheduler();
+            // Saves still waiting when Scout exits are run before the JVM stops
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> scheduler.shutdown(SAVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+            saveScheduler = scheduler;
+        }
+        return saveScheduler;
+    }
+
+    /**
+     * Wait for the saves of a product running in the background, at most {@link #getSaveWaitSeconds()}.
+     */
+    protected void awaitSaves(String product) {
+        SaveScheduler scheduler = saveScheduler;
+        if (scheduler != null && scheduler.isSaving(product)) {
+            log("Wait for the state tree of " + product + " to be saved");
+            if (!scheduler.await(product, getSaveWaitSeconds(), TimeUnit.SECONDS)) {
+                PluginLog.warn("The state tree of " + product + " has not been saved in time, it is loaded without the last session");
+            }
+        }
+    }
+
+    /**
+     * @return seconds to wait for a save running in the background before the state tree is loaded
+     */
+    protected long getSaveWaitSeconds() {
+        return Math.min(SAVE_TIMEOUT_SECONDS, Math.max(0, getLongSystemProperty("multiUserPlugin.saveWaitSeconds", DEFAULT_SAVE_WAIT_SECONDS)));
+    }
+
+    /**
+     * @return true to store the shared state model as shards, see {@link ShardedStateStore}
+     */
+    protected boolean isShardedStorageEnabled() {
+        return "sharded".equalsIgnoreCase(StateController.getSystemProperty("multiUserPlugin.storage", "file"));
+    }
+
+    protected int getShardDepth() {
+        return getIntSystemProperty("multiUserPlugin.shardDepth", 1);
+    }
+
+    protected boolean isParallelMergeEnabled() {
+        return Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.parallelMerge", "true"));
+    }
+
+    /**
+     * @return minimal number of states of a session subtree to merge it in parallel
+     */
+    protected int getParallelMergeThreshold() {
+        return getIntSystemProperty("multiUserPlugin.parallelMergeThreshold", 32);
+    }
+
+    protected boolean isParallelWriteEnabled() {
+        return Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.parallelWrite", "true"));
+    }
+
+    /**
+     * Newer formats are smaller and faster to read, but older versions of the plugin cannot read them and
+     * testers sharing a model folder may run different versions. So they are opt-in with
+     * "multiUserPlugin.fileFormat" (1 to 4) once all testers of the folder use this version.
+     *
+     * @return format of written state model files, by default {@link JSONStateParser#FORMAT_V1}
+     */
+    protected int getFileFormatVersion() {
+        return getIntSystemProperty("multiUserPlugin.fileFormat", JSONStateParser.FORMAT_V1);
+    }
+
+    protected SessionArchive getSessionArchive(String productFilePath) {
+        return new SessionArchive(Paths.get(productFilePath), isSessionCompressionEnabled());
+    }
+
+    /**
+     * @return true to save the changes of a session against the shared state model it has started from instead of
+     * the complete session state, see {@link SessionDelta}
+     */
+    protected boolean isDeltaSnapshotEnabled() {
+        return "delta".equalsIgnoreCase(StateController.getSystemProperty("multiUserPlugin.sessionSnapshots", "full"));
+    }
+
+    /**
+     * @return true to write session snapshots GZIP compressed
+     */
+    protected boolean isSessionCompressionEnabled() {
+        return Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.sessionCompression", "true"));
+    }
+
+    /**
+     * @return deflate level of compressed session snapshots, from 1 (fastest) to 9 (smallest)
+     */
+    protected int getSessionCompressionLevel() {
+        return Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION,
+                getIntSystemProperty("multiUserPlugin.sessionCompressionLevel", Deflater.BEST_SPEED)));
+    }
+
+    /**
+     * @return the session snapshots kept per product: by default the newest 100, of any age and size
+     */
+    protected SessionArchive.RetentionPolicy getSessionRetentionPolicy() {
+        return new SessionArchive.RetentionPolicy(getIntSystemProperty("multiUserPlugin.sessionRetentionCount", 100),
+                TimeUnit.DAYS.toMillis(getIntSystemProperty("multiUserPlugin.sessionRetentionDays", 0)),
+                getLongSystemProperty("multiUserPlugin.sessionRetentionSize", 0));
+    }
+
+    /**
+     * Delete the oldest session snapshots of the product folder in the background, see {@link #getSessionRetentionPolicy()}.
+     */
+    protected CompletableFuture<Integer> enforceSessionRetention(String productFilePath) {
+        SessionArchive.RetentionPolicy policy = getSessionRetentionPolicy();
+        return getSessionArchive(productFilePath).enforceAsync(policy).whenComplete((deleted, e) -> {
+            if (e != null) {
+                PluginLog.warn("Unable to delete old session snapshots in " + productFilePath + ": " + e.getMessage(), e);
+            } else if (deleted > 0) {
+                log("Deleted " + deleted + " old session snapshots in " + productFilePath + " (" + policy + ")");
+            }
+        });
+    }
+
+    protected boolean isModelCacheEnabled() {
+        return Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.modelCache", "true"));
+    }
+
+    protected boolean isAsyncSaveEnabled() {
+        return Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.asyncSave", "false"));
+    }
+
     protected void createFolderIfNotExist(String filePath) {
         File file = new File(filePath);
         file.mkdirs();
     }
 
     protected boolean saveProductProperties(String filePath) {
+        return saveProductProperties(filePath, StateController.getProductProperties());
+    }
+
+    protected boolean saveProductProperties(String filePath, Properties properties) {
         try {
             FileWriter fileWriter = new FileWriter(filePath);
-            StateController.getProductProperties().store(fileWriter, null);
+            properties.store(fileWriter, null);
             fileWriter.close();
         } catch (Exception e) {
-            e.printStackTrace();
+            PluginLog.error("Unable to save product properties '" + filePath + "': " + e.getMessage(), e);
+            return false;
+        }
+
+        return true;
+    }
+
+    protected boolean saveStateModel(String filePath, AppState appState) {
+        return saveStateModel(filePath, appState, Instant.now().toEpochMilli());
+    }
+
+    /**
+     * Save a state model file atomically, an existing file is kept as backup.
+     */
+    protected boolean saveStateModel(String filePath, AppState appState, long lastUpdatedAtMs) {
+        boolean parallel = isParallelWriteEnabled();
+        int formatVersion = getFileFormatVersion();
+        MultiUserMetrics metrics = getMetrics(filePath);
+        long[] serializeNanos = new long[1];
+        try {
+            PersistenceEvents.Event saveEvent = PersistenceEvents.begin(PersistenceEvents.SAVE, metrics.getProduct());
+            long start = System.nanoTime();
+            AtomicFileWriter.Content content = out -> JSONStateWriter.writeAppState(appState, lastUpdatedAtMs, out, parallel, formatVersion);
+            if (SessionArchive.isCompressed(Paths.get(filePath))) {
+                content = SessionArchive.compressed(content, getSessionCompressionLevel());
+            }
+            AtomicFileWriter.Content timedContent = content;
+            AtomicFileWriter.write(Paths.get(filePath), out -> {
+                long serializeStart = System.nanoTime();
+                timedContent.writeTo(out);
+                serializeNanos[0] = System.nanoTime() - serializeStart;
+            }, getSyncMode(), true);
+            metrics.recordPhase(MultiUserMetrics.Phase.SERIALIZE, serializeNanos[0]);
+            metrics.recordPhase(MultiUserMetrics.Phase.WRITE, System.nanoTime() - start - serializeNanos[0]);
+            long bytes = Files.size(Paths.get(filePath));
+            metrics.recordBytesWritten(bytes);
+            if (!SessionArchive.isSnapshot(Paths.get(filePath))) {
+                metrics.recordModelSize(appState);
+            }
+            saveEvent.model(appState).bytes(bytes).commit();
+        } catch (Exception e) {
+            PluginLog.error("Unable to save state model as file: " + e.getMessage(), e);
+            return false;
+        }
+
+        log("Save state model file: " + filePath);
+        return true;
+    }
+
+    /**
+     * Merge the annotated session state into the shared state model and save it.
+     * <p>
+     * The shared model is loaded and merged without holding the lock of the model, and only saved
+     * while holding it. If another tester has saved the model in the meantime, which is detected
+     * by the version in the lock file, the model is loaded and merged again while holding the lock.
+     *
+     * @return true if done
+     */
+    protected boolean mergeIntoSharedStateModel(String sharedModelFilePath, AppState sessionState) {
+        String lockFilePath = new File(new File(sharedModelFilePath).getParentFile(), LOCK_FILENAME).getPath();
+
+        long readVersion = SharedModelLock.readVersion(lockFilePath);
+        LoadedModel currentSharedModel = loadCachedSharedModel(sharedModelFilePath, readVersion);
+        MultiUserMetrics metrics = getMetrics(sharedModelFilePath);
+        MergeIndex mergeIndex = new MergeIndex(isJournalEnabled());
+        mergeIndex.setMetrics(metrics);
+        AppState mergedSharedModel = mergeStateChanges(currentSharedModel.state, sessionState, mergeIndex);
+
+        try (SharedModelLock lock = SharedModelLock.acquire(lockFilePath, getLockAttempts(), getLockRetryDelay())) {
+            if (lock == null) {
+                log("Unable to lock the shared state model: " + sharedModelFilePath + " (" + SharedModelLock.getStatistics() + ")");
+                return false;
+            }
+
+            long version = lock.readVersion();
+            if (version != readVersion) {
+                log("Shared state model has been saved by another tester, merge again: " + sharedModelFilePath);
+                SharedModelLock.recordStaleRead();
+
+                currentSharedModel = loadSharedModel(sharedModelFilePath);
+                mergeIndex = new MergeIndex(isJournalEnabled());
+                mergeIndex.setMetrics(metrics);
+                mergedSharedModel = mergeStateChanges(currentSharedModel.state, sessionState, mergeIndex);
+            }
+
+            long newVersion = Math.max(Instant.now().toEpochMilli(), version + 1);
+            if (!saveSharedStateModel(sharedModelFilePath, mergedSharedModel, currentSharedModel.version, mergeIndex.getRecordedChanges(), newVersion)) {
+                return false;
+            }
+            lock.writeVersion(newVersion);
+            cacheSavedSharedModel(sharedModelFilePath, mergedSharedModel, currentSharedModel.version, newVersion);
+        } catch (Exception e) {
+            PluginLog.error("Unable to save the shared state model: " + e.getMessage(), e);
             return false;
         }
 
+        log("Shared state model lock: " + SharedModelLock.getStatistics());
         return true;
     }
 
-    private boolean saveStateModel(String filePath, AppState appState) {
-        String jsonState = "";
+    /**
+     * Put a saved shared state model into the cache, so the next load does not parse the files written by the save.
+     * Called while holding the lock of the model, after the new version has been written to the lock file.
+     *
+     * @param loadedVersion "last-updated-at-ms" of the state model file the changes were merged into
+     * @param newVersion    version of the lock file and "last-updated-at-ms" of a newly written state model file
+     */
+    private void cacheSavedSharedModel(String filePath, AppState state, Long loadedVersion, long newVersion) {
+        if (!isModelCacheEnabled()) {
+            return;
+        }
+
+        Path modelPath = getSnapshotPath(filePath);
+        Path journalPath = Paths.get(getJournalFilePath(filePath));
+        StateJournal journal = getJournal(filePath);
+        long journalLength;
+        SharedModelCache.FileStamp journalStamp;
+        synchronized (journal) {
+            journalLength = journal.getReplayedLength();
+            journalStamp = SharedModelCache.FileStamp.of(journalPath);
+        }
+        // The changes have been appended to the journal of the loaded state model file or a new one has been written
+        Long version = journalLength > 0 ? loadedVersion : Long.valueOf(newVersion);
+        SharedModelCache.FileStamp stamp = SharedModelCache.FileStamp.of(modelPath).withChecksum(SharedModelCache.checksum(modelPath));
+        sharedModelCache.put(modelPath, new SharedModelCache.Entry(state, version, newVersion, stamp, journalStamp, journalLength));
+    }
+
+    /**
+     * Save a shared state model with a home state, while holding the lock of the model like a merge does.
+     * If another tester has saved the model since it has been loaded, that model is not replaced.
+     *
+     * @param readVersion version of the lock file read before the model has been loaded
+     * @return the model saved by another tester or a model without state if there is none
+     */
+    protected LoadedModel createSharedStateModel(String sharedModelFilePath, long readVersion) {
+        String lockFilePath = new File(new File(sharedModelFilePath).getParentFile(), LOCK_FILENAME).getPath();
+        try (SharedModelLock lock = SharedModelLock.acquire(lockFilePath, getLockAttempts(), getLockRetryDelay())) {
+            if (lock == null) {
+                log("Unable to lock the shared state model: " + sharedModelFilePath + " (" + SharedModelLock.getStatistics() + ")");
+                return LoadedModel.NONE;
+            }
+
+            long version = lock.readVersion();
+            if (version != readVersion) {
+                log("Shared state model has been saved by another tester: " + sharedModelFilePath);
+                LoadedModel sharedModel = loadCachedSharedModel(sharedModelFilePath, version);
+                if (sharedModel.state != null) {
+                    return sharedModel;
+                }
+            }
+
+            long newVersion = Math.max(Instant.now().toEpochMilli(), version + 1);
+            if (saveSharedSnapshot(sharedModelFilePath, new AppState("0", "Home"), newVersion)) {
+                lock.writeVersion(newVersion);
+            }
+        } catch (Exception e) {
+            PluginLog.error("Unable to save the shared state model: " + e.getMessage(), e);
+        }
+        return LoadedModel.NONE;
+    }
+
+    protected AppState loadCachedSharedStateModel(String filePath) {
+        String lockFilePath = new File(new File(filePath).getParentFile(), LOCK_FILENAME).getPath();
+        return loadCachedSharedStateModel(filePath, SharedModelLock.readVersion(lockFilePath));
+    }
+
+    /**
+     * Load the shared state model like {@link #loadSharedStateModel(String)}, but take it from the cache
+     * if the files of the model have not changed since it was loaded last. The returned state is shared
+     * with the cache and must not be modified.
+     *
+     * @param lockVersion version of the lock file of the model, read before calling this method
+     */
+    protected AppState loadCachedSharedStateModel(String filePath, long lockVersion) {
+        return loadCachedSharedModel(filePath, lockVersion).state;
+    }
+
+    private LoadedModel loadCachedSharedModel(String filePath, long lockVersion) {
+        if (!isModelCacheEnabled()) {
+            return loadSharedModel(filePath);
+        }
+
+        Path modelPath = getSnapshotPath(filePath);
+        Path journalPath = Paths.get(getJournalFilePath(filePath));
+        SharedModelCache.Entry entry = sharedModelCache.get(modelPath, journalPath, lockVersion);
+        if (entry != null) {
+            log("Shared state model unchanged, take it from the cache: " + filePath + " (" + sharedModelCache.getStatistics() + ")");
+            return new LoadedModel(entry.getState(), entry.getVersion(), entry.model, entry.journalLength);
+        }
+
+        SharedModelCache.FileStamp journalStamp = SharedModelCache.FileStamp.of(journalPath);
+        LoadedModel model = loadSharedModel(filePath);
+        if (model.state != null && model.stamp != null) {
+            sharedModelCache.put(modelPath, new SharedModelCache.Entry(model.state, model.version, lockVersion, model.stamp,
+                    journalStamp, model.journalLength));
+        }
+        return model;
+    }
+
+    /**
+     * Load the sharded state model of the product folder of the state model file. If the product has
+     * not been stored sharded yet, the state model file is loaded.
+     */
+    protected AppState loadShardedStateModel(String filePath) {
+        return loadShardedModel(filePath).state;
+    }
+
+    private LoadedModel loadShardedModel(String filePath) {
+        ShardedStateStore store = getShardedStore(filePath);
+        Path backupPath = AtomicFileWriter.backupOf(store.getManifestPath());
+        if (!store.exists() && !Files.exists(backupPath)) {
+            return loadStateModelFile(filePath);
+        }
+
+        LoadedModel model = readShardedStateModel(store, store.getManifestPath());
+        if (model.state != null || !Files.exists(backupPath)) {
+            return model;
+        }
+        log("Load the last known good sharded state model: " + backupPath);
+        return readShardedStateModel(store, backupPath).withoutStamp();
+    }
+
+    private LoadedModel readShardedStateModel(ShardedStateStore store, Path manifestPath) {
+        SharedModelCache.FileStamp stamp = SharedModelCache.FileStamp.of(manifestPath);
         try {
-            jsonState = appStateAsJSONObject(appState).toJSONString();
+            MultiUserMetrics metrics = getMetrics(store.getManifestPath().toString());
+            PersistenceEvents.Event loadEvent = PersistenceEvents.begin(PersistenceEvents.LOAD, metrics.getProduct());
+            long start = System.nanoTime();
+            AppState state = store.read(manifestPath);
+            metrics.recordPhase(MultiUserMetrics.Phase.READ, System.nanoTime() - start);
+            loadEvent.model(state).commit();
+            return new LoadedModel(state, store.getLastUpdatedAtMs(), stamp.withChecksum(store.getManifestChecksum()), 0);
+        } catch (Exception e) {
+            PluginLog.error("Unable to load sharded state model '" + manifestPath + "': " + e.getMessage(), e);
+            return LoadedModel.NONE;
+        }
+    }
 
+    /**
+     * Save the snapshot of the shared state model, the state model file or the shards of the model.
+     *
+     * @param version "last-updated-at-ms" of the snapshot
+     * @return true if done
+     */
+    protected boolean saveSharedSnapshot(String filePath, AppState state, long version) {
+        if (!isShardedStorageEnabled()) {
+            return saveStateModel(filePath, state, version);
+        }
+
+        ShardedStateStore store = getShardedStore(filePath);
+        try {
+            MultiUserMetrics metrics = getMetrics(filePath);
+            PersistenceEvents.Event saveEvent = PersistenceEvents.begin(PersistenceEvents.SAVE, metrics.getProduct());
+            long start = System.nanoTime();
+            int written = store.write(state, version, getSyncMode());
+            metrics.recordPhase(MultiUserMetrics.Phase.WRITE, System.nanoTime() - start);
+            metrics.recordModelSize(state);
+            saveEvent.model(state).commit();
+            log("Save sharded state model: " + store.getManifestPath() + " (" + written + " changed shards written)");
+            return true;
         } catch (Exception e) {
-            log("Error while parsing app state as JSON object: " + e.getMessage());
-            e.printStackTrace();
+            PluginLog.error("Unable to save sharded state model: " + e.getMessage(), e);
             return false;
         }
+    }
+
+    /**
+     * @return the metrics of the product of a file in the folder of the product
+     */
+    protected MultiUserMetrics getMetrics(String filePath) {
+        Path folder = Paths.get(filePath).toAbsolutePath().getParent();
+        return MultiUserMetrics.forProduct(folder.getFileName().toString());
+    }
+
+    protected ShardedStateStore getShardedStore(String modelFilePath) {
+        return new ShardedStateStore(Paths.get(modelFilePath).toAbsolutePath().getParent(), getShardDepth());
+    }
+
+    /**
+     * @return path of the file the snapshot of the shared state model is read from
+     */
+    private Path getSnapshotPath(String modelFilePath) {
+        if (isShardedStorageEnabled()) {
+            ShardedStateStore store = getShardedStore(modelFilePath);
+            if (store.exists()) {
+                return store.getManifestPath();
+            }
+        }
+        return Paths.get(modelFilePath);
+    }
+
+    /**
+     * Load the shared state model: the state model file and, if present, the changes of its journal.
+     */
+    protected AppState loadSharedStateModel(String filePath) {
+        return loadSharedModel(filePath).state;
+    }
+
+    protected LoadedModel loadSharedModel(String filePath) {
+        LoadedModel model = isShardedStorageEnabled() ? loadShardedModel(filePath) : loadStateModelFile(filePath);
+        StateJournal journal = getJournal(filePath);
+        if (model.state == null || model.version == null || !journal.exists()) {
+            return model;
+        }
 
         try {
-            FileWriter fileWriter = new FileWriter(filePath);
-            PrintWriter printWriter = new PrintWriter(fileWriter);
-            printWriter.print(jsonState);
-            printWriter.close();
-            fileWriter.close();
+            int applied;
+            long journalLength;
+            // The length of the replay, not of a later append by the other thread
+            synchronized (journal) {
+                applied = journal.replay(model.state, model.version);
+                journalLength = journal.getReplayedLength();
+            }
+            if (applied > 0) {
+                log("Replayed " + applied + " changes from the journal of the state model file: " + filePath);
+            }
+            return model.withJournalLength(journalLength);
         } catch (Exception e) {
-            log("Unable to save state model as file: " + e.getMessage());
-            e.printStackTrace();
+            PluginLog.error("Unable to replay the journal of the state model file: " + e.getMessage(), e);
+            return model.withJournalLength(LoadedModel.UNKNOWN_JOURNAL_LENGTH);
+        }
+    }
+
+    /**
+     * Save the merged shared state model. In journal mode only the changes of the merge are appended
+     * to the journal, until the journal exceeds its size limit and is compacted into a new state model file.
+     *
+     * @param filePath      path of the state model file
+     * @param mergedState   shared state with the merged changes
+     * @param loadedVersion "last-updated-at-ms" of the state model file the changes were merged into
+     * @param changes       changes of the merge as journal records
+     * @return true if done
+     */
+    protected boolean saveSharedStateModel(String filePath, AppState mergedState, Long loadedVersion, List<String> changes) {
+        return saveSharedStateModel(filePath, mergedState, loadedVersion, changes, Instant.now().toEpochMilli());
+    }
+
+    /**
+     * @param version "last-updated-at-ms" for the state model file, if it is written
+     */
+    protected boolean saveSharedStateModel(String filePath, AppState mergedState, Long loadedVersion, List<String> changes, long version) {
+        StateJournal journal = getJournal(filePath);
+        if (isJournalEnabled() && loadedVersion != null) {
+            try {
+                journal.append(loadedVersion, changes);
+                log("Append " + changes.size() + " changes to the journal of the state model file: " + filePath);
+                if (journal.size() <= getJournalCompactionSize()) {
+                    return true;
+                }
+                log("Compact journal with " + journal.size() + " bytes into the state model file: " + filePath);
+            } catch (Exception e) {
+                // The state model file is written instead
+                PluginLog.warn("Unable to append to the journal of the state model file: " + e.getMessage(), e);
+            }
+        }
+
+        if (!saveSharedSnapshot(filePath, mergedState, version)) {
             return false;
         }
 
-        log("Save state model file: " + filePath);
+        // All changes of the journal are part of the state model file now
+        journal.delete();
         return true;
     }
 
-    private List<String> getFolders(String dirPath) {
+    protected StateJournal getJournal(String modelFilePath) {
+        return journals.computeIfAbsent(getJournalFilePath(modelFilePath), StateJournal::new);
+    }
+
+    private String getJournalFilePath(String modelFilePath) {
+        return new File(new File(modelFilePath).getParentFile(), JOURNAL_FILENAME).getPath();
+    }
+
+    protected boolean isJournalEnabled() {
+        return Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.journal", "false"));
+    }
+
+    /**
+     * @return what to flush to the storage device when a state model file is saved:
+     * none, file (default) or all (file and folder)
+     */
+    protected AtomicFileWriter.SyncMode getSyncMode() {
+        return AtomicFileWriter.SyncMode.parse(StateController.getSystemProperty("multiUserPlugin.fsync", "file"),
+                AtomicFileWriter.SyncMode.FILE);
+    }
+
+    protected int getLockAttempts() {
+        return getIntSystemProperty("multiUserPlugin.lockAttempts", 100);
+    }
+
+    protected long getLockRetryDelay() {
+        return getIntSystemProperty("multiUserPlugin.lockRetryDelayMs", 100);
+    }
+
+    private int getIntSystemProperty(String key, int defaultValue) {
         try {
-            return Files.list(Paths.get(dirPath))
-                    .filter(path -> Files.isDirectory(path))
+            return Integer.parseInt(StateController.getSystemProperty(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private long getLongSystemProperty(String key, long defaultValue) {
+        try {
+            return Long.parseLong(StateController.getSystemProperty(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    protected long getJournalCompactionSize() {
+        return getLongSystemProperty("multiUserPlugin.journalCompactionSize", DEFAULT_JOURNAL_COMPACTION_SIZE);
+    }
+
+    private List<String> getFolders(String dirPath) {
+        try (Stream<Path> paths = Files.list(Paths.get(dirPath))) {
+            return paths.filter(path -> Files.isDirectory(path))
                     .map(Path::getFileName)
                     .map(Path::toString)
                     .collect(Collectors.toList());
@@ -521,66 +1211,77 @@ public class MultiUser {
      * @param after  changed app state that shall be annotated
      */
     protected void annotateDiffsInStates(AppState before, AppState after) {
-        if (before == null && after == null) {
-            return;
-        }
-
-        List<Widget> remainingBeforeWidgets = new LinkedList<>();
-        List<Widget> afterWidgets = new LinkedList<>();
-
-        if (before != null) {
-            remainingBeforeWidgets = new LinkedList<>(before.getVisibleWidgets());
-//            log("before state id" + before.getId());
-//            log("before widgets" + before.getVisibleWidgets());
-        }
-//        else{
-//            log("Before is null");
-//            if(after != null){
-//                log("After is not null");
-//                log(after.getId());
-//            }
-//        }
+        StateTraversal.run(new AnnotateDiffsStep(before, after));
+    }
 
-        if (after != null) {
-            afterWidgets = new LinkedList<>(after.getVisibleWidgets());
-//            log("after state id" + after.getId());
-//            log("after widgets" + after.getVisibleWidgets());
-        }
+    /**
+     * Annotates the differences of a state, the following states are annotated by the steps it returns.
+     */
+    private static final class AnnotateDiffsStep implements StateTraversal.Step {
+        private final AppState before;
+        private final AppState after;
 
+        // Widgets from before are removed from the index as soon as they are matched
+        private WidgetIndex remainingBeforeWidgets = null;
+        private Iterator<Widget> afterWidgets;
         // A map for annotating difference composed of WidgetID and DiffType
-        Map<String, DiffType> widgetDiff = new HashMap<>();
+        private final Map<String, DiffType> widgetDiff = new HashMap<>();
 
-        for (Widget afterWidget : afterWidgets) {
-            int foundIndex = indexOfSameWidget(afterWidget, remainingBeforeWidgets);
-            boolean isPresent = foundIndex >= 0;
+        AnnotateDiffsStep(AppState before, AppState after) {
+            this.before = before;
+            this.after = after;
+        }
 
-            DiffType diffType = DiffType.CREATED;
-            AppState nextStateFromWidgetBefore = null;
-            if (isPresent) {
-                diffType = DiffType.NO_CHANGES;
-                nextStateFromWidgetBefore = remainingBeforeWidgets.get(foundIndex).getNextState();
-                remainingBeforeWidgets.remove(foundIndex);
+        @Override
+        public StateTraversal.Step next() {
+            if (before == null && after == null) {
+                return null;
             }
-//            else {
-//                // Posso assegnare punti qui per nuovo widget trovato
-//            }
-
-            widgetDiff.put(afterWidget.getId(), diffType);
 
-            //the home state should not appear as a new state
-            if (nextStateFromWidgetBefore != null && nextStateFromWidgetBefore.isHome()) {
-                nextStateFromWidgetBefore = null;
+            if (remainingBeforeWidgets == null) {
+                remainingBeforeWidgets = new WidgetIndex(new LinkedList<>());
+                List<Widget> widgets = new LinkedList<>();
+                if (before != null) {
+                    remainingBeforeWidgets = new WidgetIndex(before.getVisibleWidgets());
+                }
+                if (after != null) {
+                    widgets = new LinkedList<>(after.getVisibleWidgets());
+                }
+                afterWidgets = widgets.iterator();
             }
-            AppState nextStateFromWidgetAfter = afterWidget.getNextState();
-            if (nextStateFromWidgetAfter != null && nextStateFromWidgetAfter.isHome()) {
-                nextStateFromWidgetAfter = null;
+
+            while (afterWidgets.hasNext()) {
+                Widget afterWidget = afterWidgets.next();
+                Widget foundWidget = remainingBeforeWidgets.take(afterWidget);
+                boolean isPresent = foundWidget != null;
+
+                DiffType diffType = DiffType.CREATED;
+                AppState nextStateFromWidgetBefore = null;
+                if (isPresent) {
+                    diffType = DiffType.NO_CHANGES;
+                    nextStateFromWidgetBefore = foundWidget.getNextState();
+                }
+
+                widgetDiff.put(afterWidget.getId(), diffType);
+
+                //the home state should not appear as a new state
+                if (nextStateFromWidgetBefore != null && nextStateFromWidgetBefore.isHome()) {
+                    nextStateFromWidgetBefore = null;
+                }
+                AppState nextStateFromWidgetAfter = afterWidget.getNextState();
+                if (nextStateFromWidgetAfter != null && nextStateFromWidgetAfter.isHome()) {
+                    nextStateFromWidgetAfter = null;
+                }
+                if (nextStateFromWidgetBefore != null || nextStateFromWidgetAfter != null) {
+                    return new AnnotateDiffsStep(nextStateFromWidgetBefore, nextStateFromWidgetAfter);
+                }
             }
-            annotateDiffsInStates(nextStateFromWidgetBefore, nextStateFromWidgetAfter);
-        }
 
-        remainingBeforeWidgets.forEach(deletedWidget -> widgetDiff.put(deletedWidget.getId(), DiffType.DELETED));
+            remainingBeforeWidgets.remaining().forEach(deletedWidget -> widgetDiff.put(deletedWidget.getId(), DiffType.DELETED));
 
-        after.putMetadata(META_DATA_DIFF, widgetDiff);
+            after.putMetadata(META_DATA_DIFF, widgetDiff);
+            return null;
+        }
     }
 
     /**
@@ -593,91 +1294,182 @@ public class MultiUser {
      * @return a copy of the shared state with changes merged from the session state.
      */
     protected AppState mergeStateChanges(AppState sharedState, AppState sessionState) {
-        AppState result = deepCopy(sharedState);
+        return mergeStateChanges(sharedState, sessionState, new MergeIndex());
+    }
 
-        doMergeStateChangesIntoShared(result, sessionState);
+    /**
+     * Merges changes like {@link #mergeStateChanges(AppState, AppState)}.
+     *
+     * @param index a new index for the merge pass, which can record the changes of the merge
+     */
+    protected AppState mergeStateChanges(AppState sharedState, AppState sessionState, MergeIndex index) {
+        MultiUserMetrics metrics = index.getMetrics();
+        String product = metrics == null ? null : metrics.getProduct();
+        PersistenceEvents.Event copyEvent = PersistenceEvents.begin(PersistenceEvents.DEEP_COPY, product);
+        long start = System.nanoTime();
+        AppState result = deepCopy(sharedState);
+        long copied = System.nanoTime();
+        copyEvent.model(result).commit();
+        PersistenceEvents.Event mergeEvent = PersistenceEvents.begin(PersistenceEvents.MERGE, product);
+
+        if (isParallelMergeEnabled() && result != null && sessionState != null && isTree(result) && isTree(sessionState)) {
+            Map<AppState, Integer> subtreeSizes = countSubtreeStates(sessionState);
+            int threshold = getParallelMergeThreshold();
+            ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(
+                    () -> doParallelMerge(result, sessionState, index, subtreeSizes, threshold, 0)));
+        } else {
+            doMergeStateChangesIntoShared(result, sessionState, index);
+        }
 
-        result.getVisibleStates().forEach(s -> s.removeMetadata(META_DATA_DIFF));
+        StateTraversal.forEachState(result, s -> s.removeMetadata(META_DATA_DIFF));
+        mergeEvent.model(result).commit();
 
+        if (metrics != null) {
+            metrics.recordPhase(MultiUserMetrics.Phase.DEEP_COPY, copied - start);
+            metrics.recordPhase(MultiUserMetrics.Phase.MERGE, System.nanoTime() - copied);
+            metrics.recordMerge(index.getCreatedWidgets(), index.getDeletedWidgets(), index.getUnchangedWidgets());
+        }
         return result;
     }
 
-    private void doMergeStateChangesIntoShared(AppState sharedState, AppState sessionState) {
-        if (sharedState == null && sessionState == null) {
-            return;
-        }
+    private void doMergeStateChangesIntoShared(AppState sharedState, AppState sessionState, MergeIndex index) {
+        StateTraversal.run(new MergeStep(sharedState, sessionState, index));
+    }
 
-        if (sessionState == null) {
-            return;
+    /**
+     * Merges a session state into a shared state. The merges of the following states a diff entry leads to
+     * are collected by the index and run as the steps this step returns, before the next diff entry.
+     * While the index defers merges, see {@link MergeIndex#startDeferring()}, no following states are merged.
+     */
+    private final class MergeStep implements StateTraversal.Step {
+        private final AppState sharedState;
+        private final AppState sessionState;
+        private final MergeIndex index;
+
+        private Iterator<Entry<String, DiffType>> diffItems = null;
+        private final Deque<MergeIndex.DeferredMerge> followingMerges = new ArrayDeque<>();
+
+        MergeStep(AppState sharedState, AppState sessionState, MergeIndex index) {
+            this.sharedState = sharedState;
+            this.sessionState = sessionState;
+            this.index = index;
         }
 
-        if (sharedState == null) {
-            log("Unable to merge session state into NULL shared state. Caused by state with id: " + sessionState.getId());
-            return;
+        @Override
+        public StateTraversal.Step next() {
+            if (diffItems == null && !start()) {
+                return null;
+            }
+
+            while (followingMerges.isEmpty() && diffItems.hasNext()) {
+                index.startCollecting();
+                try {
+                    mergeDiffItem(diffItems.next());
+                } finally {
+                    followingMerges.addAll(index.stopCollecting());
+                }
+            }
+
+            MergeIndex.DeferredMerge following = followingMerges.poll();
+            if (following == null) {
+                return null;
+            }
+            return new MergeStep(following.getSharedState(), following.getSessionState(), index);
         }
 
-        sessionState.getMetadataKeys().stream()
-                .filter(key -> sharedState.getMetadata(key) == null)
-                .filter(key -> !key.equalsIgnoreCase(META_DATA_DIFF))
-                .forEach(key -> sharedState.putMetadata(key, sessionState.getMetadata(key)));
+        /**
+         * @return false if there is nothing to merge
+         */
+        private boolean start() {
+            if (sharedState == null && sessionState == null) {
+                return false;
+            }
 
-        Map<String, DiffType> diffMap = getDiffMetaDataFromState(sessionState);
-        if (diffMap.isEmpty()) {
-            log("Session state with id " + sessionState.getId() + " doesn't have any diff annotations to proceed with merge.");
-            return;
+            if (sessionState == null) {
+                return false;
+            }
+
+            if (sharedState == null) {
+                log("Unable to merge session state into NULL shared state. Caused by state with id: " + sessionState.getId());
+                return false;
+            }
+
+            sessionState.getMetadataKeys().stream()
+                    .filter(key -> sharedState.getMetadata(key) == null)
+                    .filter(key -> !key.equalsIgnoreCase(META_DATA_DIFF))
+                    .forEach(key -> sharedState.putMetadata(key, sessionState.getMetadata(key)));
+
+            Map<String, DiffType> diffMap = getDiffMetaDataFromState(sessionState);
+            if (diffMap.isEmpty()) {
+                log("Session state with id " + sessionState.getId() + " doesn't have any diff annotations to proceed with merge.");
+                return false;
+            }
+            diffItems = diffMap.entrySet().iterator();
+            return true;
         }
-        for (Entry<String, DiffType> diffItem : diffMap.entrySet()) {
+
+        private void mergeDiffItem(Entry<String, DiffType> diffItem) {
             String widgetId = diffItem.getKey();
+            index.countDiff(diffItem.getValue());
 
             switch (diffItem.getValue()) {
                 case DELETED:
-                    handleMergeDeletion(sharedState.getWidget(widgetId));
+                    Widget deletedWidget = index.getWidget(sharedState, widgetId);
+                    handleMergeDeletion(deletedWidget, index.getDeletedAt());
+                    index.recordDeletion(sharedState, deletedWidget);
                     break;
                 case CREATED:
-                    handleMergeCreation(sharedState, sessionState, widgetId);
+                    handleMergeCreation(sharedState, sessionState, widgetId, index);
                     break;
                 case NO_CHANGES:
-                    handleMergeNoChange(sharedState, sessionState, widgetId);
+                    handleMergeNoChange(sharedState, sessionState, widgetId, index);
                     break;
                 default:
                     log("[Merge] DiffType '" + diffItem.getValue() + "' does not have a merging strategy");
                     break;
             }
-
         }
     }
 
     protected void handleMergeDeletion(Widget widget) {
-        markAsDeleted(widget);
+        handleMergeDeletion(widget, Instant.now().toEpochMilli());
+    }
+
+    protected void handleMergeDeletion(Widget widget, long deletedAt) {
+        markAsDeleted(widget, deletedAt);
 
         AppState nextState = widget.getNextState();
         if (nextState == null) {
             return;
         }
 
-        nextState.getAllIncludingChildWidgets().forEach(w -> markAsDeleted(w));
+        StateTraversal.forEachWidget(nextState, (state, w) -> markAsDeleted(w, deletedAt));
     }
 
-    protected void handleMergeCreation(AppState sharedState, AppState sessionState, String widgetId) {
-        Widget createdWidget = sessionState.getWidget(widgetId);
-        int foundIndex = indexOfSameWidget(createdWidget, sharedState.getVisibleWidgets());
-        boolean isPresentInSharedState = foundIndex >= 0;
+    protected void handleMergeCreation(AppState sharedState, AppState sessionState, String widgetId, MergeIndex index) {
+        Widget createdWidget = index.getWidget(sessionState, widgetId);
+        if (createdWidget == null) {
+            log("[Merge] Created widget with id " + widgetId + " not found in session state with id " + sessionState.getId());
+            return;
+        }
+
+        Widget widgetFromShared = index.findSameVisibleWidget(sharedState, createdWidget);
+        boolean isPresentInSharedState = widgetFromShared != null;
 
         if (isPresentInSharedState) {
-            Widget widgetFromShared = sharedState.getVisibleWidgets().get(foundIndex);
-            Widget widgetFromSession = sessionState.getWidget(widgetId);
-            mergeWidgetChanges(widgetFromShared, widgetFromSession);
+            mergeWidgetChanges(widgetFromShared, createdWidget);
+            index.recordMerge(sharedState, widgetFromShared);
 
-            doMergeStateChangesIntoShared(widgetFromShared.getNextState(), widgetFromSession.getNextState());
+            mergeFollowingStates(widgetFromShared.getNextState(), createdWidget.getNextState(), index);
             return;
         }
 
-        sharedState.addWidget(createdWidget);
+        index.addWidget(sharedState, createdWidget);
     }
 
-    protected void handleMergeNoChange(AppState sharedState, AppState sessionState, String widgetId) {
-        Widget originalWidget = sharedState.getWidget(widgetId);
-        Widget otherWidget = sessionState.getWidget(widgetId);
+    protected void handleMergeNoChange(AppState sharedState, AppState sessionState, String widgetId, MergeIndex index) {
+        Widget originalWidget = index.getWidget(sharedState, widgetId);
+        Widget otherWidget = index.getWidget(sessionState, widgetId);
 
         AppState nextStateFromShared = null;
         AppState nextStateFromSession = null;
@@ -689,7 +1481,168 @@ public class MultiUser {
             nextStateFromSession = otherWidget.getNextState();
         }
 
-        doMergeStateChangesIntoShared(nextStateFromShared, nextStateFromSession);
+        mergeFollowingStates(nextStateFromShared, nextStateFromSession, index);
+    }
+
+    private void mergeFollowingStates(AppState sharedState, AppState sessionState, MergeIndex index) {
+        if (!index.defer(sharedState, sessionState)) {
+            doMergeStateChangesIntoShared(sharedState, sessionState, index);
+        }
+    }
+
+    /**
+     * Merges the session state into the shared state, and the following states of the session state,
+     * which are independent of each other, in parallel.
+     * <p>
+     * The merges of the following states are deferred until the current state has been merged. Following
+     * states with at least threshold states are merged in parallel, each with its own index, the smaller ones
+     * sequentially. Merges into the same shared state are run one after the other in the order they were
+     * deferred, so the result is the same as of {@link #doMergeStateChangesIntoShared(AppState, AppState, MergeIndex)}.
+     * The state trees must not contain a state or widget more than once, see {@link #isTree(AppState)}.
+     * Below {@link #MAX_PARALLEL_MERGE_DEPTH} nested parallel merges all subtrees are merged sequentially,
+     * as each level of parallel merges needs stack space.
+     */
+    private void doParallelMerge(AppState sharedState, AppState sessionState, MergeIndex index,
+            Map<AppState, Integer> subtreeSizes, int threshold, int depth) {
+        List<MergeIndex.DeferredMerge> deferred = index.startDeferring();
+        try {
+            doMergeStateChangesIntoShared(sharedState, sessionState, index);
+        } finally {
+            index.stopDeferring();
+        }
+        if (deferred.isEmpty()) {
+            return;
+        }
+
+        // Merges into the same shared state in one task
+        Map<AppState, List<MergeIndex.DeferredMerge>> bySharedState = new IdentityHashMap<>();
+        List<List<MergeIndex.DeferredMerge>> groups = new ArrayList<>();
+        for (MergeIndex.DeferredMerge merge : deferred) {
+            List<MergeIndex.DeferredMerge> group = merge.getSharedState() == null ? null : bySharedState.get(merge.getSharedState());
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.add(group);
+                if (merge.getSharedState() != null) {
+                    bySharedState.put(merge.getSharedState(), group);
+                }
+            }
+            group.add(merge);
+        }
+
+        List<SubtreeMerge> forked = new ArrayList<>();
+        for (List<MergeIndex.DeferredMerge> group : groups) {
+            SubtreeMerge task = new SubtreeMerge(group, index.fork(), subtreeSizes, threshold, depth + 1);
+            if (task.isLarge()) {
+                task.fork();
+                forked.add(task);
+            } else {
+                task.compute();
+            }
+        }
+        forked.forEach(ForkJoinTask::join);
+
+        index.insertDeferredChanges(deferred);
+    }
+
+    /**
+     * Deferred merges into the same shared state, run in the order they were deferred.
+     */
+    private class SubtreeMerge extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final List<MergeIndex.DeferredMerge> merges;
+        final MergeIndex index;
+        final Map<AppState, Integer> subtreeSizes;
+        final int threshold;
+        final int depth;
+
+        SubtreeMerge(List<MergeIndex.DeferredMerge> merges, MergeIndex index, Map<AppState, Integer> subtreeSizes, int threshold, int depth) {
+            this.merges = merges;
+            this.index = index;
+            this.subtreeSizes = subtreeSizes;
+            this.threshold = threshold;
+            this.depth = depth;
+        }
+
+        boolean isLarge() {
+            return merges.stream().anyMatch(this::isLarge);
+        }
+
+        private boolean isLarge(MergeIndex.DeferredMerge merge) {
+            return depth < MAX_PARALLEL_MERGE_DEPTH && merge.getSharedState() != null
+                    && subtreeSizes.getOrDefault(merge.getSessionState(), 0) >= threshold;
+        }
+
+        @Override
+        protected void compute() {
+            for (MergeIndex.DeferredMerge merge : merges) {
+                if (isLarge(merge)) {
+                    doParallelMerge(merge.getSharedState(), merge.getSessionState(), index, subtreeSizes, threshold, depth);
+                } else {
+                    doMergeStateChangesIntoShared(merge.getSharedState(), merge.getSessionState(), index);
+                }
+                index.completeDeferred(merge, index);
+            }
+        }
+    }
+
+    /**
+     * @return true if no state and no widget can be reached more than once from the given state,
+     * so subtrees can be merged independently of each other
+     */
+    protected boolean isTree(AppState root) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<AppState> stack = new ArrayDeque<>();
+        stack.push(root);
+        visited.add(root);
+        while (!stack.isEmpty()) {
+            for (Widget widget : stack.pop().getAllWidgets()) {
+                if (!visited.add(widget)) {
+                    return false;
+                }
+                AppState nextState = widget.getNextState();
+                if (nextState != null && !nextState.isHome()) {
+                    if (!visited.add(nextState)) {
+                        return false;
+                    }
+                    stack.push(nextState);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of states of the subtree of each state
+     */
+    private Map<AppState, Integer> countSubtreeStates(AppState root) {
+        Map<AppState, Integer> sizes = new IdentityHashMap<>();
+        List<AppState> order = new ArrayList<>();
+        Deque<AppState> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            AppState state = stack.pop();
+            order.add(state);
+            for (Widget widget : state.getAllWidgets()) {
+                AppState nextState = widget.getNextState();
+                if (nextState != null && !nextState.isHome()) {
+                    stack.push(nextState);
+                }
+            }
+        }
+        // Following states are counted before the states leading to them
+        for (int i = order.size() - 1; i >= 0; i--) {
+            AppState state = order.get(i);
+            int size = 1;
+            for (Widget widget : state.getAllWidgets()) {
+                AppState nextState = widget.getNextState();
+                if (nextState != null && !nextState.isHome()) {
+                    size += sizes.getOrDefault(nextState, 0);
+                }
+            }
+            sizes.put(state, size);
+        }
+        return sizes;
     }
 
     protected void handleMergeChange(AppState sharedState, AppState sessionState, String widgetId) {
@@ -722,44 +1675,32 @@ public class MultiUser {
     }
 
     protected void markAsDeleted(Widget widget) {
+        markAsDeleted(widget, Instant.now().toEpochMilli());
+    }
+
+    protected void markAsDeleted(Widget widget, long deletedAt) {
         if (widget == null) {
             return;
         }
 
-        widget.putMetadata(DELETED_AT, Instant.now().toEpochMilli());
+        Tombstones.markAsDeleted(widget, deletedAt);
+        deletedWidgetOverlay.invalidate();
     }
 
     protected boolean isMarkedAsDeleted(Widget widget) {
-        try {
-            Object epochMilli = widget.getMetadata(DELETED_AT);
-            if (epochMilli == null) {
-                return false;
-            }
-            return parseLong(epochMilli.toString()) > 0;
-        } catch (Exception e) {
-            return false;
-        }
+        return Tombstones.isMarkedAsDeleted(widget);
     }
 
     private static void log(String message) {
-        String now = df.format(new Date());
-        System.out.printf("[%s] %s \n", now, message);
+        PluginLog.info(message);
     }
 
-    @SuppressWarnings("unchecked")
-    protected <T extends Serializable> T deepCopy(T original) {
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream(bos);
-            out.writeObject(original);
+    protected AppState deepCopy(AppState original) {
+        return AppStateCloner.copy(original);
+    }
 
-            ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
-            ObjectInputStream in = new ObjectInputStream(bis);
-            return (T) in.readObject();
-        } catch (Exception e) {
-            log("Unable to create a deep copy of an object: " + e.getMessage());
-            return null;
-        }
+    protected Widget deepCopy(Widget original) {
+        return AppStateCloner.copy(original);
     }
 
     // Begin of crowdsourcing plugin -- can be brought into a separate file
@@ -0,0 +1,290 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import scout.AppState;
+import scout.StateController;
+
+/**
+ * Metrics of loading, merging and saving the state models of a product.
+ * <p>
+ * There is one instance per product, registered as MXBean "plugin:type=MultiUserMetrics,product=..." with
+ * the platform MBean server, so it can be watched with JConsole or VisualVM. Registration can be disabled
+ * with the system property "multiUserPlugin.jmx" set to false, the metrics are recorded anyway.
+ */
+public class MultiUserMetrics implements MultiUserMetricsMXBean {
+
+    /**
+     * Phases of loading and saving a state model.
+     */
+    public enum Phase {
+        /** Reading and tokenizing a state model file, including the widgets of "all-widgets" */
+        READ("json-read"),
+        /** Building the state tree of a read file */
+        PARSE("parse"),
+        DEEP_COPY("deep-copy"),
+        ANNOTATE("diff-annotation"),
+        MERGE("merge"),
+        /** Encoding a state model into the temporary file */
+        SERIALIZE("serialize"),
+        /** Syncing and moving the temporary file into place */
+        WRITE("write");
+
+        private final String displayName;
+
+        Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /**
+     * Latencies of a phase in milliseconds.
+     */
+    public static class PhaseLatency {
+        private final long count;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p90Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+
+        @ConstructorProperties({ "count", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis" })
+        public PhaseLatency(long count, double meanMillis, double p50Millis, double p90Millis, double p99Millis, double maxMillis) {
+            this.count = count;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p90Millis = p90Millis;
+            this.p99Millis = p99Millis;
+            this.maxMillis = maxMillis;
+        }
+
+        static PhaseLatency of(LatencyHistogram histogram) {
+            return new PhaseLatency(histogram.getCount(), histogram.getMeanMillis(), histogram.getPercentileMillis(50),
+                    histogram.getPercentileMillis(90), histogram.getPercentileMillis(99), histogram.getMaxMillis());
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP90Millis() {
+            return p90Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+    }
+
+    private static final Map<String, MultiUserMetrics> products = new ConcurrentHashMap<>();
+
+    private final String product;
+    private final Map<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+    private final LongAdder merges = new LongAdder();
+    private final LongAdder createdWidgets = new LongAdder();
+    private final LongAdder deletedWidgets = new LongAdder();
+    private final LongAdder unchangedWidgets = new LongAdder();
+    private final AtomicLong lastMergeCreatedWidgets = new AtomicLong();
+    private final AtomicLong lastMergeDeletedWidgets = new AtomicLong();
+    private final AtomicLong lastMergeUnchangedWidgets = new AtomicLong();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final AtomicLong modelStates = new AtomicLong();
+    private final AtomicLong modelWidgets = new AtomicLong();
+
+    MultiUserMetrics(String product) {
+        this.product = product;
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * @return the metrics of the product, registered with the platform MBean server when first requested
+     */
+    public static MultiUserMetrics forProduct(String product) {
+        return products.computeIfAbsent(String.valueOf(product), p -> {
+            MultiUserMetrics metrics = new MultiUserMetrics(p);
+            if (Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.jmx", "true"))) {
+                metrics.register(ManagementFactory.getPlatformMBeanServer());
+            }
+            return metrics;
+        });
+    }
+
+    public static ObjectName objectNameOf(String product) throws JMException {
+        return new ObjectName("plugin:type=MultiUserMetrics,product=" + ObjectName.quote(product));
+    }
+
+    void register(MBeanServer server) {
+        try {
+            ObjectName name = objectNameOf(product);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            PluginLog.warn("Unable to register the metrics of " + product + ": " + e.getMessage());
+        }
+    }
+
+    // ********************************************
+    // * Recording                                *
+    // ********************************************
+
+    public void recordPhase(Phase phase, long nanos) {
+        phases.get(phase).record(nanos);
+    }
+
+    public void recordMerge(long created, long deleted, long unchanged) {
+        merges.increment();
+        createdWidgets.add(created);
+        deletedWidgets.add(deleted);
+        unchangedWidgets.add(unchanged);
+        lastMergeCreatedWidgets.set(created);
+        lastMergeDeletedWidgets.set(deleted);
+        lastMergeUnchangedWidgets.set(unchanged);
+    }
+
+    public void recordBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void recordBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * Record the size of a loaded or saved state model.
+     */
+    public void recordModelSize(AppState root) {
+        long[] counts = new long[2];
+        StateTraversal.forEachState(root, state -> {
+            counts[0]++;
+            counts[1] += state.getAllWidgets().size();
+        });
+        modelStates.set(counts[0]);
+        modelWidgets.set(counts[1]);
+    }
+
+    // ********************************************
+    // * MXBean                                   *
+    // ********************************************
+
+    @Override
+    public String getProduct() {
+        return product;
+    }
+
+    @Override
+    public Map<String, PhaseLatency> getPhaseLatencies() {
+        Map<String, PhaseLatency> latencies = new LinkedHashMap<>();
+        phases.forEach((phase, histogram) -> latencies.put(phase.getDisplayName(), PhaseLatency.of(histogram)));
+        return latencies;
+    }
+
+    public PhaseLatency getPhaseLatency(Phase phase) {
+        return PhaseLatency.of(phases.get(phase));
+    }
+
+    @Override
+    public long getMerges() {
+        return merges.sum();
+    }
+
+    @Override
+    public long getCreatedWidgets() {
+        return createdWidgets.sum();
+    }
+
+    @Override
+    public long getDeletedWidgets() {
+        return deletedWidgets.sum();
+    }
+
+    @Override
+    public long getUnchangedWidgets() {
+        return unchangedWidgets.sum();
+    }
+
+    @Override
+    public long getLastMergeCreatedWidgets() {
+        return lastMergeCreatedWidgets.get();
+    }
+
+    @Override
+    public long getLastMergeDeletedWidgets() {
+        return lastMergeDeletedWidgets.get();
+    }
+
+    @Override
+    public long getLastMergeUnchangedWidgets() {
+        return lastMergeUnchangedWidgets.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getModelStates() {
+        return modelStates.get();
+    }
+
+    @Override
+    public long getModelWidgets() {
+        return modelWidgets.get();
+    }
+
+    @Override
+    public void reset() {
+        phases.values().forEach(LatencyHistogram::reset);
+        merges.reset();
+        createdWidgets.reset();
+        deletedWidgets.reset();
+        unchangedWidgets.reset();
+        lastMergeCreatedWidgets.set(0);
+        lastMergeDeletedWidgets.set(0);
+        lastMergeUnchangedWidgets.set(0);
+        bytesRead.reset();
+        bytesWritten.reset();
+        modelStates.set(0);
+        modelWidgets.set(0);
+    }
+}
@@ -0,0 +1,50 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.Map;
+
+/**
+ * Metrics of loading, merging and saving the state models of a product, see {@link MultiUserMetrics}.
+ */
+public interface MultiUserMetricsMXBean {
+
+    String getProduct();
+
+    /**
+     * @return latencies of the phases by phase name
+     */
+    Map<String, MultiUserMetrics.PhaseLatency> getPhaseLatencies();
+
+    long getMerges();
+
+    long getCreatedWidgets();
+
+    long getDeletedWidgets();
+
+    long getUnchangedWidgets();
+
+    long getLastMergeCreatedWidgets();
+
+    long getLastMergeDeletedWidgets();
+
+    long getLastMergeUnchangedWidgets();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    /**
+     * @return number of states of the state model loaded or saved last
+     */
+    long getModelStates();
+
+    /**
+     * @return number of widgets of the state model loaded or saved last
+     */
+    long getModelWidgets();
+
+    void reset();
+}
@@ -0,0 +1,103 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import scout.AppState;
+import scout.StateController;
+
+/**
+ * Java Flight Recorder events of loading, copying, merging and saving state models.
+ * <p>
+ * Each operation is recorded as event "plugin.PersistenceOperation" with the product, the number of states
+ * and widgets of the model and the bytes read or written, so a recording shows which operation of a session
+ * was slow next to the garbage collections and file I/O of the same time. The events are implemented by a
+ * class which is only built and loaded on a JDK with Flight Recorder; on other JDKs and with the system
+ * property "multiUserPlugin.jfr" set to false, the events do nothing.
+ */
+public final class PersistenceEvents {
+
+    public static final String LOAD = "loadStateModel";
+    public static final String PARSE = "parseAppState";
+    public static final String DEEP_COPY = "deepCopy";
+    public static final String ANNOTATE = "annotateDiffsInStates";
+    public static final String MERGE = "mergeStateChanges";
+    public static final String SAVE = "saveStateModel";
+
+    /**
+     * An operation in progress, committed as event when it has ended.
+     */
+    public interface Event {
+        /**
+         * Set the model the operation has loaded, copied or saved. Its states and widgets are only counted
+         * if the event is committed to a recording.
+         */
+        Event model(AppState state);
+
+        Event bytes(long bytes);
+
+        void commit();
+    }
+
+    interface Factory {
+        Event begin(String operation, String product);
+    }
+
+    static final Event NOOP = new Event() {
+        @Override
+        public Event model(AppState state) {
+            return this;
+        }
+
+        @Override
+        public Event bytes(long bytes) {
+            return this;
+        }
+
+        @Override
+        public void commit() {
+        }
+    };
+
+    private static final String JFR_FACTORY = "plugin.JfrPersistenceEvents";
+    private static final Factory FACTORY = loadFactory();
+
+    private PersistenceEvents() {
+    }
+
+    /**
+     * Begin an operation.
+     *
+     * @return the event to commit after the operation, which does nothing if the event is not recorded
+     */
+    public static Event begin(String operation, String product) {
+        return FACTORY.begin(operation, product);
+    }
+
+    /**
+     * @return true if the events are recorded with Flight Recorder when a recording is running
+     */
+    public static boolean isAvailable() {
+        return !(FACTORY instanceof NoopFactory);
+    }
+
+    private static Factory loadFactory() {
+        if (!Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.jfr", "true"))) {
+            return new NoopFactory();
+        }
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Factory) Class.forName(JFR_FACTORY).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new NoopFactory();
+        }
+    }
+
+    private static final class NoopFactory implements Factory {
+        @Override
+        public Event begin(String operation, String product) {
+            return NOOP;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import scout.StateController;
+
+/**
+ * Log of the plugin, written to the console by a background thread.
+ * <p>
+ * Messages below the level of the log are dropped before they are built: a message given as
+ * {@link Supplier} is only evaluated if its level is enabled. Enabled messages are put into a ring
+ * buffer without locking and printed by a background thread; if the buffer is full, the message is
+ * dropped and counted instead of waiting for the console. The level is read from the system property
+ * "multiUserPlugin.logLevel" (DEBUG, INFO, WARN or ERROR, default INFO).
+ */
+public class PluginLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final class Entry {
+        final long timeMs;
+        final Level level;
+        final String message;
+
+        Entry(long timeMs, Level level, String message) {
+            this.timeMs = timeMs;
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    private static final class DefaultLog {
+        static final PluginLog INSTANCE = new PluginLog(parseLevel(
+                StateController.getSystemProperty("multiUserPlugin.logLevel", Level.INFO.name())), DEFAULT_CAPACITY, System.out);
+    }
+
+    private final Level level;
+    private final PrintStream out;
+    private final AtomicReferenceArray<Entry> buffer;
+    // Sequence of the next entry to add and of the next entry to print
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+
+    /**
+     * @param capacity number of entries which can wait to be printed
+     */
+    PluginLog(Level level, int capacity, PrintStream out) {
+        this.level = level;
+        this.out = out;
+        this.buffer = new AtomicReferenceArray<>(capacity);
+        this.writer = new Thread(this::printEntries, "multi-user-plugin-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return the log of the plugin
+     */
+    public static PluginLog get() {
+        return DefaultLog.INSTANCE;
+    }
+
+    public static void debug(Supplier<String> message) {
+        get().log(Level.DEBUG, message);
+    }
+
+    public static void info(String message) {
+        get().log(Level.INFO, message);
+    }
+
+    public static void warn(String message) {
+        get().log(Level.WARN, message);
+    }
+
+    public static void warn(String message, Throwable error) {
+        get().log(Level.WARN, message, error);
+    }
+
+    public static void error(String message) {
+        get().log(Level.ERROR, message);
+    }
+
+    public static void error(String message, Throwable error) {
+        get().log(Level.ERROR, message, error);
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void log(Level level, String message) {
+        if (isEnabled(level)) {
+            add(new Entry(System.currentTimeMillis(), level, message));
+        }
+    }
+
+    /**
+     * Log the message built by the supplier, the supplier is not called if the level is disabled.
+     */
+    public void log(Level level, Supplier<String> message) {
+        if (isEnabled(level)) {
+            add(new Entry(System.currentTimeMillis(), level, message.get()));
+        }
+    }
+
+    /**
+     * Log the message followed by the stack trace of the error, the stack trace is not formatted if the level is disabled.
+     */
+    public void log(Level level, String message, Throwable error) {
+        if (isEnabled(level)) {
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            add(new Entry(System.currentTimeMillis(), level, message + System.lineSeparator() + trace.toString().trim()));
+        }
+    }
+
+    /**
+     * @return number of messages dropped as the buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Wait until all messages logged before have been printed.
+     *
+     * @return false if they have not been printed within the timeout
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        long target = tail.get();
+        while (head.get() < target) {
+            if (System.nanoTime() > end) {
+                return false;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    private void add(Entry entry) {
+        int capacity = buffer.length();
+        while (true) {
+            long sequence = tail.get();
+            if (sequence - head.get() >= capacity) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                buffer.set((int) (sequence % capacity), entry);
+                return;
+            }
+        }
+    }
+
+    private void printEntries() {
+        int capacity = buffer.length();
+        long reportedDropped = 0;
+        while (true) {
+            long sequence = head.get();
+            int slot = (int) (sequence % capacity);
+            Entry entry = sequence < tail.get() ? buffer.get(slot) : null;
+            if (entry == null) {
+                // Nothing logged or the entry of the sequence is about to be set
+                out.flush();
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            long droppedNow = dropped.get();
+            if (droppedNow > reportedDropped) {
+                print(new Entry(entry.timeMs, Level.WARN, (droppedNow - reportedDropped) + " log messages dropped"));
+                reportedDropped = droppedNow;
+            }
+            print(entry);
+
+            buffer.set(slot, null);
+            head.set(sequence + 1);
+        }
+    }
+
+    private void print(Entry entry) {
+        String time = TIME_FORMAT.format(Instant.ofEpochMilli(entry.timeMs));
+        if (entry.level == Level.INFO) {
+            out.printf("[%s] %s \n", time, entry.message);
+        } else {
+            out.printf("[%s] %s %s \n", time, entry.level, entry.message);
+        }
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return Level.INFO;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs saves one after another on a background thread.
+ * <p>
+ * Saves are keyed, e.g. by product. A save submitted while an earlier save with the same key
+ * is still waiting to be run replaces the earlier one, and both submitters get the result of the
+ * later save. A save which is already running is never replaced.
+ */
+public class SaveScheduler {
+
+    private static class Pending {
+        Callable<Boolean> save;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Pending(Callable<Boolean> save) {
+            this.save = save;
+        }
+    }
+
+    private final ExecutorService executor;
+
+    // Saves waiting to be run and the last submitted save by key, guarded by this
+    private final Map<String, Pending> waiting = new HashMap<>();
+    private final Map<String, CompletableFuture<Boolean>> latest = new HashMap<>();
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public SaveScheduler() {
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "multi-user-save");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submit a save.
+     *
+     * @return completed with the result of the save, with false if the save threw an exception
+     */
+    public synchronized CompletableFuture<Boolean> submit(String key, Callable<Boolean> save) {
+        submittedCount.incrementAndGet();
+        Pending pending = waiting.get(key);
+        if (pending != null) {
+            pending.save = save;
+            coalescedCount.incrementAndGet();
+            return pending.result;
+        }
+
+        Pending newPending = new Pending(save);
+        waiting.put(key, newPending);
+        latest.put(key, newPending.result);
+        executor.execute(() -> run(key, newPending));
+        return newPending.result;
+    }
+
+    private void run(String key, Pending pending) {
+        Callable<Boolean> save;
+        synchronized (this) {
+            // Saves submitted from now on are run afterwards
+            waiting.remove(key);
+            save = pending.save;
+        }
+
+        try {
+            Boolean done = save.call();
+            if (!Boolean.TRUE.equals(done)) {
+                failedCount.incrementAndGet();
+            }
+            pending.result.complete(Boolean.TRUE.equals(done));
+        } catch (Throwable t) {
+            failedCount.incrementAndGet();
+            pending.result.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * @return the result of the last submitted save with the key, or null if there was none
+     */
+    public synchronized CompletableFuture<Boolean> getLatest(String key) {
+        return latest.get(key);
+    }
+
+    /**
+     * @return true if a save with the key is waiting or running
+     */
+    public boolean isSaving(String key) {
+        CompletableFuture<Boolean> result = getLatest(key);
+        return result != null && !result.isDone();
+    }
+
+    /**
+     * Wait until the last submitted save with the key has been run.
+     *
+     * @return false if the save failed or did not finish in time
+     */
+    public boolean await(String key, long timeout, TimeUnit unit) {
+        CompletableFuture<Boolean> result = getLatest(key);
+        if (result == null) {
+            return true;
+        }
+        try {
+            return result.get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Run the waiting saves and stop the background thread.
+     *
+     * @return true if all saves have been run in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+}
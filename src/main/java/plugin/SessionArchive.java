@@ -0,0 +1,376 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.simple.parser.ParseException;
+
+import scout.AppState;
+
+/**
+ * The session snapshots of a product folder, the "session-state-&lt;time&gt;.json" files saved at the end of each session.
+ * <p>
+ * Snapshots are written GZIP compressed as "session-state-&lt;time&gt;.json.gz", and older snapshots are deleted
+ * according to a {@link RetentionPolicy}. State model files are read with {@link #decode(InputStream)}, so compressed
+ * and uncompressed files can be read alike.
+ * <p>
+ * A snapshot can also be a {@link SessionDelta}, "session-state-&lt;time&gt;.delta-&lt;key&gt;.json.gz", which only
+ * contains the changes against the shared state model of the given key. That model is archived once as
+ * "session-base-&lt;key&gt;.json", preferably as hard link of the shared state model file, and deleted with the last
+ * delta referring to it. The key is the version of the state model file, followed by the length of its replayed
+ * journal if there is one, see {@link #baseKey(long, long)}: journal records do not change the version.
+ * {@link #readSession(Path)} reconstructs the session state of both kinds of snapshots.
+ */
+public class SessionArchive {
+
+    public static final String PREFIX = "session-state-";
+    public static final String SUFFIX = ".json";
+    public static final String COMPRESSED_SUFFIX = ".json.gz";
+    public static final String BASE_PREFIX = "session-base-";
+    private static final String DELTA_INFIX = ".delta-";
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss")
+            .withZone(ZoneId.systemDefault());
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final ExecutorService retentionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "multi-user-session-retention");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Limits of the snapshots kept in a product folder, a limit of 0 or less means no limit.
+     * The newest snapshot is always kept.
+     */
+    public static class RetentionPolicy {
+        final int maxCount;
+        final long maxAgeMs;
+        final long maxTotalBytes;
+
+        public RetentionPolicy(int maxCount, long maxAgeMs, long maxTotalBytes) {
+            this.maxCount = maxCount;
+            this.maxAgeMs = maxAgeMs;
+            this.maxTotalBytes = maxTotalBytes;
+        }
+
+        public boolean isUnlimited() {
+            return maxCount <= 0 && maxAgeMs <= 0 && maxTotalBytes <= 0;
+        }
+
+        @Override
+        public String toString() {
+            return "maxCount=" + maxCount + ", maxAgeMs=" + maxAgeMs + ", maxTotalBytes=" + maxTotalBytes;
+        }
+    }
+
+    private final Path folder;
+    private final boolean compress;
+
+    /**
+     * @param folder   product folder
+     * @param compress true to write new snapshots compressed
+     */
+    public SessionArchive(Path folder, boolean compress) {
+        this.folder = folder;
+        this.compress = compress;
+    }
+
+    /**
+     * @return path of a new snapshot taken at the given time
+     */
+    public Path newSnapshotPath(long timeMs) {
+        return folder.resolve(PREFIX + TIME_FORMAT.format(Instant.ofEpochMilli(timeMs)) + (compress ? COMPRESSED_SUFFIX : SUFFIX));
+    }
+
+    /**
+     * @param version       "last-updated-at-ms" of the shared state model file
+     * @param journalLength length of the journal replayed onto the state model file, 0 if there is none
+     * @return key of the shared state model as base of deltas
+     */
+    public static String baseKey(long version, long journalLength) {
+        return journalLength > 0 ? version + "-" + journalLength : Long.toString(version);
+    }
+
+    /**
+     * @param baseKey key of the shared state model the delta applies to, see {@link #baseKey(long, long)}
+     * @return path of a new delta snapshot taken at the given time
+     */
+    public Path newDeltaPath(long timeMs, String baseKey) {
+        return folder.resolve(PREFIX + TIME_FORMAT.format(Instant.ofEpochMilli(timeMs)) + DELTA_INFIX + baseKey
+                + (compress ? COMPRESSED_SUFFIX : SUFFIX));
+    }
+
+    /**
+     * @return path of a new archived base of the given key
+     */
+    public Path newBasePath(String baseKey) {
+        return folder.resolve(BASE_PREFIX + baseKey + (compress ? COMPRESSED_SUFFIX : SUFFIX));
+    }
+
+    /**
+     * @return path of the archived base of the given key or null if it has not been archived
+     */
+    public Path getBasePath(String baseKey) {
+        for (String suffix : new String[] { SUFFIX, COMPRESSED_SUFFIX }) {
+            Path base = folder.resolve(BASE_PREFIX + baseKey + suffix);
+            if (Files.exists(base)) {
+                return base;
+            }
+        }
+        return null;
+    }
+
+    public static boolean isSnapshot(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(PREFIX) && (name.endsWith(SUFFIX) || name.endsWith(COMPRESSED_SUFFIX));
+    }
+
+    public static boolean isCompressed(Path path) {
+        return path.getFileName().toString().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    public static boolean isDelta(Path path) {
+        return isSnapshot(path) && path.getFileName().toString().contains(DELTA_INFIX);
+    }
+
+    /**
+     * @return the key of the shared state model the delta snapshot applies to
+     */
+    public static String baseKeyOf(Path delta) {
+        String name = delta.getFileName().toString();
+        int start = name.indexOf(DELTA_INFIX) + DELTA_INFIX.length();
+        return name.substring(start, name.indexOf(SUFFIX, start));
+    }
+
+    /**
+     * @return the snapshots of the folder, oldest first
+     */
+    public List<Path> list() throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.filter(SessionArchive::isSnapshot)
+                    .sorted(Comparator.comparing(SessionArchive::timeOf))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // ********************************************
+    // * Encoding                                 *
+    // ********************************************
+
+    /**
+     * @return content which writes the given content GZIP compressed
+     */
+    public static AtomicFileWriter.Content compressed(AtomicFileWriter.Content content, int level) {
+        return out -> {
+            LeveledGZIPOutputStream gzip = new LeveledGZIPOutputStream(out, level);
+            try {
+                content.writeTo(gzip);
+                // The target stream is closed by the writer
+                gzip.finish();
+            } finally {
+                gzip.release();
+            }
+        };
+    }
+
+    /**
+     * @return a stream of the decompressed content if the given stream is GZIP compressed, otherwise of the content itself
+     */
+    public static InputStream decode(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        buffered.mark(2);
+        int magic = buffered.read() | (buffered.read() << 8);
+        buffered.reset();
+        return magic == GZIP_MAGIC ? new GZIPInputStream(buffered, BUFFER_SIZE) : buffered;
+    }
+
+    /**
+     * Read a snapshot or another state model file, compressed or not.
+     */
+    public static AppState read(Path path) throws IOException, ParseException {
+        return read(path, new JSONStateReader());
+    }
+
+    /**
+     * Read a delta snapshot, including the meta-data of its states.
+     */
+    public static AppState readDelta(Path delta) throws IOException, ParseException {
+        return read(delta, new JSONStateReader(true));
+    }
+
+    private static AppState read(Path path, JSONStateReader stateReader) throws IOException, ParseException {
+        try (Reader reader = new BufferedReader(new InputStreamReader(decode(Files.newInputStream(path)), Charset.defaultCharset()), BUFFER_SIZE)) {
+            return stateReader.read(reader);
+        }
+    }
+
+    /**
+     * Read the session state of a snapshot. The session state of a delta is reconstructed from its base.
+     * States of full snapshots and bases are read without their meta-data, the session state of a delta
+     * has the meta-data its session has changed, see {@link SessionDelta}.
+     */
+    public AppState readSession(Path snapshot) throws IOException, ParseException {
+        if (!isDelta(snapshot)) {
+            return read(snapshot);
+        }
+        String baseKey = baseKeyOf(snapshot);
+        Path base = getBasePath(baseKey);
+        if (base == null) {
+            throw new IOException("Shared state model " + baseKey + " for " + snapshot.getFileName() + " not found");
+        }
+        return SessionDelta.apply(read(base), readDelta(snapshot));
+    }
+
+    /**
+     * Archive the shared state model file as base of the given key by a hard link, so its content is not copied.
+     *
+     * @param loadedStamp stamp of the shared state model file when the base has been loaded from it
+     * @return false if the file has changed since or cannot be linked, so the base has to be written instead
+     */
+    public boolean linkBase(String baseKey, Path sharedModel, SharedModelCache.FileStamp loadedStamp) {
+        if (loadedStamp == null || !loadedStamp.exists) {
+            return false;
+        }
+        Path base = folder.resolve(BASE_PREFIX + baseKey + SUFFIX);
+        try {
+            Files.createLink(base, sharedModel);
+            if (SharedModelCache.FileStamp.of(base).isSameFile(loadedStamp)) {
+                return true;
+            }
+            // Replaced by another tester in the meantime
+            Files.deleteIfExists(base);
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            // Not supported by the file system
+        }
+        return false;
+    }
+
+    private static final class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        /**
+         * Release the memory of the deflater, which is otherwise only released when the stream is closed.
+         */
+        void release() {
+            def.end();
+        }
+    }
+
+    // ********************************************
+    // * Retention                                *
+    // ********************************************
+
+    /**
+     * Delete the oldest snapshots until the snapshots are within the limits of the policy.
+     *
+     * @return number of deleted snapshots
+     */
+    public int enforce(RetentionPolicy policy, long nowMs) throws IOException {
+        if (policy.isUnlimited()) {
+            return 0;
+        }
+        List<Path> snapshots = list();
+        int deleted = 0;
+        int kept = 0;
+        long keptBytes = 0;
+        Set<String> referencedBases = new HashSet<>();
+        Set<String> unreferencedBases = new HashSet<>();
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            Path snapshot = snapshots.get(i);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(snapshot, BasicFileAttributes.class);
+            } catch (IOException e) {
+                // Deleted in the meantime
+                continue;
+            }
+            boolean newest = kept == 0;
+            boolean keep = newest || ((policy.maxCount <= 0 || kept < policy.maxCount)
+                    && (policy.maxAgeMs <= 0 || nowMs - attributes.lastModifiedTime().toMillis() <= policy.maxAgeMs)
+                    && (policy.maxTotalBytes <= 0 || keptBytes + attributes.size() <= policy.maxTotalBytes));
+            if (keep) {
+                kept++;
+                keptBytes += attributes.size();
+                if (isDelta(snapshot)) {
+                    referencedBases.add(baseKeyOf(snapshot));
+                }
+            } else if (Files.deleteIfExists(snapshot)) {
+                deleted++;
+                if (isDelta(snapshot)) {
+                    unreferencedBases.add(baseKeyOf(snapshot));
+                }
+            }
+        }
+
+        // Bases are only deleted with their last delta, a base without delta may belong to a save in progress
+        unreferencedBases.removeAll(referencedBases);
+        for (String baseKey : unreferencedBases) {
+            Path base;
+            while ((base = getBasePath(baseKey)) != null) {
+                Files.deleteIfExists(base);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Enforce the policy on a background thread, one product folder after another.
+     *
+     * @return completed with the number of deleted snapshots
+     */
+    public CompletableFuture<Integer> enforceAsync(RetentionPolicy policy) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        retentionExecutor.execute(() -> {
+            try {
+                result.complete(enforce(policy, System.currentTimeMillis()));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return the time in the file name, which sorts like the text of the name without suffix
+     */
+    private static String timeOf(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return name.substring(PREFIX.length(), name.indexOf(SUFFIX, PREFIX.length()));
+    }
+}
@@ -0,0 +1,230 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetVisibility;
+
+/**
+ * The changes of a session against the shared state model it started from.
+ * <p>
+ * A delta is a state tree itself, so it is written and read like a state model file. It contains the states
+ * with changes, each with the widgets created in the session including their following states, a copy without
+ * following state of each deleted widget and the widgets which lead to following states with changes. The kind
+ * of each widget is kept in its meta-data "multi-user-delta". The meta-data of each state which the state of the
+ * base does not have, or has with another value, is kept as meta-data of the state of the delta. The delta is
+ * taken from a session state annotated by {@link MultiUser#annotateDiffsInStates(AppState, AppState)}, and widgets
+ * of the base are found by id like in the merge.
+ * <p>
+ * Changed properties of widgets which existed before the session and meta-data removed from states are not part
+ * of the delta, as they are not merged either. The session state reconstructed by {@link #apply(AppState, AppState)}
+ * has the same states and visible widgets as the session, with the meta-data of the session states. A delta file
+ * keeps meta-data values as text and is read with {@link SessionArchive#readDelta(java.nio.file.Path)}, while other
+ * state model files are read without the meta-data of states.
+ */
+public final class SessionDelta {
+
+    public static final String KIND = "multi-user-delta";
+    public static final String CREATED = "created";
+    public static final String DELETED = "deleted";
+    public static final String PATH = "path";
+
+    private SessionDelta() {
+    }
+
+    /**
+     * @param base    state the session has started from
+     * @param session annotated session state
+     * @return the delta of the session, a state without widgets if nothing has changed
+     */
+    public static AppState of(AppState base, AppState session) {
+        DeltaStep step = new DeltaStep(base, session, new AppStateCloner(), Collections.newSetFromMap(new IdentityHashMap<>()));
+        StateTraversal.run(step);
+        return step.delta;
+    }
+
+    /**
+     * @return true if the delta contains no changes
+     */
+    public static boolean isEmpty(AppState delta) {
+        return delta == null || (delta.getAllWidgets().isEmpty() && delta.getMetadataKeys().isEmpty());
+    }
+
+    /**
+     * Reconstruct the session state from the state it has started from and its delta.
+     *
+     * @return a copy of the base with the changes of the delta
+     */
+    public static AppState apply(AppState base, AppState delta) {
+        AppState result = AppStateCloner.copy(base);
+        if (result == null) {
+            result = new AppState(delta.getId(), delta.getBookmark());
+        }
+        StateTraversal.run(new ApplyStep(result, delta, new AppStateCloner()));
+        return result;
+    }
+
+    public static String kindOf(Widget widget) {
+        Object kind = widget.getMetadata(KIND);
+        return kind instanceof String ? (String) kind : null;
+    }
+
+    /**
+     * Collects the delta of a state, the deltas of following states are collected by the steps it returns.
+     */
+    private static final class DeltaStep implements StateTraversal.Step {
+        private final AppState base;
+        private final AppState session;
+        private final AppStateCloner cloner;
+        private final Set<AppState> visited;
+        final AppState delta;
+
+        private Iterator<Entry<String, MultiUser.DiffType>> diffItems = null;
+        // Step of the following state of a widget without changes and the widget
+        private DeltaStep following = null;
+        private Widget followingWidget = null;
+
+        DeltaStep(AppState base, AppState session, AppStateCloner cloner, Set<AppState> visited) {
+            this.base = base;
+            this.session = session;
+            this.cloner = cloner;
+            this.visited = visited;
+            this.delta = new AppState(session.getId(), session.getBookmark());
+            putChangedMetadata();
+        }
+
+        /**
+         * Put the meta-data of the session state which the base state does not have with the same value into the delta.
+         * Values are compared as text, as they are written as text.
+         */
+        private void putChangedMetadata() {
+            for (String key : session.getMetadataKeys()) {
+                Object value = session.getMetadata(key);
+                Object baseValue = base == null ? null : base.getMetadata(key);
+                if (value != null && !key.equalsIgnoreCase(MultiUser.META_DATA_DIFF)
+                        && (baseValue == null || !String.valueOf(baseValue).equals(String.valueOf(value)))) {
+                    delta.putMetadata(key, value);
+                }
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public StateTraversal.Step next() {
+            if (diffItems == null) {
+                visited.add(session);
+                Object diff = session.getMetadata(MultiUser.META_DATA_DIFF);
+                Map<String, MultiUser.DiffType> diffMap = diff instanceof Map ? (Map<String, MultiUser.DiffType>) diff : Collections.emptyMap();
+                diffItems = diffMap.entrySet().iterator();
+            }
+
+            if (following != null) {
+                if (!isEmpty(following.delta)) {
+                    delta.addWidget(tag(AppStateCloner.copyLeadingTo(followingWidget, following.delta), PATH));
+                }
+                following = null;
+                followingWidget = null;
+            }
+
+            while (diffItems.hasNext()) {
+                Entry<String, MultiUser.DiffType> diffItem = diffItems.next();
+                String widgetId = diffItem.getKey();
+                switch (diffItem.getValue()) {
+                    case CREATED:
+                        Widget created = session.getWidget(widgetId);
+                        if (created != null) {
+                            delta.addWidget(tag(cloner.copyWidget(created), CREATED));
+                        }
+                        break;
+                    case DELETED:
+                        Widget deleted = base == null ? null : base.getWidget(widgetId);
+                        if (deleted != null) {
+                            Widget copy = AppStateCloner.copyLeadingTo(deleted, null);
+                            copy.setWidgetVisibility(WidgetVisibility.VISIBLE);
+                            delta.addWidget(tag(copy, DELETED));
+                        }
+                        break;
+                    case NO_CHANGES:
+                        Widget widget = session.getWidget(widgetId);
+                        AppState nextState = widget == null ? null : widget.getNextState();
+                        if (nextState != null && !nextState.isHome() && !visited.contains(nextState)) {
+                            Widget baseWidget = base == null ? null : base.getWidget(widgetId);
+                            following = new DeltaStep(baseWidget == null ? null : baseWidget.getNextState(), nextState, cloner, visited);
+                            followingWidget = widget;
+                            return following;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return null;
+        }
+
+        private static Widget tag(Widget widget, String kind) {
+            widget.putMetadata(KIND, kind);
+            return widget;
+        }
+    }
+
+    /**
+     * Applies the delta of a state, the deltas of following states are applied by the steps it returns.
+     */
+    private static final class ApplyStep implements StateTraversal.Step {
+        private final AppState state;
+        private final AppState delta;
+        private final AppStateCloner cloner;
+        private List<Widget> widgets = null;
+        private int next = 0;
+
+        ApplyStep(AppState state, AppState delta, AppStateCloner cloner) {
+            this.state = state;
+            this.delta = delta;
+            this.cloner = cloner;
+        }
+
+        @Override
+        public StateTraversal.Step next() {
+            if (widgets == null) {
+                delta.getMetadataKeys().forEach(key -> state.putMetadata(key, delta.getMetadata(key)));
+                widgets = delta.getAllWidgets();
+            }
+            while (next < widgets.size()) {
+                Widget deltaWidget = widgets.get(next++);
+                String kind = kindOf(deltaWidget);
+                if (CREATED.equals(kind)) {
+                    Widget created = cloner.copyWidget(deltaWidget);
+                    created.removeMetadata(KIND);
+                    state.addWidget(created);
+                } else if (DELETED.equals(kind)) {
+                    Widget deleted = state.getWidget(deltaWidget.getId());
+                    if (deleted != null) {
+                        state.removeWidget(deleted);
+                    }
+                } else if (PATH.equals(kind) && deltaWidget.getNextState() != null) {
+                    Widget widget = state.getWidget(deltaWidget.getId());
+                    if (widget == null) {
+                        continue;
+                    }
+                    AppState deltaState = deltaWidget.getNextState();
+                    if (widget.getNextState() == null) {
+                        widget.setNextState(new AppState(deltaState.getId(), deltaState.getBookmark()));
+                    }
+                    return new ApplyStep(widget.getNextState(), deltaState, cloner);
+                }
+            }
+            return null;
+        }
+    }
+}
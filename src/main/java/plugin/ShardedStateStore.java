@@ -0,0 +1,430 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetVisibility;
+
+/**
+ * Stores a state model as shards, one file per state subtree, and a manifest listing the shards.
+ * <p>
+ * A shard holds a state and its following states up to the shard depth, in the same format as the
+ * "state" and "all-widgets" entries of a state model file. A following state beyond the shard depth is
+ * stored in its own shard and referenced by its shard key:
+ * <pre>
+ * {"id":"...","next-state":null,"next-state-shard":"&lt;shard key&gt;"}
+ * </pre>
+ * The key of a shard is the ID of its state, with a suffix if several states have the same ID. Shard files are named after key and checksum of their
+ * content, so a shard whose content has not changed is not written again, and a shard file is never
+ * changed once written. The manifest maps shard keys to shard files and is replaced atomically,
+ * so a reader always sees a complete model. Shard files are removed when neither the manifest nor
+ * its backup refers to them anymore.
+ * <p>
+ * Shards are parsed in parallel when the model is read.
+ */
+public class ShardedStateStore {
+
+    public static final String MANIFEST_FILENAME = "shared-state.manifest.json";
+    private static final String SHARD_FOLDER = "shards";
+    private static final String FORMAT = "sharded";
+
+    // Same charset as the state model files
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final Path folder;
+    private final int shardDepth;
+
+    // Results of the last read
+    private Long lastUpdatedAtMs = null;
+    private long manifestChecksum = -1;
+
+    /**
+     * @param folder     folder of the product
+     * @param shardDepth number of state levels stored in one shard, at least 1
+     */
+    public ShardedStateStore(Path folder, int shardDepth) {
+        this.folder = folder;
+        this.shardDepth = Math.max(1, shardDepth);
+    }
+
+    public Path getManifestPath() {
+        return folder.resolve(MANIFEST_FILENAME);
+    }
+
+    public boolean exists() {
+        return Files.exists(getManifestPath());
+    }
+
+    /**
+     * @return "last-updated-at-ms" of the last read manifest
+     */
+    public Long getLastUpdatedAtMs() {
+        return lastUpdatedAtMs;
+    }
+
+    /**
+     * @return CRC32 of the last read manifest
+     */
+    public long getManifestChecksum() {
+        return manifestChecksum;
+    }
+
+    // ********************************************
+    // * Write                                    *
+    // ********************************************
+
+    private static class Shard {
+        final String key;
+        final AppState state;
+        String fileName;
+
+        Shard(String key, AppState state) {
+            this.key = key;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Write the state model. Only shards with changed content are written.
+     *
+     * @return number of written shard files
+     */
+    @SuppressWarnings("unchecked")
+    public int write(AppState state, long lastUpdatedAtMs, AtomicFileWriter.SyncMode syncMode) throws IOException {
+        Path shardFolder = folder.resolve(SHARD_FOLDER);
+        Files.createDirectories(shardFolder);
+
+        Map<AppState, Shard> shardsByState = new IdentityHashMap<>();
+        Set<String> usedKeys = new HashSet<>();
+        List<Shard> shards = new ArrayList<>();
+        Shard root = addShard(state, shardsByState, usedKeys, shards);
+
+        int written = 0;
+        // Shards are added while the list is processed
+        for (int i = 0; i < shards.size(); i++) {
+            Shard shard = shards.get(i);
+            byte[] content = shardAsJSONObject(shard, shardsByState, usedKeys, shards).toJSONString().getBytes(CHARSET);
+            shard.fileName = encode(shard.key) + "-" + Long.toHexString(checksum(content)) + ".json";
+
+            Path shardFile = shardFolder.resolve(shard.fileName);
+            if (!Files.exists(shardFile)) {
+                AtomicFileWriter.write(shardFile, out -> out.write(content), syncMode, false);
+                written++;
+            }
+        }
+
+        JSONObject manifest = new JSONObject();
+        manifest.put("format", FORMAT);
+        manifest.put("last-updated-at-ms", lastUpdatedAtMs);
+        manifest.put("shard-depth", shardDepth);
+        manifest.put("root", root.key);
+        JSONArray shardList = new JSONArray();
+        for (Shard shard : shards) {
+            JSONObject entry = new JSONObject();
+            entry.put("key", shard.key);
+            entry.put("file", shard.fileName);
+            shardList.add(entry);
+        }
+        manifest.put("shards", shardList);
+
+        byte[] manifestContent = manifest.toJSONString().getBytes(CHARSET);
+        AtomicFileWriter.write(getManifestPath(), out -> out.write(manifestContent), syncMode, true);
+
+        removeUnusedShards(shardFolder);
+        return written;
+    }
+
+    private Shard addShard(AppState state, Map<AppState, Shard> shardsByState, Set<String> usedKeys, List<Shard> shards) {
+        Shard shard = shardsByState.get(state);
+        if (shard != null) {
+            return shard;
+        }
+
+        // Different states with the same ID get their own shards
+        String id = String.valueOf(state.getId());
+        String key = id;
+        for (int n = 2; !usedKeys.add(key); n++) {
+            key = id + "~" + n;
+        }
+        shard = new Shard(key, state);
+        shardsByState.put(state, shard);
+        shards.add(shard);
+        return shard;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject shardAsJSONObject(Shard shard, Map<AppState, Shard> shardsByState, Set<String> usedKeys, List<Shard> shards) {
+        Map<String, Widget> usedWidgets = new LinkedHashMap<>();
+        JSONObject json = new JSONObject();
+        json.put("shard", shard.key);
+        json.put("state", stateAsJSONObject(shard.state, 1, usedWidgets, shardsByState, usedKeys, shards));
+
+        List<JSONObject> widgets = JSONStateParser.allWidgetsOf(usedWidgets.values()).stream()
+                .map(JSONStateParser::widgetAsJSONObject)
+                .collect(Collectors.toList());
+        json.put("all-widgets", widgets);
+        return json;
+    }
+
+    /**
+     * Like {@link JSONStateParser#stateTreeAsJSONObject(AppState, Map)}, but following states
+     * beyond the shard depth are added as shards.
+     */
+    @SuppressWarnings("unchecked")
+    private JSONObject stateAsJSONObject(AppState state, int depth, Map<String, Widget> usedWidgets,
+            Map<AppState, Shard> shardsByState, Set<String> usedKeys, List<Shard> shards) {
+        JSONObject json = new JSONObject();
+        json.put("state-id", state.getId());
+        json.put("product-version", state.getProductVersions());
+        json.put("bookmarks", state.getBookmark());
+
+        List<Widget> visibleWidgets = state.getVisibleWidgets();
+        List<JSONObject> jsonWidgets = new ArrayList<>(visibleWidgets.size());
+        for (Widget widget : visibleWidgets) {
+            JSONObject jsonWidget = new JSONObject();
+            jsonWidget.put("id", widget.getId());
+            jsonWidget.put("next-state", null);
+
+            AppState nextState = widget.getNextState();
+            if (nextState != null && !nextState.isHome()) {
+                if (depth < shardDepth && !shardsByState.containsKey(nextState)) {
+                    jsonWidget.put("next-state", stateAsJSONObject(nextState, depth + 1, usedWidgets, shardsByState, usedKeys, shards));
+                } else {
+                    jsonWidget.put("next-state-shard", addShard(nextState, shardsByState, usedKeys, shards).key);
+                }
+            }
+            jsonWidgets.add(jsonWidget);
+            usedWidgets.put(widget.getId(), widget);
+        }
+        json.put("visible-widgets", jsonWidgets);
+        json.put("meta-data", JSONStateParser.stateMetadataAsJSONObject(state));
+        return json;
+    }
+
+    private void removeUnusedShards(Path shardFolder) throws IOException {
+        Set<String> usedFiles = new HashSet<>();
+        for (Path manifest : new Path[] { getManifestPath(), AtomicFileWriter.backupOf(getManifestPath()) }) {
+            if (!Files.exists(manifest)) {
+                continue;
+            }
+            try {
+                usedFiles.addAll(readManifestShards(parse(Files.readAllBytes(manifest))).values());
+            } catch (ParseException e) {
+                // Keep all shards, they might be needed
+                return;
+            }
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(shardFolder, "*.json")) {
+            for (Path file : files) {
+                if (!usedFiles.contains(file.getFileName().toString())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    // ********************************************
+    // * Read                                     *
+    // ********************************************
+
+    private static class ParsedShard {
+        final JSONObject state;
+        final List<Widget> widgets;
+        AppState appState = null;
+
+        ParsedShard(JSONObject state, List<Widget> widgets) {
+            this.state = state;
+            this.widgets = widgets;
+        }
+    }
+
+    /**
+     * Read the state model of a manifest.
+     *
+     * @param manifestFile the manifest or its backup
+     * @return the home state with all following states
+     */
+    public AppState read(Path manifestFile) throws IOException, ParseException {
+        lastUpdatedAtMs = null;
+        byte[] manifestContent = Files.readAllBytes(manifestFile);
+        JSONObject manifest = parse(manifestContent);
+        if (!FORMAT.equals(manifest.get("format"))) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, manifest.get("format"));
+        }
+        Map<String, String> shardFiles = readManifestShards(manifest);
+
+        // Parse the shards in parallel
+        Path shardFolder = manifestFile.getParent().resolve(SHARD_FOLDER);
+        Map<String, ParsedShard> shards;
+        try {
+            shards = shardFiles.entrySet().parallelStream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, e -> readShard(shardFolder.resolve(e.getValue()))));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // All widgets by ID, the first widget wins like in a state model file
+        Map<String, Widget> widgetIndex = new HashMap<>();
+        for (String key : shardFiles.keySet()) {
+            shards.get(key).widgets.forEach(w -> widgetIndex.putIfAbsent(w.getId(), w));
+        }
+
+        AppState state = buildShard((String) manifest.get("root"), shards, widgetIndex);
+        lastUpdatedAtMs = (Long) manifest.get("last-updated-at-ms");
+        manifestChecksum = checksum(manifestContent);
+        return state;
+    }
+
+    private ParsedShard readShard(Path shardFile) {
+        try {
+            JSONObject json = parse(Files.readAllBytes(shardFile));
+            return new ParsedShard((JSONObject) json.get("state"), JSONStateParser.parseWidgets((JSONArray) json.get("all-widgets")));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ParseException e) {
+            throw new UncheckedIOException(new IOException("Invalid shard " + shardFile, e));
+        }
+    }
+
+    /**
+     * Build the state tree of the root shard. States are created before their following states are built,
+     * so shards are built once even if they are referenced several times.
+     */
+    private AppState buildShard(String key, Map<String, ParsedShard> shards, Map<String, Widget> widgetIndex) throws IOException {
+        try {
+            BuildStep step = shardStep(key, shards, widgetIndex);
+            if (step != null) {
+                StateTraversal.run(step);
+            }
+            return shards.get(key).appState;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return the step building the state of the shard or null if it has already been started
+     */
+    private static BuildStep shardStep(String key, Map<String, ParsedShard> shards, Map<String, Widget> widgetIndex) {
+        ParsedShard shard = shards.get(key);
+        if (shard == null) {
+            throw new UncheckedIOException(new IOException("Shard " + key + " is missing in the manifest"));
+        }
+        if (shard.appState != null) {
+            return null;
+        }
+        BuildStep step = new BuildStep(shard.state, shards, widgetIndex);
+        shard.appState = step.state;
+        return step;
+    }
+
+    /**
+     * Like {@link JSONStateParser#parseState(JSONObject, Map)}, but also follows references to shards.
+     * The following states are built by the steps it returns.
+     */
+    private static final class BuildStep implements StateTraversal.Step {
+        private final JSONObject jsonState;
+        private final Map<String, ParsedShard> shards;
+        private final Map<String, Widget> widgetIndex;
+        final AppState state;
+
+        private final List<Widget> visibleWidgets = new LinkedList<>();
+        private Iterator<?> items = null;
+
+        BuildStep(JSONObject jsonState, Map<String, ParsedShard> shards, Map<String, Widget> widgetIndex) {
+            this.jsonState = jsonState;
+            this.shards = shards;
+            this.widgetIndex = widgetIndex;
+            this.state = new AppState((String) jsonState.get("state-id"), (String) jsonState.get("bookmarks"));
+        }
+
+        @Override
+        public StateTraversal.Step next() {
+            if (items == null) {
+                items = ((JSONArray) jsonState.get("visible-widgets")).iterator();
+            }
+            while (items.hasNext()) {
+                JSONObject jsonWidget = (JSONObject) items.next();
+                Widget widget = widgetIndex.get((String) jsonWidget.get("id"));
+                visibleWidgets.add(widget);
+
+                JSONObject nextState = (JSONObject) jsonWidget.get("next-state");
+                String nextStateShard = (String) jsonWidget.get("next-state-shard");
+                if (nextState != null) {
+                    BuildStep step = new BuildStep(nextState, shards, widgetIndex);
+                    widget.setNextState(step.state);
+                    return step;
+                } else if (nextStateShard != null) {
+                    BuildStep step = shardStep(nextStateShard, shards, widgetIndex);
+                    widget.setNextState(shards.get(nextStateShard).appState);
+                    if (step != null) {
+                        return step;
+                    }
+                }
+            }
+            state.addWidgets(visibleWidgets, WidgetVisibility.VISIBLE, null);
+            return null;
+        }
+    }
+
+    /**
+     * @return shard files by shard key, in the order of the manifest
+     */
+    private static Map<String, String> readManifestShards(JSONObject manifest) {
+        Map<String, String> shardFiles = new LinkedHashMap<>();
+        for (Object item : (JSONArray) manifest.get("shards")) {
+            JSONObject entry = (JSONObject) item;
+            shardFiles.put((String) entry.get("key"), (String) entry.get("file"));
+        }
+        return shardFiles;
+    }
+
+    private static JSONObject parse(byte[] content) throws ParseException {
+        return (JSONObject) new JSONParser().parse(new String(content, CHARSET));
+    }
+
+    private static long checksum(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private static String encode(String key) {
+        try {
+            // '*' is not allowed in file names on Windows
+            return URLEncoder.encode(key, "UTF-8").replace("*", "%2A");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import scout.AppState;
+
+/**
+ * Parsed shared state models by file path, so a model is only parsed again if its file has changed.
+ * <p>
+ * An entry is valid as long as the state model file, its journal and the version in its lock file
+ * are unchanged. A state model file is considered unchanged if its size and modification time are
+ * the same and no change has been reported for it by the file system. Otherwise the checksum of the
+ * file content decides, so a file which has only been touched is not parsed again.
+ * <p>
+ * Cached states are shared and must not be modified.
+ */
+public class SharedModelCache {
+
+
+    /**
+     * Size, modification time and optionally the checksum of a file.
+     */
+    public static final class FileStamp {
+        public static final long UNKNOWN_CHECKSUM = -1;
+
+        final boolean exists;
+        final long size;
+        final long lastModified;
+        final long checksum;
+
+        public FileStamp(boolean exists, long size, long lastModified, long checksum) {
+            this.exists = exists;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return the size and modification time of the file, without checksum
+         */
+        public static FileStamp of(Path file) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                return new FileStamp(true, attributes.size(), attributes.lastModifiedTime().toMillis(), UNKNOWN_CHECKSUM);
+            } catch (IOException e) {
+                return new FileStamp(false, 0, 0, UNKNOWN_CHECKSUM);
+            }
+        }
+
+        public FileStamp withChecksum(long checksum) {
+            return new FileStamp(exists, size, lastModified, checksum);
+        }
+
+        boolean isSameFile(FileStamp other) {
+            return exists == other.exists && size == other.size && lastModified == other.lastModified;
+        }
+    }
+
+    /**
+     * A parsed state model with the stamps of the files it was parsed from.
+     */
+    public static final class Entry {
+        final AppState state;
+        final Long version;
+        final long lockVersion;
+        final FileStamp model;
+        final FileStamp journal;
+        final long journalLength;
+
+        /**
+         * @param state       the parsed state model including the changes of the journal
+         * @param version     "last-updated-at-ms" of the state model file
+         * @param lockVersion version of the lock file, read before the state model file
+         * @param model       stamp of the state model file, read before parsing it, with the checksum of the parsed content
+         * @param journal       stamp of the journal, read before replaying it
+         * @param journalLength length of the replayed journal, see {@link StateJournal#getReplayedLength()}
+         */
+        public Entry(AppState state, Long version, long lockVersion, FileStamp model, FileStamp journal, long journalLength) {
+            this.state = state;
+            this.version = version;
+            this.lockVersion = lockVersion;
+            this.model = model;
+            this.journal = journal;
+            this.journalLength = journalLength;
+        }
+
+        public AppState getState() {
+            return state;
+        }
+
+        public Long getVersion() {
+            return version;
+        }
+    }
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    // Files reported as changed by the file system since their entry has been checked
+    private final Set<Path> changedFiles = ConcurrentHashMap.newKeySet();
+    private final Set<Path> watchedFolders = ConcurrentHashMap.newKeySet();
+    private WatchService watchService = null;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong checksumCount = new AtomicLong();
+
+    /**
+     * @param modelFile   path of the state model file
+     * @param journalFile path of the journal of the state model file
+     * @param lockVersion current version of the lock file
+     * @return the entry or null if there is none or the files have changed
+     */
+    public Entry get(Path modelFile, Path journalFile, long lockVersion) {
+        Path key = modelFile.toAbsolutePath();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        boolean reportedAsChanged = changedFiles.remove(key);
+        if (entry.lockVersion != lockVersion || !FileStamp.of(journalFile).isSameFile(entry.journal)) {
+            return miss(key);
+        }
+
+        FileStamp current = FileStamp.of(modelFile);
+        if (!reportedAsChanged && current.isSameFile(entry.model)) {
+            hitCount.incrementAndGet();
+            return entry;
+        }
+        if (!current.exists || current.size != entry.model.size || entry.model.checksum == FileStamp.UNKNOWN_CHECKSUM) {
+            return miss(key);
+        }
+
+        checksumCount.incrementAndGet();
+        if (checksum(modelFile) != entry.model.checksum) {
+            return miss(key);
+        }
+        // Same content, e.g. touched or written by ourselves
+        Entry revalidated = new Entry(entry.state, entry.version, entry.lockVersion,
+                current.withChecksum(entry.model.checksum), entry.journal, entry.journalLength);
+        entries.put(key, revalidated);
+        hitCount.incrementAndGet();
+        return revalidated;
+    }
+
+    private Entry miss(Path key) {
+        entries.remove(key);
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    public void put(Path modelFile, Entry entry) {
+        Path key = modelFile.toAbsolutePath();
+        watch(key.getParent());
+        entries.put(key, entry);
+    }
+
+    public void invalidate(Path modelFile) {
+        entries.remove(modelFile.toAbsolutePath());
+    }
+
+    /**
+     * @return CRC32 of the file content or {@link FileStamp#UNKNOWN_CHECKSUM} if it cannot be read
+     */
+    public static long checksum(Path file) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            return FileStamp.UNKNOWN_CHECKSUM;
+        }
+        return crc.getValue();
+    }
+
+    // ********************************************
+    // * Change detection                         *
+    // ********************************************
+
+    private void watch(Path folder) {
+        if (folder == null || !watchedFolders.add(folder)) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                if (watchService == null) {
+                    watchService = folder.getFileSystem().newWatchService();
+                    Thread thread = new Thread(this::processEvents, "multi-user-model-watch");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+            folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Without events, changes are still detected by size, modification time and lock version
+            log("Unable to watch the shared model folder " + folder + ": " + e.getMessage());
+        }
+    }
+
+    private void processEvents() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path folder = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        entries.keySet().stream().filter(path -> folder.equals(path.getParent())).forEach(changedFiles::add);
+                    } else {
+                        changedFiles.add(folder.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    watchedFolders.remove(folder);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stop watching
+        }
+    }
+
+    // ********************************************
+    // * Statistics                               *
+    // ********************************************
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getChecksumCount() {
+        return checksumCount.get();
+    }
+
+    public String getStatistics() {
+        return "hits=" + getHitCount() + ", misses=" + getMissCount() + ", checksums=" + getChecksumCount();
+    }
+
+    private static void log(String message) {
+        PluginLog.info(message);
+    }
+}
@@ -0,0 +1,223 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive lock on a shared state model, across processes and threads.
+ * <p>
+ * The lock file holds the version of the shared model, the "last-updated-at-ms" of the last save.
+ * A saver reads the version before loading the model without the lock and compares it
+ * with the version while holding the lock to detect that the model has changed in the meantime.
+ * <p>
+ * Only a region behind the content of the lock file is locked, so the version can
+ * be read without the lock on all platforms.
+ */
+public class SharedModelLock implements AutoCloseable {
+
+    private static final long LOCK_POSITION = Long.MAX_VALUE - 1;
+
+    // File locks are held by the JVM, threads of the same JVM are excluded with an additional lock
+    private static final Map<String, ReentrantLock> threadLocks = new ConcurrentHashMap<>();
+
+    private static final AtomicLong acquiredCount = new AtomicLong();
+    private static final AtomicLong failedCount = new AtomicLong();
+    private static final AtomicLong staleCount = new AtomicLong();
+    private static final AtomicLong totalWaitNanos = new AtomicLong();
+    private static final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private final ReentrantLock threadLock;
+    private final RandomAccessFile file;
+    private final FileLock fileLock;
+
+    private SharedModelLock(ReentrantLock threadLock, RandomAccessFile file, FileLock fileLock) {
+        this.threadLock = threadLock;
+        this.file = file;
+        this.fileLock = fileLock;
+    }
+
+    /**
+     * Try to acquire the lock. The lock of the threads of this JVM and the file lock are waited for
+     * together at most attempts * retryDelayMs, the file lock is tried at least once.
+     *
+     * @param lockFilePath path of the lock file, created if it does not exist
+     * @param attempts     maximal number of attempts
+     * @param retryDelayMs delay between two attempts
+     * @return the lock or null if it could not be acquired
+     */
+    public static SharedModelLock acquire(String lockFilePath, int attempts, long retryDelayMs) throws IOException {
+        File lockFile = new File(lockFilePath);
+        ReentrantLock threadLock = threadLocks.computeIfAbsent(lockFile.getCanonicalPath(), k -> new ReentrantLock());
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(attempts * retryDelayMs);
+
+        try {
+            if (!threadLock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                failedCount.incrementAndGet();
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failedCount.incrementAndGet();
+            return null;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(lockFile, "rw");
+            FileChannel channel = file.getChannel();
+            for (int attempt = 1; attempt <= attempts; attempt++) {
+                FileLock fileLock = tryLock(channel);
+                if (fileLock != null) {
+                    recordWait(System.nanoTime() - start);
+                    return new SharedModelLock(threadLock, file, fileLock);
+                }
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (attempt == attempts || remainingMs <= 0) {
+                    break;
+                }
+                Thread.sleep(Math.min(retryDelayMs, remainingMs));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            closeQuietly(file);
+            threadLock.unlock();
+            throw e;
+        }
+
+        closeQuietly(file);
+        threadLock.unlock();
+        failedCount.incrementAndGet();
+        return null;
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock(LOCK_POSITION, 1, false);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the version from a lock file without holding the lock.
+     *
+     * @return the version or 0 if the lock file does not exist or is incomplete
+     */
+    public static long readVersion(String lockFilePath) {
+        try {
+            byte[] content = Files.readAllBytes(new File(lockFilePath).toPath());
+            return parseVersion(new String(content, StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the version stored in the lock file or 0 if not set
+     */
+    public long readVersion() throws IOException {
+        FileChannel channel = file.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), 64));
+        channel.read(buffer, 0);
+        return parseVersion(new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII));
+    }
+
+    public void writeVersion(long version) throws IOException {
+        FileChannel channel = file.getChannel();
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(Long.toString(version).getBytes(StandardCharsets.US_ASCII)), 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            fileLock.release();
+            file.close();
+        } finally {
+            threadLock.unlock();
+        }
+    }
+
+    private static long parseVersion(String content) {
+        try {
+            return Long.parseLong(content.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    // ********************************************
+    // * Statistics                               *
+    // ********************************************
+
+    private static void recordWait(long waitNanos) {
+        acquiredCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    }
+
+    /**
+     * Count a save which found the shared model changed by another saver after reading it.
+     */
+    public static void recordStaleRead() {
+        staleCount.incrementAndGet();
+    }
+
+    public static long getAcquiredCount() {
+        return acquiredCount.get();
+    }
+
+    public static long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public static long getStaleReadCount() {
+        return staleCount.get();
+    }
+
+    public static long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    public static long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    public static String getStatistics() {
+        long acquired = getAcquiredCount();
+        return "acquired=" + acquired
+                + ", failed=" + getFailedCount()
+                + ", stale=" + getStaleReadCount()
+                + ", avgWaitMs=" + (acquired == 0 ? 0 : getTotalWaitMillis() / acquired)
+                + ", maxWaitMs=" + getMaxWaitMillis();
+    }
+}
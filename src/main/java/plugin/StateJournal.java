@@ -0,0 +1,375 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import scout.AppState;
+import scout.Widget;
+
+/**
+ * Append-only journal of the changes merged into a shared state model.
+ * <p>
+ * Each line of the journal holds one record as JSON object, preceded by the CRC32 of the JSON text:
+ * <pre>
+ * 1a2b3c4d {"type":"created","state-id":"...","state":{...},"all-widgets":[...]}
+ * </pre>
+ * The first record is a header with the "last-updated-at-ms" of the snapshot the journal belongs to.
+ * A journal whose header does not match the snapshot (e.g. after the journal has been compacted into
+ * a new snapshot) is ignored. Replay stops at the first incomplete or corrupt line.
+ * <p>
+ * Records are keyed by state ID and describe the changes of a merge:
+ * <ul>
+ * <li>created: a widget with all following states was added to a state</li>
+ * <li>deleted: a widget and all widgets of its following states were marked as deleted</li>
+ * <li>merged: the properties of a widget were merged with the same widget of a session</li>
+ * </ul>
+ */
+public class StateJournal {
+
+
+    // Same charset as the state model files, so replaying the journal gives the same model as the compacted file
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    protected static final String TYPE_HEADER = "header";
+    protected static final String TYPE_CREATED = "created";
+    protected static final String TYPE_DELETED = "deleted";
+    protected static final String TYPE_MERGED = "merged";
+
+    private final File file;
+
+    // Result of the last replay, used to continue the journal after the last valid record.
+    // Guarded by this, the journal is replayed by the event dispatch thread and appended by the save thread
+    private Long replayedVersion = null;
+    private long replayedLength = -1;
+
+    public StateJournal(String filePath) {
+        this.file = new File(filePath);
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    public long size() {
+        return file.length();
+    }
+
+    public synchronized boolean delete() {
+        replayedVersion = null;
+        replayedLength = -1;
+        return !file.exists() || file.delete();
+    }
+
+    // ********************************************
+    // * Records                                  *
+    // ********************************************
+
+    @SuppressWarnings("unchecked")
+    public static String createdRecord(AppState state, Widget widget) {
+        AppState wrapper = new AppState(state.getId(), null);
+        wrapper.addWidget(widget);
+
+        Map<String, Widget> allUsedWidgets = new HashMap<>();
+        JSONObject record = new JSONObject();
+        record.put("type", TYPE_CREATED);
+        record.put("state-id", state.getId());
+        record.put("state", JSONStateParser.stateTreeAsJSONObject(wrapper, allUsedWidgets, new StateReferences(wrapper)));
+
+        JSONArray allWidgets = new JSONArray();
+        allUsedWidgets.values().forEach(w -> allWidgets.add(JSONStateParser.widgetAsJSONObject(w)));
+        record.put("all-widgets", allWidgets);
+        return record.toJSONString();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static String deletedRecord(AppState state, Widget widget, long deletedAt) {
+        JSONObject record = new JSONObject();
+        record.put("type", TYPE_DELETED);
+        record.put("state-id", state.getId());
+        record.put("widget-id", widget.getId());
+        record.put("deleted-at", deletedAt);
+        return record.toJSONString();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static String mergedRecord(AppState state, Widget widget) {
+        JSONObject record = new JSONObject();
+        record.put("type", TYPE_MERGED);
+        record.put("state-id", state.getId());
+        record.put("widget", JSONStateParser.widgetAsJSONObject(widget));
+        return record.toJSONString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String headerRecord(long snapshotVersion) {
+        JSONObject record = new JSONObject();
+        record.put("type", TYPE_HEADER);
+        record.put("last-updated-at-ms", snapshotVersion);
+        return record.toJSONString();
+    }
+
+    // ********************************************
+    // * Append and replay                        *
+    // ********************************************
+
+    /**
+     * Append records to the journal. If the journal does not belong to the snapshot
+     * with the given version, it is started anew.
+     *
+     * @param snapshotVersion "last-updated-at-ms" of the snapshot the records apply to
+     * @param records         records created with the record methods of this class
+     */
+    public synchronized void append(long snapshotVersion, List<String> records) throws IOException {
+        if (replayedLength < 0 || replayedVersion == null || replayedVersion != snapshotVersion) {
+            // Unknown or foreign journal content
+            scan(snapshotVersion);
+        }
+
+        boolean newJournal = replayedVersion == null;
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            FileChannel channel = out.getChannel();
+            long length = newJournal ? 0 : replayedLength;
+            Writer writer = new OutputStreamWriter(out, CHARSET);
+            if (channel.size() > length) {
+                // Drop an incomplete record of a failed write or the content of a foreign journal
+                channel.truncate(length);
+            } else if (channel.size() < length) {
+                // Last record without line break
+                writer.write('\n');
+            }
+            if (newJournal) {
+                writeLine(headerRecord(snapshotVersion), writer);
+            }
+            for (String record : records) {
+                writeLine(record, writer);
+            }
+            writer.flush();
+
+            replayedVersion = snapshotVersion;
+            replayedLength = channel.size();
+        }
+    }
+
+    /**
+     * Apply the records of the journal to the state tree of the snapshot.
+     *
+     * @param state           the home state of the snapshot
+     * @param snapshotVersion "last-updated-at-ms" of the snapshot
+     * @return number of applied records or -1 if the journal does not belong to the snapshot
+     */
+    public synchronized int replay(AppState state, long snapshotVersion) throws IOException {
+        Replay replay = new Replay(state);
+        scan(snapshotVersion, replay);
+        if (replayedVersion == null) {
+            return file.exists() && file.length() > 0 ? -1 : 0;
+        }
+        return replay.applied;
+    }
+
+    /**
+     * @return length of the journal up to the last valid record of the last replay or append,
+     * 0 if the journal does not belong to the snapshot
+     */
+    public synchronized long getReplayedLength() {
+        return replayedVersion != null ? replayedLength : 0;
+    }
+
+    private void scan(long snapshotVersion) throws IOException {
+        scan(snapshotVersion, null);
+    }
+
+    /**
+     * Read the journal up to the last valid record. Records are only passed to the
+     * replay if the header matches the snapshot version.
+     */
+    private void scan(long snapshotVersion, Replay replay) throws IOException {
+        replayedVersion = null;
+        replayedLength = 0;
+        if (!file.exists()) {
+            return;
+        }
+
+        JSONParser parser = new JSONParser();
+        long length = 0;
+        int lineNumber = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), CHARSET), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                JSONObject record = parseLine(line, parser);
+                if (record == null) {
+                    log("Journal " + file + " has an invalid record at line " + lineNumber + ". Ignore the remaining records.");
+                    break;
+                }
+
+                if (lineNumber == 1) {
+                    Object version = record.get("last-updated-at-ms");
+                    if (!TYPE_HEADER.equals(record.get("type")) || !(version instanceof Number)
+                            || ((Number) version).longValue() != snapshotVersion) {
+                        log("Journal " + file + " does not belong to the snapshot. Ignore the journal.");
+                        return;
+                    }
+                    replayedVersion = snapshotVersion;
+                } else if (replay != null) {
+                    replay.apply(record);
+                }
+
+                length += line.getBytes(CHARSET).length + 1;
+                replayedLength = length;
+            }
+        }
+    }
+
+    private static void writeLine(String json, Writer writer) throws IOException {
+        writer.write(Long.toHexString(checksum(json)));
+        writer.write(' ');
+        writer.write(json);
+        writer.write('\n');
+    }
+
+    private static JSONObject parseLine(String line, JSONParser parser) {
+        int separator = line.indexOf(' ');
+        if (separator <= 0) {
+            return null;
+        }
+        try {
+            String json = line.substring(separator + 1);
+            if (Long.parseLong(line.substring(0, separator), 16) != checksum(json)) {
+                return null;
+            }
+            return (JSONObject) parser.parse(json);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static long checksum(String json) {
+        CRC32 crc = new CRC32();
+        crc.update(json.getBytes(CHARSET));
+        return crc.getValue();
+    }
+
+    /**
+     * Applies records to a state tree.
+     */
+    private static class Replay {
+        final Map<String, AppState> statesById = new HashMap<>();
+        final MergeIndex index = new MergeIndex();
+        int applied = 0;
+
+        Replay(AppState state) {
+            indexStates(state);
+        }
+
+        void apply(JSONObject record) {
+            AppState state = statesById.get((String) record.get("state-id"));
+            if (state == null) {
+                log("Journal record for unknown state with id " + record.get("state-id") + " skipped.");
+                return;
+            }
+
+            Object type = record.get("type");
+            if (TYPE_CREATED.equals(type)) {
+                AppState wrapper = JSONStateParser.parseCompleteAppState(record);
+                if (wrapper == null) {
+                    return;
+                }
+                for (Widget widget : wrapper.getVisibleWidgets()) {
+                    index.addWidget(state, widget);
+                    indexStates(widget.getNextState());
+                }
+            } else if (TYPE_DELETED.equals(type)) {
+                Widget widget = index.getWidget(state, (String) record.get("widget-id"));
+                if (widget == null) {
+                    return;
+                }
+                Long deletedAt = Tombstones.parse(record.get("deleted-at"));
+                if (deletedAt == null) {
+                    return;
+                }
+                Tombstones.markAsDeleted(widget, deletedAt);
+                StateTraversal.forEachWidget(widget.getNextState(), (s, w) -> Tombstones.markAsDeleted(w, deletedAt));
+            } else if (TYPE_MERGED.equals(type)) {
+                Widget merged = JSONStateParser.parseWidget((JSONObject) record.get("widget"));
+                Widget widget = index.getWidget(state, merged.getId());
+                if (widget == null) {
+                    return;
+                }
+                applyMergedWidget(widget, merged);
+            } else {
+                log("Journal record with unknown type " + type + " skipped.");
+                return;
+            }
+            applied++;
+        }
+
+        void indexStates(AppState root) {
+            Deque<AppState> stack = new ArrayDeque<>();
+            if (root != null) {
+                stack.push(root);
+            }
+            while (!stack.isEmpty()) {
+                AppState state = stack.pop();
+                if (statesById.putIfAbsent(state.getId(), state) != null) {
+                    continue;
+                }
+                for (Widget widget : state.getVisibleWidgets()) {
+                    AppState nextState = widget.getNextState();
+                    if (nextState != null && !nextState.isHome()) {
+                        stack.push(nextState);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Take over the properties stored in a state model file. Visibility and plugin
+     * are not taken over, as they are reset when a state model is loaded.
+     */
+    private static void applyMergedWidget(Widget widget, Widget merged) {
+        widget.setText(merged.getText());
+        widget.setCreatedBy(merged.getCreatedBy());
+        widget.setComment(merged.getComment());
+        widget.setWidgetStatus(merged.getWidgetStatus());
+        widget.setCreatedDate(merged.getCreatedDate());
+        widget.setResolvedDate(merged.getResolvedDate());
+        widget.setReportedDate(merged.getReportedDate());
+        widget.setWeight(merged.getWeight());
+        widget.setWidgetType(merged.getWidgetType());
+        widget.setWidgetSubtype(merged.getWidgetSubtype());
+        widget.setReportedText(merged.getReportedText());
+        widget.setReportedBy(merged.getReportedBy());
+        if (merged.getLocationArea() != null) {
+            widget.setLocationArea(merged.getLocationArea());
+        }
+        merged.getMetadataKeys().forEach(key -> widget.putMetadata(key, merged.getMetadata(key)));
+    }
+
+    private static void log(String message) {
+        PluginLog.info(message);
+    }
+}
@@ -0,0 +1,144 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+
+import scout.AppState;
+import scout.Widget;
+
+/**
+ * Following states of a state graph which are written inline and which are written as reference.
+ * <p>
+ * A state is written inline at the first widget leading to it, in the order the states are written:
+ * depth-first along the visible widgets of a state. All other widgets leading to the state refer to it with
+ * "next-state-ref", the ID of the state. If several states with the same ID have been written before,
+ * "next-state-ref-index" selects the state by the order they have been written in.
+ * So states reachable from several widgets are written once and cycles end.
+ */
+public class StateReferences {
+
+    public static final String REF = "next-state-ref";
+    public static final String REF_INDEX = "next-state-ref-index";
+
+    private static final class Position {
+        final AppState state;
+        final int widgetIndex;
+
+        Position(AppState state, int widgetIndex) {
+            this.state = state;
+            this.widgetIndex = widgetIndex;
+        }
+    }
+
+    private static final class Frame {
+        final AppState state;
+        final List<Widget> widgets;
+        int next = 0;
+
+        Frame(AppState state) {
+            this.state = state;
+            this.widgets = state.getVisibleWidgets();
+        }
+    }
+
+    // Position of the widget each state is written at, the root state has none
+    private final Map<AppState, Position> inlinePositions = new IdentityHashMap<>();
+    // Number of states with the same ID written before the state
+    private final Map<AppState, Integer> indices = new IdentityHashMap<>();
+
+    /**
+     * @param root state the graph is written from
+     */
+    public StateReferences(AppState root) {
+        Map<String, Integer> statesById = new HashMap<>();
+        visit(root, statesById);
+
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(new Frame(root));
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+            if (frame.next >= frame.widgets.size()) {
+                stack.pop();
+                continue;
+            }
+            int i = frame.next++;
+
+            AppState nextState = frame.widgets.get(i).getNextState();
+            if (nextState != null && !nextState.isHome() && !indices.containsKey(nextState)) {
+                inlinePositions.put(nextState, new Position(frame.state, i));
+                visit(nextState, statesById);
+                stack.push(new Frame(nextState));
+            }
+        }
+    }
+
+    private void visit(AppState state, Map<String, Integer> statesById) {
+        indices.put(state, statesById.merge(String.valueOf(state.getId()), 1, Integer::sum) - 1);
+    }
+
+    /**
+     * @param state       state written
+     * @param widgetIndex index of the widget in the visible widgets of the state
+     * @param nextState   following state of the widget, neither null nor home
+     * @return true if the following state is written inline at the widget, false if it is referenced
+     */
+    public boolean isInline(AppState state, int widgetIndex, AppState nextState) {
+        Position position = inlinePositions.get(nextState);
+        return position != null && position.state == state && position.widgetIndex == widgetIndex;
+    }
+
+    /**
+     * Add the reference to the following state to the JSON object of a widget.
+     */
+    @SuppressWarnings("unchecked")
+    public void putReference(JSONObject json, AppState nextState) {
+        json.put(REF, nextState.getId());
+        int index = indices.getOrDefault(nextState, 0);
+        if (index > 0) {
+            json.put(REF_INDEX, (long) index);
+        }
+    }
+
+    /**
+     * @return the number of states with the same ID written before the state
+     */
+    public int getIndex(AppState state) {
+        return indices.getOrDefault(state, 0);
+    }
+
+    /**
+     * States by ID in the order they have been read, to resolve references while reading a state graph.
+     */
+    public static class Resolver {
+        private final Map<String, List<AppState>> states = new HashMap<>();
+
+        public void add(AppState state) {
+            states.computeIfAbsent(String.valueOf(state.getId()), id -> new ArrayList<>()).add(state);
+        }
+
+        /**
+         * @param stateId ID of "next-state-ref"
+         * @param index   "next-state-ref-index" or null
+         * @return the referenced state or null if it has not been read
+         */
+        public AppState resolve(Object stateId, Object index) {
+            List<AppState> candidates = states.get(String.valueOf(stateId));
+            int i = index instanceof Number ? ((Number) index).intValue() : 0;
+            if (candidates == null || i >= candidates.size()) {
+                return null;
+            }
+            return candidates.get(i);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import scout.AppState;
+import scout.Widget;
+
+/**
+ * Depth-first traversal of state graphs with an explicit stack instead of recursion,
+ * so long navigation chains do not overflow the call stack.
+ * <p>
+ * An operation which would call itself for the following states of a state is split into {@link Step}s.
+ * Each call of {@link Step#next()} does the work up to the next recursive call and returns the step of
+ * that call. The returned step is run to its end before the calling step continues, so the work is
+ * done in the same order as by the recursive operation.
+ */
+public final class StateTraversal {
+
+    /**
+     * The work of one recursive call.
+     */
+    public interface Step {
+        /**
+         * Continue the work up to the next recursive call.
+         *
+         * @return the step of the recursive call or null if this step is complete
+         */
+        Step next();
+    }
+
+    private StateTraversal() {
+    }
+
+    /**
+     * Run the step and all steps returned by it.
+     */
+    public static void run(Step step) {
+        Deque<Step> stack = new ArrayDeque<>();
+        stack.push(step);
+        while (!stack.isEmpty()) {
+            Step next = stack.peek().next();
+            if (next != null) {
+                stack.push(next);
+            } else {
+                stack.pop();
+            }
+        }
+    }
+
+    /**
+     * Call the action for the state and all states reachable with its visible widgets, except home states.
+     * Each state is visited once, before its following states.
+     */
+    public static void forEachState(AppState root, Consumer<AppState> action) {
+        if (root == null) {
+            return;
+        }
+        Set<AppState> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        visited.add(root);
+        run(new VisitStep(root, visited, action, false));
+    }
+
+    /**
+     * Call the action for all widgets of the state and of all states reachable with them, except home states,
+     * together with the state containing the widget. Hidden widgets and their following states are included,
+     * like in {@link AppState#getAllIncludingChildWidgets()}. The action may remove the widget from its state,
+     * the following states of a removed widget are not visited then.
+     */
+    public static void forEachWidget(AppState root, BiConsumer<AppState, Widget> action) {
+        if (root == null) {
+            return;
+        }
+        Set<AppState> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        visited.add(root);
+        run(new VisitStep(root, visited, state -> {
+            for (Widget widget : new ArrayList<>(state.getAllWidgets())) {
+                action.accept(state, widget);
+            }
+        }, true));
+    }
+
+    private static final class VisitStep implements Step {
+        private final AppState state;
+        private final Set<AppState> visited;
+        private final Consumer<AppState> action;
+        // Follow hidden widgets as well
+        private final boolean allWidgets;
+        private List<Widget> widgets = null;
+        private int next = 0;
+
+        VisitStep(AppState state, Set<AppState> visited, Consumer<AppState> action, boolean allWidgets) {
+            this.state = state;
+            this.visited = visited;
+            this.action = action;
+            this.allWidgets = allWidgets;
+        }
+
+        @Override
+        public Step next() {
+            if (widgets == null) {
+                action.accept(state);
+                widgets = allWidgets ? state.getAllWidgets() : state.getVisibleWidgets();
+            }
+            while (next < widgets.size()) {
+                AppState nextState = widgets.get(next++).getNextState();
+                if (nextState != null && !nextState.isHome() && visited.add(nextState)) {
+                    return new VisitStep(nextState, visited, action, allWidgets);
+                }
+            }
+            return null;
+        }
+    }
+}
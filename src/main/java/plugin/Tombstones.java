@@ -0,0 +1,62 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import scout.Widget;
+
+/**
+ * Deletion marks of widgets in a state model.
+ * <p>
+ * A widget is marked as deleted with the time of the deletion in milliseconds as meta-data
+ * {@link MultiUser#DELETED_AT}. The time is kept as {@link Long}, so checking a widget is a single
+ * meta-data lookup; values read from files of older formats, which contain it as string, are converted
+ * when the file is parsed. Since {@link JSONStateParser#FORMAT_V4} it is written as number.
+ */
+public final class Tombstones {
+
+    private Tombstones() {
+    }
+
+    /**
+     * @return the time the widget has been marked as deleted at or 0 if it is not marked
+     */
+    public static long deletedAt(Widget widget) {
+        if (widget == null) {
+            return 0;
+        }
+        Object value = widget.getMetadata(MultiUser.DELETED_AT);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        Long time = parse(value);
+        return time != null ? time : 0;
+    }
+
+    public static boolean isMarkedAsDeleted(Widget widget) {
+        return deletedAt(widget) > 0;
+    }
+
+    public static void markAsDeleted(Widget widget, long deletedAt) {
+        widget.putMetadata(MultiUser.DELETED_AT, deletedAt);
+    }
+
+    /**
+     * @param value time as number or string
+     * @return the time or null if the value is not a time
+     */
+    public static Long parse(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import scout.Widget;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetVisibility;
+
+/**
+ * The properties which identify a widget across sessions, as compared by
+ * {@link MultiUser#isSameWidget(Widget, Widget)}: subtype, visibility and the
+ * meta-data "href", "xpath", "text", "tag" and "class".
+ * <p>
+ * Meta-data values are compared by their string value like in
+ * {@link MultiUser#hasEqualMetaData(String, Widget, Widget)}, a missing value equals "null".
+ */
+public final class WidgetFingerprint {
+
+    private static final String[] META_DATA_KEYS = { "href", "xpath", "text", "tag", "class" };
+
+    private final WidgetSubtype subtype;
+    private final WidgetVisibility visibility;
+    private final String[] metaData;
+    private final int hashCode;
+
+    private WidgetFingerprint(Widget widget) {
+        subtype = widget.getWidgetSubtype();
+        visibility = widget.getWidgetVisibility();
+        metaData = new String[META_DATA_KEYS.length];
+        for (int i = 0; i < META_DATA_KEYS.length; i++) {
+            metaData[i] = String.valueOf(widget.getMetadata(META_DATA_KEYS[i]));
+        }
+        hashCode = 31 * Objects.hash(subtype, visibility) + Arrays.hashCode(metaData);
+    }
+
+    public static WidgetFingerprint of(Widget widget) {
+        return new WidgetFingerprint(widget);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof WidgetFingerprint)) {
+            return false;
+        }
+        WidgetFingerprint other = (WidgetFingerprint) obj;
+        return hashCode == other.hashCode
+                && subtype == other.subtype
+                && visibility == other.visibility
+                && Arrays.equals(metaData, other.metaData);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return subtype + " " + visibility + " " + Arrays.toString(metaData);
+    }
+}
@@ -0,0 +1,84 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import scout.Widget;
+
+/**
+ * Lookup of widgets by their {@link WidgetFingerprint}.
+ * <p>
+ * Widgets with the same fingerprint are kept in their original order, so a lookup
+ * returns the same widget as a linear search with {@link MultiUser#indexOfSameWidget(Widget, List)}.
+ */
+public class WidgetIndex {
+
+    private final List<Widget> widgets;
+    private final Map<WidgetFingerprint, Deque<Widget>> byFingerprint;
+    private final Set<Widget> taken = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public WidgetIndex(List<Widget> widgets) {
+        this.widgets = new ArrayList<>(widgets);
+        this.byFingerprint = new HashMap<>(Math.max(16, (int) (widgets.size() / .75f) + 1));
+        for (Widget widget : widgets) {
+            byFingerprint.computeIfAbsent(WidgetFingerprint.of(widget), k -> new ArrayDeque<>(1)).add(widget);
+        }
+    }
+
+    /**
+     * @return the first widget which is the same as the given widget or null if there is no such widget
+     */
+    public Widget find(Widget widget) {
+        Deque<Widget> candidates = byFingerprint.get(WidgetFingerprint.of(widget));
+        return candidates == null ? null : candidates.peek();
+    }
+
+    /**
+     * Add a widget after all widgets of the index.
+     */
+    public void add(Widget widget) {
+        widgets.add(widget);
+        byFingerprint.computeIfAbsent(WidgetFingerprint.of(widget), k -> new ArrayDeque<>(1)).add(widget);
+    }
+
+    /**
+     * Remove the first widget which is the same as the given widget from the index.
+     *
+     * @return the removed widget or null if there is no such widget
+     */
+    public Widget take(Widget widget) {
+        Deque<Widget> candidates = byFingerprint.get(WidgetFingerprint.of(widget));
+        if (candidates == null) {
+            return null;
+        }
+        Widget found = candidates.poll();
+        if (found != null) {
+            taken.add(found);
+        }
+        return found;
+    }
+
+    /**
+     * @return the widgets which have not been taken, in their original order
+     */
+    public List<Widget> remaining() {
+        List<Widget> remaining = new ArrayList<>(widgets.size() - taken.size());
+        for (Widget widget : widgets) {
+            if (!taken.contains(widget)) {
+                remaining.add(widget);
+            }
+        }
+        return remaining;
+    }
+}
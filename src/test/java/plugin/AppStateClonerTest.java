@@ -0,0 +1,167 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.io.FileReader;
+import java.io.StringWriter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import scout.AppState;
+import scout.Path;
+import scout.PathStep;
+import scout.Widget;
+import scout.Widget.WidgetVisibility;
+
+public class AppStateClonerTest {
+
+    @Test
+    public void testCopy_SameAsOriginal() throws Exception {
+        String filePath = JSONStateParser.class.getClassLoader().getResource("scenario_20/state_initial.json").getPath();
+        AppState original;
+        try (FileReader reader = new FileReader(filePath)) {
+            original = JSONStateParser.parseCompleteAppState((JSONObject) new JSONParser().parse(reader));
+        }
+
+        AppState copy = AppStateCloner.copy(original);
+
+        assertNotSame(original, copy);
+        assertEquals(asJSON(original), asJSON(copy));
+        Widget btnToMac = copy.getWidget("btnToMac");
+        assertNotSame(original.getWidget("btnToMac"), btnToMac);
+        assertNotSame(original.getWidget("btnToMac").getNextState(), btnToMac.getNextState());
+    }
+
+    @Test
+    public void testCopy_GeneratedTree() throws Exception {
+        AppState original = new AppStateGenerator(3, 3, 8, 3, 0.2, 5L).generate();
+
+        AppState copy = AppStateCloner.copy(original);
+
+        assertEquals(asJSON(original), asJSON(copy));
+        assertEquals(original.getAllIncludingChildWidgets().size(), copy.getAllIncludingChildWidgets().size());
+    }
+
+    @Test
+    public void testCopy_SharedReferences() {
+        AppState home = new AppState("0", "Home");
+        AppState next = new AppState("1", null);
+        Widget first = createWidget("a", next);
+        Widget second = createWidget("b", next);
+        Widget inNext = createWidget("c", null);
+        inNext.putMetadata("matching_widget", first);
+        home.addWidget(first);
+        home.addWidget(second);
+        next.addWidget(inNext);
+        Path path = new Path("p");
+        path.addPathStep(new PathStep(first));
+        path.addPathStep(new PathStep(inNext));
+        home.addPath(path);
+
+        AppState copy = AppStateCloner.copy(home);
+
+        Widget firstCopy = copy.getWidget("a");
+        Widget secondCopy = copy.getWidget("b");
+        assertNotSame(next, firstCopy.getNextState());
+        assertSame(firstCopy.getNextState(), secondCopy.getNextState());
+        Widget inNextCopy = firstCopy.getNextState().getWidget("c");
+        assertSame(firstCopy, inNextCopy.getMetadata("matching_widget"));
+        Path pathCopy = copy.getPaths().get(0);
+        assertNotSame(path, pathCopy);
+        assertSame(firstCopy, pathCopy.getPathStep(0).getAction());
+        assertSame(inNextCopy, pathCopy.getPathStep(1).getAction());
+    }
+
+    @Test
+    public void testCopy_Cycle() {
+        AppState home = new AppState("0", "Home");
+        AppState next = new AppState("1", null);
+        home.addWidget(createWidget("a", next));
+        next.addWidget(createWidget("b", home));
+
+        AppState copy = AppStateCloner.copy(home);
+
+        assertSame(copy, copy.getWidget("a").getNextState().getWidget("b").getNextState());
+    }
+
+    @Test
+    public void testCopy_WidgetFields() {
+        Widget original = createWidget("1", null);
+        original.setText("text");
+        original.setWeight(0.5);
+        original.setComment("comment");
+        original.setCreatedDate(new Date(1623332401000L));
+        original.setReportedText("reported");
+        original.setLocationArea(new Rectangle(1, 2, 3, 4));
+        original.setWidgetVisibility(WidgetVisibility.HIDDEN);
+        original.setCreatedByPlugin("plugin");
+        original.putMetadata("xpath", "/html/body");
+        original.addIgnoredMetadata("xpath");
+
+        Widget copy = AppStateCloner.copy(original);
+
+        assertEquals("1", copy.getId());
+        assertEquals("text", copy.getText());
+        assertEquals(0.5, copy.getWeight(), 0.0001);
+        assertEquals("comment", copy.getComment());
+        assertEquals(original.getCreatedDate(), copy.getCreatedDate());
+        assertNotSame(original.getCreatedDate(), copy.getCreatedDate());
+        assertEquals("reported", copy.getReportedText());
+        assertEquals(original.getLocationArea(), copy.getLocationArea());
+        assertNotSame(original.getLocationArea(), copy.getLocationArea());
+        assertEquals(WidgetVisibility.HIDDEN, copy.getWidgetVisibility());
+        assertEquals("plugin", copy.getCreatedByPlugin());
+        assertEquals("/html/body", copy.getMetadata("xpath"));
+        assertTrue(copy.isIgnoredMetadata("xpath"));
+        assertNull(copy.getNextState());
+    }
+
+    @Test
+    public void testCopy_HiddenWidgetsAndMetadata() {
+        AppState original = new AppState("0", "Home");
+        original.addProductVersion("1.0");
+        Widget hidden = createWidget("h", null);
+        original.addWidget(hidden, WidgetVisibility.HIDDEN, "plugin");
+        Map<String, String> diff = new HashMap<>();
+        diff.put("h", "CREATED");
+        original.putMetadata("diff", diff);
+
+        AppState copy = AppStateCloner.copy(original);
+
+        assertEquals(original.getProductVersions(), copy.getProductVersions());
+        assertEquals(1, copy.getHiddenWidgets().size());
+        assertEquals("plugin", copy.getHiddenWidgets().get(0).getCreatedByPlugin());
+        assertEquals(diff, copy.getMetadata("diff"));
+        assertNotSame(diff, copy.getMetadata("diff"));
+    }
+
+    private Widget createWidget(String id, AppState nextState) {
+        Widget widget = new Widget();
+        widget.setId(id);
+        widget.setNextState(nextState);
+        return widget;
+    }
+
+    /**
+     * The state as parsed JSON document, as the order of colliding metadata keys may differ.
+     */
+    private Object asJSON(AppState state) throws Exception {
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(state, 0L, out);
+        return new JSONParser().parse(out.toString());
+    }
+}
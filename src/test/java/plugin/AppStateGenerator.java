@@ -0,0 +1,153 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetStatus;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+/**
+ * Generates synthetic state trees for tests and benchmarks.
+ * The generated trees are deterministic for a given configuration and seed.
+ */
+public class AppStateGenerator {
+
+    private static final String[] TAGS = { "A", "BUTTON", "INPUT", "DIV", "SPAN", "LI" };
+
+    private final int depth;
+    private final int fanOut;
+    private final int widgetsPerState;
+    private final int metadataSize;
+    private final double issueRatio;
+    private final Random random;
+
+    private long stateCounter = 0;
+    private long widgetCounter = 0;
+
+    /**
+     * @param depth           number of state levels below the home state
+     * @param fanOut          number of widgets per state that lead to a new state
+     * @param widgetsPerState number of visible widgets per state
+     * @param metadataSize    number of additional meta-data entries per widget
+     * @param issueRatio      share of widgets (0.0 - 1.0) reported as issue
+     * @param seed            seed for the random generator
+     */
+    public AppStateGenerator(int depth, int fanOut, int widgetsPerState, int metadataSize, double issueRatio, long seed) {
+        this.depth = depth;
+        this.fanOut = Math.min(fanOut, widgetsPerState);
+        this.widgetsPerState = widgetsPerState;
+        this.metadataSize = metadataSize;
+        this.issueRatio = issueRatio;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Number of widgets a tree generated with the given configuration contains.
+     */
+    public static long expectedWidgetCount(int depth, int fanOut, int widgetsPerState) {
+        long states = 0;
+        long statesOnLevel = 1;
+        for (int level = 0; level <= depth; level++) {
+            states += statesOnLevel;
+            statesOnLevel *= Math.min(fanOut, widgetsPerState);
+        }
+        return states * widgetsPerState;
+    }
+
+    /**
+     * Generate a complete state tree starting with a home state.
+     *
+     * @return the home state
+     */
+    public AppState generate() {
+        AppState home = new AppState("0", "Home");
+        fillState(home, 0);
+        return home;
+    }
+
+    /**
+     * Simulate a test session on a copy of the given tree.
+     * A share of the visible widgets in every state is removed and new widgets are added.
+     *
+     * @param tree         tree that shall be changed, usually a deep copy of a generated tree
+     * @param createRatio  share of new widgets per state
+     * @param deleteRatio  share of removed widgets per state
+     * @return the changed tree
+     */
+    public AppState mutate(AppState tree, double createRatio, double deleteRatio) {
+        for (AppState state : tree.getVisibleStates()) {
+            List<Widget> visible = state.getVisibleWidgets();
+            for (Widget widget : visible) {
+                if (widget.getNextState() == null && random.nextDouble() < deleteRatio) {
+                    state.removeWidget(widget);
+                }
+            }
+
+            int toCreate = (int) Math.round(visible.size() * createRatio);
+            for (int i = 0; i < toCreate; i++) {
+                state.addWidget(createWidget());
+            }
+        }
+        return tree;
+    }
+
+    private void fillState(AppState state, int level) {
+        List<Widget> widgets = new ArrayList<>();
+        for (int i = 0; i < widgetsPerState; i++) {
+            Widget widget = createWidget();
+            if (level < depth && i < fanOut) {
+                AppState nextState = new AppState(String.valueOf(++stateCounter), "State " + stateCounter);
+                nextState.addProductVersion("1.0");
+                nextState.putMetadata("page_content", String.valueOf(random.nextInt(1000000)));
+                fillState(nextState, level + 1);
+                widget.setNextState(nextState);
+            }
+            widgets.add(widget);
+        }
+        state.addWidgets(widgets, WidgetVisibility.VISIBLE, null);
+    }
+
+    private Widget createWidget() {
+        long no = ++widgetCounter;
+        Widget widget = new Widget();
+        widget.setId("w" + no);
+        widget.setWeight(random.nextInt(100));
+        widget.setCreatedBy("Tester " + random.nextInt(30));
+        widget.setCreatedDate(new Date(1623332401000L + no));
+        widget.setWidgetStatus(WidgetStatus.LOCATED);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.setLocationArea(new Rectangle(random.nextInt(1200), random.nextInt(800), 10 + random.nextInt(200), 10 + random.nextInt(40)));
+
+        if (random.nextDouble() < issueRatio) {
+            widget.setWidgetType(WidgetType.ISSUE);
+            widget.setReportedText("Issue reported for widget " + no);
+            widget.setReportedBy(widget.getCreatedBy());
+            widget.setReportedDate(new Date(1623332467000L + no));
+        } else {
+            widget.setWidgetType(WidgetType.ACTION);
+        }
+
+        String tag = TAGS[random.nextInt(TAGS.length)];
+        widget.putMetadata("xpath", "/html[1]/body[1]/div[" + random.nextInt(20) + "]/div[" + random.nextInt(20) + "]/" + tag.toLowerCase() + "[" + no + "]");
+        widget.putMetadata("href", "https://mydomain.de/page/" + no);
+        widget.putMetadata("text", "Widget " + no);
+        widget.putMetadata("tag", tag);
+        widget.putMetadata("class", "v-btn v-btn--flat v-btn--router theme--dark v-size--default");
+        for (int i = 0; i < metadataSize; i++) {
+            widget.putMetadata("meta_" + i, String.valueOf(random.nextInt(100000)));
+        }
+        return widget;
+    }
+}
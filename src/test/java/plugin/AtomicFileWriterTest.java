@@ -0,0 +1,114 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import plugin.AtomicFileWriter.SyncMode;
+import scout.AppState;
+
+public class AtomicFileWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWrite_KeepBackup() throws Exception {
+        Path target = folder.getRoot().toPath().resolve("shared-state.json");
+
+        AtomicFileWriter.write(target, out -> out.write(bytes("first")), SyncMode.ALL, true);
+        assertFalse(Files.exists(AtomicFileWriter.backupOf(target)));
+
+        AtomicFileWriter.write(target, out -> out.write(bytes("second")), SyncMode.FILE, true);
+        assertArrayEquals(bytes("second"), Files.readAllBytes(target));
+        assertArrayEquals(bytes("first"), Files.readAllBytes(AtomicFileWriter.backupOf(target)));
+
+        // The backup is not changed by writing the target
+        AtomicFileWriter.write(target, out -> out.write(bytes("third")), SyncMode.NONE, false);
+        assertArrayEquals(bytes("first"), Files.readAllBytes(AtomicFileWriter.backupOf(target)));
+        assertEquals(2, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testWrite_Failure() throws Exception {
+        Path target = folder.getRoot().toPath().resolve("shared-state.json");
+        AtomicFileWriter.write(target, out -> out.write(bytes("good")), SyncMode.FILE, true);
+
+        try {
+            AtomicFileWriter.write(target, out -> {
+                out.write(bytes("half"));
+                throw new IOException("Disk full");
+            }, SyncMode.FILE, true);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+
+        assertArrayEquals(bytes("good"), Files.readAllBytes(target));
+        // No temporary file is left
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testWrite_KeepPermissions() throws Exception {
+        Path target = folder.getRoot().toPath().resolve("shared-state.json");
+        assumeTrue(Files.getFileAttributeView(folder.getRoot().toPath(), PosixFileAttributeView.class) != null);
+
+        // A new file gets the defaults of the process, like any other file created in the folder
+        Path other = Files.createFile(folder.getRoot().toPath().resolve("other.json"));
+        AtomicFileWriter.write(target, out -> out.write(bytes("first")), SyncMode.NONE, true);
+        assertEquals(Files.getPosixFilePermissions(other), Files.getPosixFilePermissions(target));
+
+        // Readable by the other testers, they keep that access after a save
+        Set<PosixFilePermission> shared = PosixFilePermissions.fromString("rw-rw-r--");
+        Files.setPosixFilePermissions(target, shared);
+        AtomicFileWriter.write(target, out -> out.write(bytes("second")), SyncMode.NONE, true);
+        assertEquals(shared, Files.getPosixFilePermissions(target));
+        assertEquals(shared, Files.getPosixFilePermissions(AtomicFileWriter.backupOf(target)));
+    }
+
+    @Test
+    public void testLoadStateModel_Backup() throws Exception {
+        MultiUser multiUser = new MultiUser(true);
+        File file = new File(folder.getRoot(), "shared-state.json");
+
+        assertTrue(multiUser.saveStateModel(file.getPath(), new AppState("0", "Home")));
+        assertTrue(multiUser.saveStateModel(file.getPath(), new AppState("0", "Home")));
+
+        // Half written file of a crashed save
+        Files.write(file.toPath(), bytes("{\"id\":\"0\",\"bookmar"));
+        AppState state = multiUser.loadStateModel(file.getPath());
+        assertNotNull(state);
+        assertEquals("0", state.getId());
+
+        // Missing file of a crashed save
+        Files.delete(file.toPath());
+        assertNotNull(multiUser.loadStateModel(file.getPath()));
+    }
+
+    private byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
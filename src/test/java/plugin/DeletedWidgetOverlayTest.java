@@ -0,0 +1,97 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+public class DeletedWidgetOverlayTest {
+
+    private final AtomicInteger checkedWidgets = new AtomicInteger();
+    private final DeletedWidgetOverlay overlay = new DeletedWidgetOverlay(w -> {
+        checkedWidgets.incrementAndGet();
+        return w.getMetadata(MultiUser.DELETED_AT) != null;
+    }, x -> x, y -> y);
+
+    @Test
+    public void testGetDeletedAreas() {
+        AppState state = new AppState("0", "Home");
+        state.addWidget(createWidget("1", new Rectangle(10, 10, 20, 20), true));
+        state.addWidget(createWidget("2", new Rectangle(50, 10, 20, 20), false));
+        state.addWidget(createWidget("3", null, true));
+
+        assertEquals(Collections.singletonList(new Rectangle(10, 10, 20, 20)), overlay.getDeletedAreas(state));
+        assertSame(overlay.getDeletedAreas(state), overlay.getDeletedAreas(state));
+        assertEquals(2, checkedWidgets.get());
+    }
+
+    @Test
+    public void testGetDeletedAreas_Invalidated() {
+        AppState state = new AppState("0", "Home");
+        Widget widget = createWidget("1", new Rectangle(10, 10, 20, 20), false);
+        state.addWidget(widget);
+        assertTrue(overlay.getDeletedAreas(state).isEmpty());
+
+        // A new widget is noticed without invalidating
+        state.addWidget(createWidget("2", new Rectangle(50, 10, 20, 20), true));
+        assertEquals(1, overlay.getDeletedAreas(state).size());
+
+        widget.putMetadata(MultiUser.DELETED_AT, 1624998389127L);
+        assertEquals(1, overlay.getDeletedAreas(state).size());
+        overlay.invalidate();
+        assertEquals(2, overlay.getDeletedAreas(state).size());
+
+        AppState other = new AppState("1", "Other");
+        assertTrue(overlay.getDeletedAreas(other).isEmpty());
+    }
+
+    @Test
+    public void testPaint() {
+        AppState state = new AppState("0", "Home");
+        state.addWidget(createWidget("1", new Rectangle(10, 10, 20, 20), true));
+
+        BufferedImage capture = new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = capture.createGraphics();
+        overlay.paint(g2, state, 100, 100);
+        overlay.paint(g2, state, 100, 100);
+        g2.dispose();
+
+        assertEquals(1, checkedWidgets.get());
+        assertEquals(Color.red.getRGB(), capture.getRGB(11, 20));
+        assertEquals(Color.red.getRGB(), capture.getRGB(20, 29));
+        assertNotEquals(Color.red.getRGB(), capture.getRGB(20, 20));
+        assertNotEquals(Color.red.getRGB(), capture.getRGB(50, 50));
+    }
+
+    private Widget createWidget(String id, Rectangle area, boolean deleted) {
+        Widget widget = new Widget();
+        widget.setId(id);
+        widget.setWidgetType(WidgetType.ACTION);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.setLocationArea(area);
+        if (deleted) {
+            widget.putMetadata(MultiUser.DELETED_AT, 1624998389127L);
+        }
+        return widget;
+    }
+}
@@ -3,6 +3,7 @@ package plugin;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static plugin.JSONStateParser.locationAreaAsJSONObject;
 import static plugin.JSONStateParser.metadataAsJSONObject;
@@ -14,11 +15,13 @@ import java.awt.Rectangle;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -227,8 +230,35 @@ public class JSONStateParserTest {
     }
 
     @Test
-    public void testParseState() {
-        // TODO: Implement
+    public void testParseState() throws Exception {
+        String filePath = JSONStateParser.class.getClassLoader().getResource("scenario_20/state_initial.json").getPath();
+        JSONObject jsonModel = loadJSONModel(filePath);
+        List<Widget> allWidgets = JSONStateParser.parseWidgets((JSONArray) jsonModel.get("all-widgets"));
+
+        AppState result = JSONStateParser.parseState((JSONObject) jsonModel.get("state"), JSONStateParser.indexWidgets(allWidgets));
+
+        assertEquals("0", result.getId());
+        assertEquals("Home", result.getBookmark());
+        Widget btnToMac = result.getWidget("btnToMac");
+        assertNotNull(btnToMac);
+        assertTrue(allWidgets.contains(btnToMac));
+        assertNotNull(btnToMac.getNextState().getWidget("btnToAir"));
+    }
+
+    @Test
+    public void testIndexWidgets_FirstWins() {
+        Widget first = new Widget();
+        first.setId("1");
+        Widget duplicate = new Widget();
+        duplicate.setId("1");
+        Widget other = new Widget();
+        other.setId("2");
+
+        Map<String, Widget> result = JSONStateParser.indexWidgets(Arrays.asList(first, duplicate, other));
+
+        assertEquals(2, result.size());
+        assertSame(first, result.get("1"));
+        assertSame(other, result.get("2"));
     }
 
     @Test
@@ -0,0 +1,131 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.FileReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import scout.AppState;
+import scout.Widget;
+
+public class JSONStateReaderTest {
+
+    @Test
+    public void testReadCompleteAppState_SameAsParser() throws Exception {
+        for (String resource : new String[] { "scenario_10/state.json", "scenario_10/state_other.json",
+                "scenario_20/state_initial.json", "scenario_20/state_user1.json", "scenario_20/state_user2.json" }) {
+            String filePath = JSONStateParser.class.getClassLoader().getResource(resource).getPath();
+
+            AppState expected;
+            try (FileReader reader = new FileReader(filePath)) {
+                expected = JSONStateParser.parseCompleteAppState((JSONObject) new JSONParser().parse(reader));
+            }
+            AppState result;
+            try (FileReader reader = new FileReader(filePath)) {
+                result = JSONStateReader.readCompleteAppState(reader);
+            }
+
+            assertEquals(resource, asJSON(expected), asJSON(result));
+        }
+    }
+
+    @Test
+    public void testReadCompleteAppState_GeneratedTree() throws Exception {
+        AppState state = new AppStateGenerator(3, 3, 8, 3, 0.1, 3L).generate();
+        String json = asJSON(state);
+
+        AppState expected = JSONStateParser.parseCompleteAppState((JSONObject) new JSONParser().parse(json));
+        AppState result = JSONStateReader.readCompleteAppState(new StringReader(json));
+
+        assertEquals(asJSON(expected), asJSON(result));
+    }
+
+    @Test
+    public void testReadCompleteAppState_StateBeforeWidgets() throws Exception {
+        String json = "{\"state\":{\"state-id\":\"0\",\"bookmarks\":\"Home\",\"product-version\":[\"1\"],"
+                + "\"meta-data\":{\"a\":{\"b\":[1,2,{\"c\":null}]}},"
+                + "\"visible-widgets\":[{\"id\":\"w1\",\"meta-data\":{\"matching_widget\":\"w2\"},"
+                + "\"next-state\":{\"state-id\":\"1\",\"bookmarks\":null,\"visible-widgets\":[]}}]},"
+                + "\"paths\":[{\"widgets\":[\"w1\"]}],"
+                + "\"all-widgets\":[" + widgetJSON("w1") + "," + widgetJSON("w2") + "]}";
+
+        AppState result = JSONStateReader.readCompleteAppState(new StringReader(json));
+
+        assertEquals("0", result.getId());
+        assertEquals("Home", result.getBookmark());
+        Widget w1 = result.getWidget("w1");
+        assertNotNull(w1);
+        assertEquals("div", w1.getMetadata("class"));
+        assertEquals("w2", ((Widget) w1.getMetadata("matching_widget")).getId());
+        assertEquals("1", w1.getNextState().getId());
+        assertNull(w1.getNextState().getBookmark());
+    }
+
+    @Test
+    public void testReadCompleteAppState_NoState() throws Exception {
+        AppState result = JSONStateReader.readCompleteAppState(new StringReader("{\"all-widgets\":[]}"));
+
+        assertNull(result);
+    }
+
+    @Test
+    public void testReadCompleteAppState_DuplicateWidgets() throws Exception {
+        String json = "{\"all-widgets\":[" + widgetJSON("w1") + "," + widgetJSON("w1") + "],"
+                + "\"state\":{\"state-id\":\"0\",\"visible-widgets\":[{\"id\":\"w1\",\"next-state\":null}]}}";
+
+        AppState result = JSONStateReader.readCompleteAppState(new StringReader(json));
+
+        assertEquals(1, result.getVisibleWidgets().size());
+        assertSame(result.getWidget("w1"), result.getVisibleWidgets().get(0));
+    }
+
+    @Test
+    public void testReadCompleteAppState_StringTable() throws Exception {
+        AppState state = new AppStateGenerator(3, 3, 8, 3, 0.1, 3L).generate();
+        StringWriter v2 = new StringWriter();
+        JSONStateWriter.writeAppState(state, 0L, v2, false, JSONStateParser.FORMAT_V2);
+
+        AppState expected = JSONStateReader.readCompleteAppState(new StringReader(asJSON(state)));
+        AppState parsed = JSONStateParser.parseCompleteAppState((JSONObject) new JSONParser().parse(v2.toString()));
+        AppState result = JSONStateReader.readCompleteAppState(new StringReader(v2.toString()));
+
+        assertEquals(asJSON(expected), asJSON(parsed));
+        assertEquals(asJSON(expected), asJSON(result));
+    }
+
+    @Test
+    public void testReadCompleteAppState_WidgetsBeforeStringTable() throws Exception {
+        String json = "{\"format-version\":2,"
+                + "\"all-widgets\":[" + widgetJSON("w1").replace("\"div\"", "0") + "],"
+                + "\"state\":{\"state-id\":\"0\",\"visible-widgets\":[{\"id\":\"w1\",\"next-state\":null}]},"
+                + "\"strings\":[\"div\"]}";
+
+        AppState result = JSONStateReader.readCompleteAppState(new StringReader(json));
+
+        assertEquals("div", result.getWidget("w1").getMetadata("class"));
+    }
+
+    private String widgetJSON(String id) {
+        return "{\"id\":\"" + id + "\",\"weight\":1,\"type\":\"ACTION\",\"subtype\":\"LEFT_CLICK_ACTION\","
+                + "\"status\":\"LOCATED\",\"visibility\":\"VISIBLE\",\"location\":null,"
+                + "\"meta-data\":{\"class\":\"div\",\"tag\":\"DIV\"}}";
+    }
+
+    private String asJSON(AppState state) throws Exception {
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(state, 0L, out);
+        return out.toString();
+    }
+}
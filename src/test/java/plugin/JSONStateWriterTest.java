@@ -0,0 +1,157 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.StringWriter;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import scout.AppState;
+import scout.Path;
+import scout.PathStep;
+import scout.Widget;
+
+public class JSONStateWriterTest {
+
+    @Test
+    public void testWriteAppState_SameAsJSONObject() throws Exception {
+        AppState state = loadAppState("scenario_20/state_initial.json");
+
+        assertSameAsJSONObject(state);
+    }
+
+    @Test
+    public void testWriteAppState_GeneratedTree() throws Exception {
+        AppState state = new AppStateGenerator(3, 3, 10, 4, 0.2, 7L).generate();
+
+        Widget widget = state.getVisibleWidgets().get(0);
+        Widget matchingWidget = new Widget();
+        matchingWidget.setId("matching");
+        matchingWidget.putMetadata("text", "quote \" and slash /");
+        widget.putMetadata("matching_widget", matchingWidget);
+        widget.setResolvedDate(new Date(1623340200000L));
+        widget.setComment("line\nbreak");
+        state.getVisibleWidgets().get(1).setLocationArea(null);
+
+        Path path = new Path("900");
+        path.setCreatedDate(new Date(1623332401000L));
+        path.addPathStep(new PathStep(widget));
+        state.addPath(path);
+
+        assertSameAsJSONObject(state);
+    }
+
+    @Test
+    public void testWriteAppState_AnnotatedTree() throws Exception {
+        AppState before = loadAppState("scenario_20/state_initial.json");
+        AppState after = loadAppState("scenario_20/state_user1.json");
+        new MultiUser(true).annotateDiffsInStates(before, after);
+
+        assertSameAsJSONObject(after);
+    }
+
+    @Test
+    public void testWriteAppState_OutputStream() throws Exception {
+        AppState state = loadAppState("scenario_20/state_initial.json");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        JSONStateWriter.writeAppState(state, out);
+
+        JSONObject json = (JSONObject) new JSONParser().parse(out.toString());
+        AppState result = JSONStateParser.parseCompleteAppState(json);
+        assertEquals(state.getAllIncludingChildWidgets().size(), result.getAllIncludingChildWidgets().size());
+    }
+
+    @Test
+    public void testWriteAppState_Parallel() throws Exception {
+        AppState state = new AppStateGenerator(4, 4, 12, 4, 0.2, 13L).generate();
+        Widget widget = state.getVisibleWidgets().get(0).getNextState().getVisibleWidgets().get(0);
+        Widget matchingWidget = new Widget();
+        matchingWidget.setId("matching");
+        widget.putMetadata("matching_widget", matchingWidget);
+
+        StringWriter sequential = new StringWriter();
+        JSONStateWriter.writeAppState(state, 1623332401000L, sequential, false);
+        for (int i = 0; i < 5; i++) {
+            StringWriter parallel = new StringWriter();
+            JSONStateWriter.writeAppState(state, 1623332401000L, parallel, true);
+            assertEquals(sequential.toString(), parallel.toString());
+        }
+
+        AppState small = loadAppState("scenario_20/state_initial.json");
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(small, 1623332401000L, out, true);
+        String expected = JSONStateParser.appStateAsJSONObject(small).toJSONString()
+                .replaceFirst("\"last-updated-at-ms\":\\d+", "\"last-updated-at-ms\":1623332401000");
+        assertEquals(expected, out.toString());
+    }
+
+    @Test
+    public void testWriteAppState_StringTable() throws Exception {
+        AppState state = new AppStateGenerator(3, 3, 10, 4, 0.2, 7L).generate();
+        List<Widget> visibleWidgets = state.getVisibleWidgets();
+        // Matching widgets which are also used or match more than one widget are written once
+        visibleWidgets.get(0).putMetadata("matching_widget", visibleWidgets.get(1));
+        Widget matchingWidget = new Widget();
+        matchingWidget.setId("matching");
+        visibleWidgets.get(2).putMetadata("matching_widget", matchingWidget);
+        visibleWidgets.get(3).putMetadata("matching_widget", matchingWidget);
+
+        StringWriter v1 = new StringWriter();
+        JSONStateWriter.writeAppState(state, 1623332401000L, v1, false, JSONStateParser.FORMAT_V1);
+        StringWriter v2 = new StringWriter();
+        JSONStateWriter.writeAppState(state, 1623332401000L, v2, false, JSONStateParser.FORMAT_V2);
+        StringWriter v2Parallel = new StringWriter();
+        JSONStateWriter.writeAppState(state, 1623332401000L, v2Parallel, true, JSONStateParser.FORMAT_V2);
+
+        assertEquals(v2.toString(), v2Parallel.toString());
+        assertTrue(v2.toString().length() < v1.toString().length());
+
+        JSONObject json = (JSONObject) new JSONParser().parse(v2.toString());
+        assertEquals(2L, json.get("format-version"));
+        Set<Object> ids = new HashSet<>();
+        for (Object widget : (JSONArray) json.get("all-widgets")) {
+            assertTrue(ids.add(((JSONObject) widget).get("id")));
+        }
+
+        AppState expected = JSONStateParser.parseCompleteAppState((JSONObject) new JSONParser().parse(v1.toString()));
+        AppState result = JSONStateParser.parseCompleteAppState(json);
+        assertEquals(asV1(expected), asV1(result));
+    }
+
+    private String asV1(AppState state) throws Exception {
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(state, 1623332401000L, out, false, JSONStateParser.FORMAT_V1);
+        return out.toString();
+    }
+
+    private void assertSameAsJSONObject(AppState state) throws Exception {
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(state, 1623332401000L, out);
+
+        String expected = JSONStateParser.appStateAsJSONObject(state).toJSONString()
+                .replaceFirst("\"last-updated-at-ms\":\\d+", "\"last-updated-at-ms\":1623332401000");
+        assertEquals(expected, out.toString());
+    }
+
+    private AppState loadAppState(String resource) throws Exception {
+        String filePath = JSONStateParser.class.getClassLoader().getResource(resource).getPath();
+        try (FileReader reader = new FileReader(filePath)) {
+            return JSONStateParser.parseCompleteAppState((JSONObject) new JSONParser().parse(reader));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMillis(50), 0);
+
+        for (int i = 0; i < 98; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getMaxMillis(), 0);
+        assertEquals((98 * 0.1 + 10 + 50) / 100, histogram.getMeanMillis(), 1e-9);
+        // Upper bounds of the buckets, at most twice the recorded durations
+        double p50 = histogram.getPercentileMillis(50);
+        assertTrue(String.valueOf(p50), p50 >= 0.1 && p50 <= 0.2);
+        double p99 = histogram.getPercentileMillis(99);
+        assertTrue(String.valueOf(p99), p99 >= 10 && p99 <= 20);
+        assertEquals(50, histogram.getPercentileMillis(100), 0);
+    }
+
+    @Test
+    public void testReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        histogram.record(TimeUnit.SECONDS.toNanos(2));
+        assertEquals(2, histogram.getCount());
+        // Negative durations count as less than a microsecond
+        assertEquals(0.001, histogram.getPercentileMillis(50), 0);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMillis(), 0);
+        assertEquals(0, histogram.getMeanMillis(), 0);
+    }
+}
@@ -0,0 +1,77 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetVisibility;
+
+public class MergeIndexTest {
+
+    @Test
+    public void testGetWidget() {
+        AppState state = new AppState("0", "Home");
+        Widget first = createWidget("1", "Login");
+        Widget duplicateId = createWidget("1", "Logout");
+        state.addWidget(first);
+        state.addWidget(duplicateId);
+        MergeIndex index = new MergeIndex();
+
+        assertSame(state.getWidget("1"), index.getWidget(state, "1"));
+        assertNull(index.getWidget(state, "2"));
+    }
+
+    @Test
+    public void testFindSameVisibleWidget() {
+        AppState state = new AppState("0", "Home");
+        Widget hidden = createWidget("1", "Login");
+        hidden.setWidgetVisibility(WidgetVisibility.HIDDEN);
+        Widget visible = createWidget("2", "Login");
+        Widget other = createWidget("3", "Login");
+        other.setWidgetVisibility(WidgetVisibility.HIDDEN);
+        state.addWidget(hidden);
+        state.addWidget(visible);
+        MergeIndex index = new MergeIndex();
+
+        assertSame(visible, index.findSameVisibleWidget(state, createWidget("4", "Login")));
+        assertNull(index.findSameVisibleWidget(state, createWidget("5", "Logout")));
+        assertNull(index.findSameVisibleWidget(state, other));
+        assertNull(index.findSameVisibleWidget(state, null));
+    }
+
+    @Test
+    public void testAddWidget() {
+        AppState state = new AppState("0", "Home");
+        state.addWidget(createWidget("1", "Login"));
+        MergeIndex index = new MergeIndex();
+        index.getWidget(state, "1");
+
+        Widget added = createWidget("2", "Logout");
+        index.addWidget(state, added);
+        index.addWidget(state, added);
+
+        assertEquals(2, state.getAllWidgets().size());
+        assertSame(added, index.getWidget(state, "2"));
+        assertSame(added, index.findSameVisibleWidget(state, createWidget("3", "Logout")));
+    }
+
+    private Widget createWidget(String id, String text) {
+        Widget widget = new Widget();
+        widget.setId(id);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.putMetadata("xpath", "/html[1]/body[1]/div[1]/a[1]");
+        widget.putMetadata("text", text);
+        widget.putMetadata("tag", "A");
+        return widget;
+    }
+}
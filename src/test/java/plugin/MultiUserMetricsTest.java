@@ -0,0 +1,134 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+public class MultiUserMetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecord() {
+        MultiUserMetrics metrics = new MultiUserMetrics("product");
+        metrics.recordPhase(MultiUserMetrics.Phase.MERGE, 3_000_000);
+        metrics.recordMerge(2, 1, 5);
+        metrics.recordMerge(1, 0, 7);
+        metrics.recordBytesRead(100);
+        metrics.recordBytesWritten(200);
+        metrics.recordModelSize(createModel());
+
+        assertEquals(1, metrics.getPhaseLatency(MultiUserMetrics.Phase.MERGE).getCount());
+        assertEquals(3, metrics.getPhaseLatency(MultiUserMetrics.Phase.MERGE).getMaxMillis(), 0);
+        assertEquals(0, metrics.getPhaseLatencies().get("json-read").getCount());
+        assertEquals(2, metrics.getMerges());
+        assertEquals(3, metrics.getCreatedWidgets());
+        assertEquals(12, metrics.getUnchangedWidgets());
+        assertEquals(1, metrics.getLastMergeCreatedWidgets());
+        assertEquals(0, metrics.getLastMergeDeletedWidgets());
+        assertEquals(100, metrics.getBytesRead());
+        assertEquals(200, metrics.getBytesWritten());
+        assertEquals(2, metrics.getModelStates());
+        assertEquals(3, metrics.getModelWidgets());
+
+        metrics.reset();
+        assertEquals(0, metrics.getMerges());
+        assertEquals(0, metrics.getPhaseLatency(MultiUserMetrics.Phase.MERGE).getCount());
+        assertEquals(0, metrics.getModelWidgets());
+    }
+
+    @Test
+    public void testMXBean() throws Exception {
+        MultiUserMetrics metrics = MultiUserMetrics.forProduct("metrics, test");
+        assertSame(metrics, MultiUserMetrics.forProduct("metrics, test"));
+        metrics.recordPhase(MultiUserMetrics.Phase.WRITE, 1_000_000);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = MultiUserMetrics.objectNameOf("metrics, test");
+        assertTrue(server.isRegistered(name));
+        assertEquals("metrics, test", server.getAttribute(name, "Product"));
+
+        TabularData latencies = (TabularData) server.getAttribute(name, "PhaseLatencies");
+        CompositeData write = (CompositeData) latencies.get(new Object[] { "write" }).get("value");
+        assertEquals(1L, write.get("count"));
+
+        server.invoke(name, "reset", null, null);
+        assertEquals(0L, server.getAttribute(name, "BytesWritten"));
+    }
+
+    @Test
+    public void testSaveAndMerge() throws Exception {
+        File productFolder = folder.newFolder("metrics-product");
+        String filePath = new File(productFolder, "shared-state.json").getPath();
+        MultiUser multiUser = new MultiUser(true);
+        MultiUserMetrics metrics = MultiUserMetrics.forProduct("metrics-product");
+        metrics.reset();
+
+        AppState before = createModel();
+        assertTrue(multiUser.saveStateModel(filePath, before, 1623332401000L));
+        assertEquals(1, metrics.getPhaseLatency(MultiUserMetrics.Phase.SERIALIZE).getCount());
+        assertEquals(1, metrics.getPhaseLatency(MultiUserMetrics.Phase.WRITE).getCount());
+        assertEquals(new File(filePath).length(), metrics.getBytesWritten());
+        assertEquals(3, metrics.getModelWidgets());
+
+        AppState after = AppStateCloner.copy(before);
+        after.addWidget(createWidget("w4", null));
+        multiUser.annotateDiffsInStates(before, after);
+        assertTrue(multiUser.mergeIntoSharedStateModel(filePath, after));
+
+        assertEquals(1, metrics.getPhaseLatency(MultiUserMetrics.Phase.READ).getCount());
+        assertEquals(1, metrics.getPhaseLatency(MultiUserMetrics.Phase.PARSE).getCount());
+        assertEquals(1, metrics.getPhaseLatency(MultiUserMetrics.Phase.MERGE).getCount());
+        assertEquals(1, metrics.getMerges());
+        assertEquals(1, metrics.getLastMergeCreatedWidgets());
+        assertEquals(0, metrics.getLastMergeDeletedWidgets());
+        assertEquals(3, metrics.getLastMergeUnchangedWidgets());
+        assertEquals(4, metrics.getModelWidgets());
+    }
+
+    /**
+     * @return home with the widgets w1 and w2, w2 leads to a state with the widget w3
+     */
+    private AppState createModel() {
+        AppState home = new AppState("0", "Home");
+        AppState next = new AppState("1", "Next");
+        next.addWidget(createWidget("w3", null));
+        home.addWidget(createWidget("w1", null));
+        home.addWidget(createWidget("w2", next));
+        return home;
+    }
+
+    private Widget createWidget(String id, AppState nextState) {
+        Widget widget = new Widget();
+        widget.setId(id);
+        widget.setWidgetType(WidgetType.ACTION);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.putMetadata("xpath", "/html[1]/body[1]/a[" + id + "]");
+        widget.setNextState(nextState);
+        return widget;
+    }
+}
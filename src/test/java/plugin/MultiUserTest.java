@@ -14,6 +14,7 @@ import java.awt.Rectangle;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -37,6 +38,11 @@ public class MultiUserTest extends MultiUser {
         super(true);
     }
 
+    @Test
+    public void testGetFileFormatVersion_ReadableByOlderVersions() {
+        assertEquals(JSONStateParser.FORMAT_V1, getFileFormatVersion());
+    }
+
     @Test
     public void testisSameWidget() {
         Widget widget = createWidget("1234");
@@ -379,6 +385,32 @@ public class MultiUserTest extends MultiUser {
         assertEquals(DiffType.CREATED, diff.get("btnToMiniTechInfo"));
     }
 
+    @Test
+    public void testAnnotateDiffsInStates_DuplicateWidgets() {
+        AppState before = new AppState("0", "Home");
+        Widget firstBefore = createWidget("before1");
+        firstBefore.setNextState(new AppState("1", null));
+        firstBefore.getNextState().addWidget(createWidget("inFirst"));
+        Widget secondBefore = createWidget("before2");
+        before.addWidget(firstBefore);
+        before.addWidget(secondBefore);
+
+        AppState after = new AppState("0", "Home");
+        Widget afterWidget = createWidget("after1");
+        afterWidget.setNextState(new AppState("1", null));
+        afterWidget.getNextState().addWidget(createWidget("inAfter"));
+        after.addWidget(afterWidget);
+
+        annotateDiffsInStates(before, after);
+
+        // The first widget from before is matched, the second one is deleted
+        Map<String, DiffType> diff = getDiffMetaDataFromState(after);
+        assertEquals(DiffType.NO_CHANGES, diff.get("after1"));
+        assertEquals(DiffType.DELETED, diff.get("before2"));
+        assertNull(diff.get("before1"));
+        assertEquals(DiffType.NO_CHANGES, getDiffMetaDataFromState(afterWidget.getNextState()).get("inAfter"));
+    }
+
     @Test
     public void testMergeStateChanges_ChangesByOneUser() throws Exception {
         AppState stateInitial = loadJSONModel(JSONStateParser.class.getClassLoader().getResource("scenario_20/state_initial.json").getPath()); 
@@ -551,6 +583,57 @@ public class MultiUserTest extends MultiUser {
         assertEquals("1", results.get(0).getId());
     }
     
+    @Test
+    public void testMergeStateChanges_ParallelSameAsSequential() throws Exception {
+        AppStateGenerator generator = new AppStateGenerator(4, 4, 12, 3, 0.2, 11L);
+        AppState sessionStart = generator.generate();
+        AppState sharedState = generator.mutate(deepCopy(sessionStart), 0.2, 0);
+        AppState sessionState = generator.mutate(deepCopy(sessionStart), 0.3, 0.3);
+        annotateDiffsInStates(sessionStart, sessionState);
+
+        MultiUser sequential = new MultiUser(true) {
+            @Override
+            protected boolean isParallelMergeEnabled() {
+                return false;
+            }
+        };
+        MultiUser parallel = new MultiUser(true) {
+            @Override
+            protected int getParallelMergeThreshold() {
+                return 1;
+            }
+        };
+        assertTrue(parallel.isTree(sharedState));
+        assertTrue(parallel.isTree(sessionState));
+
+        MergeIndex sequentialIndex = new MergeIndex(true, 1624998389127L);
+        AppState expected = sequential.mergeStateChanges(sharedState, sessionState, sequentialIndex);
+        for (int i = 0; i < 5; i++) {
+            MergeIndex parallelIndex = new MergeIndex(true, 1624998389127L);
+            AppState result = parallel.mergeStateChanges(sharedState, sessionState, parallelIndex);
+
+            assertEquals(asJSONString(expected), asJSONString(result));
+            assertEquals(sequentialIndex.getRecordedChanges(), parallelIndex.getRecordedChanges());
+        }
+        assertFalse(sequentialIndex.getRecordedChanges().isEmpty());
+    }
+
+    @Test
+    public void testIsTree() {
+        AppState home = new AppState("0", "Home");
+        AppState nextState = new AppState("1", "next");
+        Widget w1 = createWidget("1");
+        Widget w2 = createWidget("2");
+        w1.setNextState(nextState);
+        home.addWidget(w1);
+        home.addWidget(w2);
+        assertTrue(isTree(home));
+
+        // Same following state from two widgets
+        w2.setNextState(nextState);
+        assertFalse(isTree(home));
+    }
+
     private Widget createWidget(String id) {
         Widget widget = new Widget();
         widget.setId(id);
@@ -577,4 +660,10 @@ public class MultiUserTest extends MultiUser {
         
         return JSONStateParser.parseCompleteAppState(jsonModel);
     }
+
+    private String asJSONString(AppState state) throws IOException {
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(state, 0L, out);
+        return out.toString();
+    }
 }
@@ -0,0 +1,128 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import plugin.PluginLog.Level;
+
+public class PluginLogTest {
+
+    @Test
+    public void testLog_Levels() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PluginLog log = new PluginLog(Level.INFO, 16, new PrintStream(out));
+
+        log.log(Level.DEBUG, () -> {
+            throw new AssertionError("Disabled messages must not be built");
+        });
+        log.log(Level.INFO, "Load state tree");
+        log.log(Level.WARN, () -> "Unable to lock");
+        assertTrue(log.flush(5, TimeUnit.SECONDS));
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0], lines[0].matches("\\[\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}\\] Load state tree "));
+        assertTrue(lines[1], lines[1].endsWith("] WARN Unable to lock "));
+        assertFalse(log.isEnabled(Level.DEBUG));
+    }
+
+    @Test
+    public void testLog_StackTrace() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PluginLog log = new PluginLog(Level.WARN, 16, new PrintStream(out));
+
+        log.log(Level.INFO, "Not logged", new IllegalStateException("hidden"));
+        log.log(Level.ERROR, "Unable to save state model as file: broken", new IllegalStateException("broken"));
+        assertTrue(log.flush(5, TimeUnit.SECONDS));
+
+        String output = out.toString();
+        assertFalse(output.contains("hidden"));
+        assertTrue(output, output.contains("] ERROR Unable to save state model as file: broken"));
+        assertTrue(output, output.contains("java.lang.IllegalStateException: broken"));
+        assertTrue(output, output.contains("at plugin.PluginLogTest.testLog_StackTrace"));
+    }
+
+    @Test
+    public void testLog_FullBufferDrops() throws Exception {
+        CountDownLatch printing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        OutputStream blocking = new OutputStream() {
+            @Override
+            public void write(int b) {
+                printing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                printed.write(b);
+            }
+        };
+        PluginLog log = new PluginLog(Level.INFO, 4, new PrintStream(blocking));
+
+        // The buffer keeps an entry until it has been printed
+        for (int i = 0; i < 6; i++) {
+            log.log(Level.INFO, "message " + i);
+        }
+        assertTrue(printing.await(5, TimeUnit.SECONDS));
+        assertEquals(2, log.getDropped());
+
+        release.countDown();
+        assertTrue(log.flush(5, TimeUnit.SECONDS));
+        log.log(Level.INFO, "after");
+        assertTrue(log.flush(5, TimeUnit.SECONDS));
+        String output = printed.toString();
+        assertTrue(output.contains("message 3"));
+        assertFalse(output.contains("message 4"));
+        assertTrue(output.contains("WARN 2 log messages dropped"));
+        assertTrue(output.contains("after"));
+    }
+
+    @Test
+    public void testLog_Concurrent() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PluginLog log = new PluginLog(Level.INFO, 4096, new PrintStream(out));
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    log.log(Level.INFO, thread + "-" + i);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(log.flush(5, TimeUnit.SECONDS));
+
+        Set<String> messages = new HashSet<>();
+        for (String line : out.toString().split("\n")) {
+            messages.add(line.substring(line.indexOf("] ") + 2).trim());
+        }
+        assertEquals(2000, messages.size());
+        assertTrue(messages.containsAll(Arrays.asList("0-0", "3-499")));
+        assertEquals(0, log.getDropped());
+    }
+}
@@ -0,0 +1,94 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SaveSchedulerTest {
+
+    private final SaveScheduler scheduler = new SaveScheduler();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testSubmit_Coalesce() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> saved = new CopyOnWriteArrayList<>();
+
+        CompletableFuture<Boolean> first = scheduler.submit("product", () -> {
+            started.countDown();
+            release.await();
+            saved.add("first");
+            return true;
+        });
+        started.await();
+
+        // The first save is running, the following saves wait and are coalesced
+        CompletableFuture<Boolean> second = scheduler.submit("product", () -> saved.add("second"));
+        CompletableFuture<Boolean> third = scheduler.submit("product", () -> saved.add("third"));
+        CompletableFuture<Boolean> other = scheduler.submit("other", () -> saved.add("other"));
+        assertNotSame(first, second);
+        assertSame(second, third);
+        assertTrue(scheduler.isSaving("product"));
+
+        release.countDown();
+        assertTrue(scheduler.await("product", 10, TimeUnit.SECONDS));
+        assertTrue(other.get(10, TimeUnit.SECONDS));
+
+        assertTrue(first.get());
+        assertTrue(third.get());
+        assertEquals(3, saved.size());
+        assertEquals("first", saved.get(0));
+        assertFalse(saved.contains("second"));
+        assertTrue(saved.contains("third"));
+        assertFalse(scheduler.isSaving("product"));
+        assertEquals(1, scheduler.getCoalescedCount());
+    }
+
+    @Test
+    public void testSubmit_Failure() throws Exception {
+        CompletableFuture<Boolean> failed = scheduler.submit("product", () -> false);
+        assertFalse(failed.get(10, TimeUnit.SECONDS));
+
+        CompletableFuture<Boolean> thrown = scheduler.submit("product", () -> {
+            throw new IllegalStateException("Disk full");
+        });
+        try {
+            thrown.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertEquals("Disk full", e.getCause().getMessage());
+        }
+        assertTrue(thrown.isCompletedExceptionally());
+        assertFalse(scheduler.await("product", 10, TimeUnit.SECONDS));
+        assertEquals(2, scheduler.getFailedCount());
+
+        // Later saves are still run
+        assertTrue(scheduler.submit("product", () -> true).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAwait_NoSave() {
+        assertTrue(scheduler.await("product", 1, TimeUnit.SECONDS));
+        assertFalse(scheduler.isSaving("product"));
+    }
+}
@@ -0,0 +1,155 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+public class SessionArchiveTest {
+
+    private static final long NOW = 1623332401000L;
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveAndLoad_Compressed() throws Exception {
+        MultiUser multiUser = new MultiUser(true);
+        SessionArchive archive = multiUser.getSessionArchive(folder.getRoot().getPath());
+        Path snapshot = archive.newSnapshotPath(NOW);
+        assertTrue(snapshot.getFileName().toString().matches("session-state-\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2}\\.json\\.gz"));
+
+        AppState home = createModel();
+        assertTrue(multiUser.saveStateModel(snapshot.toString(), home, NOW));
+        byte[] content = Files.readAllBytes(snapshot);
+        assertEquals((byte) 0x1f, content[0]);
+        assertEquals((byte) 0x8b, content[1]);
+
+        AppState loaded = multiUser.loadStateModel(snapshot.toString());
+        assertNotNull(loaded.getWidget("w2").getNextState().getWidget("w3"));
+        assertNotNull(SessionArchive.read(snapshot).getWidget("w1"));
+    }
+
+    @Test
+    public void testRead_Uncompressed() throws Exception {
+        Path legacy = folder.getRoot().toPath().resolve("session-state-2021-06-10_10-00-00.json");
+        try (OutputStream out = Files.newOutputStream(legacy)) {
+            JSONStateWriter.writeAppState(createModel(), NOW, out);
+        }
+        assertNotNull(SessionArchive.read(legacy).getWidget("w2"));
+        assertNotNull(new MultiUser(true).loadStateModel(legacy.toString()).getWidget("w1"));
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+        byte[] text = "{\"states\":[]}".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SessionArchive.compressed(o -> o.write(text), Deflater.BEST_COMPRESSION).writeTo(out);
+
+        for (byte[] encoded : new byte[][] { out.toByteArray(), text }) {
+            try (InputStream in = SessionArchive.decode(new ByteArrayInputStream(encoded))) {
+                ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) != -1) {
+                    decoded.write(b);
+                }
+                assertArrayEquals(text, decoded.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void testEnforce() throws Exception {
+        Path root = folder.getRoot().toPath();
+        SessionArchive archive = new SessionArchive(root, true);
+        createSnapshot(root, "session-state-2021-06-01_10-00-00.json", 100, NOW - 9 * DAY);
+        createSnapshot(root, "session-state-2021-06-05_10-00-00.json.gz", 100, NOW - 5 * DAY);
+        createSnapshot(root, "session-state-2021-06-08_10-00-00.json.gz", 100, NOW - 2 * DAY);
+        createSnapshot(root, "session-state-2021-06-10_10-00-00.json.gz", 300, NOW);
+        createSnapshot(root, "shared-state.json", 100, NOW - 9 * DAY);
+
+        assertEquals(Arrays.asList("session-state-2021-06-01_10-00-00.json", "session-state-2021-06-05_10-00-00.json.gz",
+                "session-state-2021-06-08_10-00-00.json.gz", "session-state-2021-06-10_10-00-00.json.gz"), names(archive.list()));
+
+        assertEquals(0, archive.enforce(new SessionArchive.RetentionPolicy(0, 0, 0), NOW));
+        assertEquals(1, archive.enforce(new SessionArchive.RetentionPolicy(3, 0, 0), NOW));
+        assertEquals(1, archive.enforce(new SessionArchive.RetentionPolicy(0, 3 * DAY, 0), NOW));
+        assertEquals(Arrays.asList("session-state-2021-06-08_10-00-00.json.gz", "session-state-2021-06-10_10-00-00.json.gz"),
+                names(archive.list()));
+
+        // The newest snapshot is kept even if it exceeds the size
+        assertEquals(1, archive.enforceAsync(new SessionArchive.RetentionPolicy(0, 0, 200)).get(5, TimeUnit.SECONDS).intValue());
+        assertEquals(Arrays.asList("session-state-2021-06-10_10-00-00.json.gz"), names(archive.list()));
+        assertTrue(Files.exists(root.resolve("shared-state.json")));
+    }
+
+    @Test
+    public void testEnforce_MissingFolder() throws Exception {
+        SessionArchive archive = new SessionArchive(folder.getRoot().toPath().resolve("missing"), true);
+        assertEquals(0, archive.enforce(new SessionArchive.RetentionPolicy(1, 0, 0), NOW));
+        assertFalse(SessionArchive.isSnapshot(folder.getRoot().toPath().resolve("session-state.lock")));
+    }
+
+    private void createSnapshot(Path root, String name, int size, long lastModified) throws Exception {
+        Path file = root.resolve(name);
+        Files.write(file, new byte[size]);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+    }
+
+    private List<String> names(List<Path> paths) {
+        return paths.stream().map(path -> path.getFileName().toString()).collect(Collectors.toList());
+    }
+
+    /**
+     * @return home with the widgets w1 and w2, w2 leads to a state with the widget w3
+     */
+    private AppState createModel() {
+        AppState home = new AppState("0", "Home");
+        AppState next = new AppState("1", "Next");
+        next.addWidget(createWidget("w3", null));
+        home.addWidget(createWidget("w1", null));
+        home.addWidget(createWidget("w2", next));
+        return home;
+    }
+
+    private Widget createWidget(String id, AppState nextState) {
+        Widget widget = new Widget();
+        widget.setId(id);
+        widget.setWidgetType(WidgetType.ACTION);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.putMetadata("xpath", "/html[1]/body[1]/a[" + id + "]");
+        widget.setNextState(nextState);
+        return widget;
+    }
+}
@@ -0,0 +1,301 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+public class SessionDeltaTest {
+
+    private static final long BASE_VERSION = 1623332401000L;
+    private static final String BASE_KEY = SessionArchive.baseKey(BASE_VERSION, 0);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MultiUser multiUser = new MultiUser(true);
+
+    @Test
+    public void testOf() {
+        AppState base = createModel();
+        AppState session = createSession(base);
+
+        AppState delta = SessionDelta.of(base, session);
+        assertEquals(2, delta.getAllWidgets().size());
+        assertEquals(SessionDelta.DELETED, SessionDelta.kindOf(delta.getWidget("w2")));
+        Widget path = delta.getWidget("w1");
+        assertEquals(SessionDelta.PATH, SessionDelta.kindOf(path));
+
+        // Only the changed widgets of the following state
+        AppState next = path.getNextState();
+        assertEquals(1, next.getAllWidgets().size());
+        assertEquals(SessionDelta.CREATED, SessionDelta.kindOf(next.getWidget("w4")));
+        assertNotNull(next.getWidget("w4").getNextState().getWidget("w5"));
+        assertNull(SessionDelta.kindOf(next.getWidget("w4").getNextState().getWidget("w5")));
+    }
+
+    @Test
+    public void testOf_NoChanges() {
+        AppState base = createModel();
+        AppState session = AppStateCloner.copy(base);
+        multiUser.annotateDiffsInStates(base, session);
+
+        assertTrue(SessionDelta.isEmpty(SessionDelta.of(base, session)));
+    }
+
+    @Test
+    public void testApply() throws Exception {
+        AppState base = createModel();
+        AppState session = createSession(base);
+
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(SessionDelta.of(base, session), BASE_VERSION, out, false, JSONStateParser.FORMAT_V4);
+        AppState delta = JSONStateReader.readCompleteAppState(new StringReader(out.toString()));
+
+        assertSameSession(session, SessionDelta.apply(base, delta));
+        // The base is not changed
+        assertNotNull(base.getWidget("w2"));
+    }
+
+    @Test
+    public void testApply_StateMetadata() throws Exception {
+        AppState base = createModel();
+        base.getWidget("w1").getNextState().putMetadata("note", "shared");
+        AppState session = AppStateCloner.copy(base);
+        AppState next = session.getWidget("w1").getNextState();
+        next.putMetadata("note", "changed");
+        next.putMetadata("coverage", 3);
+        multiUser.annotateDiffsInStates(base, session);
+
+        // Only the meta-data has changed
+        AppState delta = SessionDelta.of(base, session);
+        assertFalse(SessionDelta.isEmpty(delta));
+        AppState deltaNext = delta.getWidget("w1").getNextState();
+        assertTrue(deltaNext.getAllWidgets().isEmpty());
+        assertEquals("changed", deltaNext.getMetadata("note"));
+        assertEquals(3, deltaNext.getMetadata("coverage"));
+        assertNull(deltaNext.getMetadata(MultiUser.META_DATA_DIFF));
+
+        AppState resultNext = SessionDelta.apply(base, delta).getWidget("w1").getNextState();
+        assertEquals("changed", resultNext.getMetadata("note"));
+        assertEquals(3, resultNext.getMetadata("coverage"));
+        assertEquals("shared", base.getWidget("w1").getNextState().getMetadata("note"));
+    }
+
+    @Test
+    public void testApply_StateMetadataRead() throws Exception {
+        AppState base = createModel();
+        AppState session = AppStateCloner.copy(base);
+        session.getWidget("w1").getNextState().putMetadata("note", "changed");
+        multiUser.annotateDiffsInStates(base, session);
+
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(SessionDelta.of(base, session), BASE_VERSION, out, false, JSONStateParser.FORMAT_V4);
+        assertTrue(out.toString().contains("\"note\":\"changed\""));
+
+        // State model files are read without the meta-data of states, deltas with it
+        AppState withoutMetadata = JSONStateReader.readCompleteAppState(new StringReader(out.toString()));
+        assertNull(withoutMetadata.getWidget("w1").getNextState().getMetadata("note"));
+        AppState delta = new JSONStateReader(true).read(new StringReader(out.toString()));
+        assertNull(delta.getWidget("w1").getNextState().getMetadata(MultiUser.META_DATA_DIFF));
+        AppState result = SessionDelta.apply(base, delta);
+        assertEquals("changed", result.getWidget("w1").getNextState().getMetadata("note"));
+    }
+
+    @Test
+    public void testSaveState_Delta() throws Exception {
+        File productFolder = folder.newFolder("delta-product");
+        String sharedModelFilePath = new File(productFolder, "shared-state.json").getPath();
+        SessionArchive archive = new SessionArchive(productFolder.toPath(), true);
+        MultiUser deltaMultiUser = new MultiUser(true) {
+            @Override
+            protected boolean isDeltaSnapshotEnabled() {
+                return true;
+            }
+        };
+
+        AppState base = createModel();
+        assertTrue(deltaMultiUser.saveStateModel(sharedModelFilePath, base, BASE_VERSION));
+        SharedModelCache.FileStamp stamp = SharedModelCache.FileStamp.of(new File(sharedModelFilePath).toPath());
+        AppState session = createSession(base);
+        Path deltaPath = archive.newDeltaPath(BASE_VERSION + 1000, BASE_KEY);
+        assertTrue(SessionArchive.isDelta(deltaPath));
+        assertEquals(BASE_KEY, SessionArchive.baseKeyOf(deltaPath));
+
+        MultiUser.SaveRequest request = new MultiUser.SaveRequest("delta-product", productFolder.getPath(), sharedModelFilePath,
+                deltaPath.toString(), base, BASE_VERSION, 0, stamp, session, new Properties());
+        assertTrue(deltaMultiUser.saveState(request));
+
+        // The shared state model file has been linked before the merge replaced it
+        Path basePath = archive.getBasePath(BASE_KEY);
+        assertEquals(productFolder.toPath().resolve("session-base-" + BASE_VERSION + ".json"), basePath);
+        assertNotNull(SessionArchive.read(basePath).getWidget("w2"));
+        assertTrue(Files.size(deltaPath) < Files.size(basePath));
+
+        AppState reconstructed = archive.readSession(deltaPath);
+        assertNull(reconstructed.getWidget("w2"));
+        assertNotNull(reconstructed.getWidget("w1").getNextState().getWidget("w4"));
+        assertEquals("changed", reconstructed.getWidget("w1").getNextState().getMetadata("note"));
+
+        // The base is deleted with the last delta referring to it
+        String olderKey = SessionArchive.baseKey(BASE_VERSION - 1000, 0);
+        Path older = archive.newDeltaPath(BASE_VERSION, olderKey);
+        Files.copy(deltaPath, older);
+        Files.copy(basePath, archive.newBasePath(olderKey));
+        assertEquals(1, archive.enforce(new SessionArchive.RetentionPolicy(1, 0, 0), BASE_VERSION));
+        assertNull(archive.getBasePath(olderKey));
+        assertNotNull(archive.getBasePath(BASE_KEY));
+    }
+
+    @Test
+    public void testArchiveSessionBase_Changed() throws Exception {
+        File productFolder = folder.newFolder("changed-product");
+        String sharedModelFilePath = new File(productFolder, "shared-state.json").getPath();
+        AppState base = createModel();
+        assertTrue(multiUser.saveStateModel(sharedModelFilePath, base, BASE_VERSION));
+        SharedModelCache.FileStamp stamp = SharedModelCache.FileStamp.of(new File(sharedModelFilePath).toPath());
+
+        // Saved by another tester since the session has started
+        AppState other = createModel();
+        other.addWidget(createWidget("w6", null));
+        assertTrue(multiUser.saveStateModel(sharedModelFilePath, other, BASE_VERSION + 1));
+
+        MultiUser.SaveRequest request = new MultiUser.SaveRequest("changed-product", productFolder.getPath(), sharedModelFilePath,
+                null, base, BASE_VERSION, 0, stamp, null, new Properties());
+        assertTrue(multiUser.archiveSessionBase(request));
+
+        Path basePath = new SessionArchive(productFolder.toPath(), true).getBasePath(BASE_KEY);
+        assertTrue(SessionArchive.isCompressed(basePath));
+        assertFalse(SessionArchive.read(basePath).containsWidget("w6"));
+    }
+
+    @Test
+    public void testSaveState_DeltaAfterJournal() throws Exception {
+        File productFolder = folder.newFolder("journal-product");
+        String sharedModelFilePath = new File(productFolder, "shared-state.json").getPath();
+        SessionArchive archive = new SessionArchive(productFolder.toPath(), true);
+        MultiUser journalMultiUser = new MultiUser(true) {
+            @Override
+            protected boolean isDeltaSnapshotEnabled() {
+                return true;
+            }
+
+            @Override
+            protected boolean isJournalEnabled() {
+                return true;
+            }
+        };
+        assertTrue(journalMultiUser.saveStateModel(sharedModelFilePath, createModel(), BASE_VERSION));
+
+        // The first session creates w4, which is appended to the journal without changing the version
+        MultiUser.LoadedModel first = journalMultiUser.loadSharedModel(sharedModelFilePath);
+        assertEquals(0, first.journalLength);
+        AppState firstSession = createSession(first.state);
+        Path firstDelta = archive.newDeltaPath(BASE_VERSION + 1000, SessionArchive.baseKey(first.version, first.journalLength));
+        assertTrue(journalMultiUser.saveState(new MultiUser.SaveRequest("journal-product", productFolder.getPath(), sharedModelFilePath,
+                firstDelta.toString(), first.state, first.version, first.journalLength, null, firstSession, new Properties())));
+        assertTrue(journalMultiUser.getJournal(sharedModelFilePath).exists());
+
+        // The second session starts from the same version with the journal and adds a widget to the state of w4
+        MultiUser.LoadedModel second = journalMultiUser.loadSharedModel(sharedModelFilePath);
+        assertEquals(first.version, second.version);
+        assertTrue(second.journalLength > 0);
+        AppState secondSession = AppStateCloner.copy(second.state);
+        secondSession.getWidget("w1").getNextState().getWidget("w4").getNextState().addWidget(createWidget("w6", null));
+        journalMultiUser.annotateDiffsInStates(second.state, secondSession);
+        Path secondDelta = archive.newDeltaPath(BASE_VERSION + 2000, SessionArchive.baseKey(second.version, second.journalLength));
+        assertTrue(journalMultiUser.saveState(new MultiUser.SaveRequest("journal-product", productFolder.getPath(), sharedModelFilePath,
+                secondDelta.toString(), second.state, second.version, second.journalLength, null, secondSession, new Properties())));
+
+        // Each delta is applied to the model with the journal its session has started from
+        assertNotEquals(SessionArchive.baseKeyOf(firstDelta), SessionArchive.baseKeyOf(secondDelta));
+        assertSameSession(firstSession, archive.readSession(firstDelta));
+        AppState reconstructed = archive.readSession(secondDelta);
+        assertSameSession(secondSession, reconstructed);
+        assertNotNull(reconstructed.getWidget("w1").getNextState().getWidget("w4").getNextState().getWidget("w6"));
+    }
+
+    /**
+     * Assert that the states have the same visible widgets by id, following the widgets of the expected state.
+     */
+    private void assertSameSession(AppState expected, AppState actual) {
+        StateTraversal.forEachState(expected, state -> {
+            AppState other = findState(actual, state.getId());
+            assertNotNull("State " + state.getId(), other);
+            assertEquals("State " + state.getId(), state.getVisibleWidgets().size(), other.getVisibleWidgets().size());
+            for (Widget widget : state.getVisibleWidgets()) {
+                assertNotNull("Widget " + widget.getId(), other.getWidget(widget.getId()));
+            }
+        });
+    }
+
+    private AppState findState(AppState root, String id) {
+        AppState[] found = new AppState[1];
+        StateTraversal.forEachState(root, state -> {
+            if (state.getId().equals(id)) {
+                found[0] = state;
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * @return home with the widgets w1 and w2, w1 leads to a state with the widget w3
+     */
+    private AppState createModel() {
+        AppState home = new AppState("0", "Home");
+        AppState next = new AppState("1", "Next");
+        next.addWidget(createWidget("w3", null));
+        home.addWidget(createWidget("w1", next));
+        home.addWidget(createWidget("w2", null));
+        return home;
+    }
+
+    /**
+     * @return annotated session of the model, which deleted w2 and created w4 leading to a new state with w5
+     */
+    private AppState createSession(AppState base) {
+        AppState session = AppStateCloner.copy(base);
+        session.removeWidget(session.getWidget("w2"));
+        AppState created = new AppState("2", "Created");
+        created.addWidget(createWidget("w5", null));
+        session.getWidget("w1").getNextState().addWidget(createWidget("w4", created));
+        session.getWidget("w1").getNextState().putMetadata("note", "changed");
+        multiUser.annotateDiffsInStates(base, session);
+        return session;
+    }
+
+    private Widget createWidget(String id, AppState nextState) {
+        Widget widget = new Widget();
+        widget.setId(id);
+        widget.setWidgetType(WidgetType.ACTION);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.putMetadata("xpath", "/html[1]/body[1]/a[" + id + "]");
+        widget.setNextState(nextState);
+        return widget;
+    }
+}
@@ -0,0 +1,166 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import plugin.AtomicFileWriter.SyncMode;
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetVisibility;
+
+public class ShardedStateStoreTest {
+
+    private static final long VERSION = 1623332401000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteRead() throws Exception {
+        AppState state = loadAppState("scenario_20/state_user1.json");
+
+        for (int shardDepth = 1; shardDepth <= 3; shardDepth++) {
+            Path productFolder = folder.newFolder().toPath();
+            ShardedStateStore store = new ShardedStateStore(productFolder, shardDepth);
+            assertTrue(store.write(state, VERSION, SyncMode.NONE) > 0);
+
+            ShardedStateStore reader = new ShardedStateStore(productFolder, shardDepth);
+            AppState result = reader.read(reader.getManifestPath());
+
+            assertEquals(reloaded(state), asJSON(result));
+            assertEquals(VERSION, (long) reader.getLastUpdatedAtMs());
+        }
+    }
+
+    @Test
+    public void testRead_DeepChain() throws Throwable {
+        // Far more shards than nested calls fit on the small stack
+        int depth = 3000;
+        AppState home = new AppState("0", "State 0");
+        AppState state = home;
+        for (int i = 0; i < depth; i++) {
+            AppState nextState = i + 1 < depth ? new AppState(String.valueOf(i + 1), "State " + (i + 1)) : null;
+            Widget widget = new Widget();
+            widget.setId("w" + i);
+            widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+            widget.setNextState(nextState);
+            state.addWidget(widget);
+            state = nextState;
+        }
+        Path productFolder = folder.getRoot().toPath();
+        new ShardedStateStore(productFolder, 2).write(home, VERSION, SyncMode.NONE);
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        AtomicReference<AppState> result = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                ShardedStateStore reader = new ShardedStateStore(productFolder, 2);
+                result.set(reader.read(reader.getManifestPath()));
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        }, "small-stack", 256 * 1024);
+        thread.start();
+        thread.join();
+        if (error.get() != null) {
+            throw error.get();
+        }
+
+        state = result.get();
+        for (int i = 0; i < depth; i++) {
+            assertEquals(String.valueOf(i), state.getId());
+            state = state.getWidget("w" + i).getNextState();
+        }
+        assertNull(state);
+    }
+
+    @Test
+    public void testWrite_OnlyChangedShards() throws Exception {
+        Path productFolder = folder.getRoot().toPath();
+        ShardedStateStore store = new ShardedStateStore(productFolder, 1);
+        AppState state = loadAppState("scenario_20/state_initial.json");
+        int shards = store.write(state, VERSION, SyncMode.NONE);
+
+        assertEquals(0, store.write(state, VERSION + 1, SyncMode.NONE));
+
+        AppState stateMac = state.getWidget("btnToMac").getNextState();
+        new MultiUser(true).markAsDeleted(stateMac.getWidget("btnToAir"), VERSION);
+        assertEquals(1, store.write(state, VERSION + 2, SyncMode.NONE));
+
+        // Shards of the manifest and its backup are kept
+        assertEquals(shards + 1, Files.list(productFolder.resolve("shards")).count());
+
+        AppState result = store.read(store.getManifestPath());
+        assertEquals(reloaded(state), asJSON(result));
+    }
+
+    @Test
+    public void testLoadSharedStateModel() throws Exception {
+        MultiUser multiUser = new MultiUser(true) {
+            @Override
+            protected boolean isShardedStorageEnabled() {
+                return true;
+            }
+        };
+        File file = new File(folder.getRoot(), "shared-state.json");
+        AppState initial = loadAppState("scenario_20/state_initial.json");
+        try (OutputStream out = new FileOutputStream(file)) {
+            JSONStateWriter.writeAppState(initial, VERSION, out);
+        }
+
+        // Not stored sharded yet
+        assertEquals(reloaded(initial), asJSON(multiUser.loadSharedStateModel(file.getPath())));
+
+        AppState user1 = loadAppState("scenario_20/state_user1.json");
+        assertTrue(multiUser.saveSharedSnapshot(file.getPath(), user1, VERSION + 1));
+        assertTrue(Files.exists(folder.getRoot().toPath().resolve(ShardedStateStore.MANIFEST_FILENAME)));
+
+        assertEquals(reloaded(user1), asJSON(multiUser.loadSharedStateModel(file.getPath())));
+    }
+
+    /**
+     * The state as it would be loaded from a state model file.
+     */
+    private Object reloaded(AppState state) throws Exception {
+        File file = folder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            JSONStateWriter.writeAppState(state, 0L, out);
+        }
+        try (FileReader reader = new FileReader(file)) {
+            return asJSON(JSONStateReader.readCompleteAppState(reader));
+        }
+    }
+
+    private Object asJSON(AppState state) throws Exception {
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(state, 0L, out);
+        return new JSONParser().parse(out.toString());
+    }
+
+    private AppState loadAppState(String resource) throws Exception {
+        String filePath = JSONStateParser.class.getClassLoader().getResource(resource).getPath();
+        try (FileReader reader = new FileReader(filePath)) {
+            return JSONStateParser.parseCompleteAppState((JSONObject) new JSONParser().parse(reader));
+        }
+    }
+}
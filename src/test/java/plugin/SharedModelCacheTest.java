@@ -0,0 +1,175 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import plugin.SharedModelCache.Entry;
+import plugin.SharedModelCache.FileStamp;
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+public class SharedModelCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SharedModelCache cache = new SharedModelCache();
+
+    @Test
+    public void testGet_Unchanged() throws Exception {
+        Path model = write("shared-state.json", "{\"id\":\"0\"}");
+        Path journal = folder.getRoot().toPath().resolve("shared-state.journal");
+        AppState state = new AppState("0", "Home");
+        cache.put(model, entry(state, model, journal, 1));
+
+        assertSame(state, cache.get(model, journal, 1).getState());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(0, cache.getChecksumCount());
+    }
+
+    @Test
+    public void testGet_Touched() throws Exception {
+        Path model = write("shared-state.json", "{\"id\":\"0\"}");
+        Path journal = folder.getRoot().toPath().resolve("shared-state.journal");
+        AppState state = new AppState("0", "Home");
+        cache.put(model, entry(state, model, journal, 1));
+
+        Files.setLastModifiedTime(model, FileTime.fromMillis(Files.getLastModifiedTime(model).toMillis() + 10000));
+
+        assertSame(state, cache.get(model, journal, 1).getState());
+        assertEquals(1, cache.getChecksumCount());
+        // Revalidated with the new modification time
+        assertNotNull(cache.get(model, journal, 1));
+        assertEquals(1, cache.getChecksumCount());
+    }
+
+    @Test
+    public void testGet_Changed() throws Exception {
+        Path model = write("shared-state.json", "{\"id\":\"0\"}");
+        Path journal = folder.getRoot().toPath().resolve("shared-state.journal");
+        cache.put(model, entry(new AppState("0", "Home"), model, journal, 1));
+
+        // Same size, same modification time, but other content
+        FileTime lastModified = Files.getLastModifiedTime(model);
+        write("shared-state.json", "{\"id\":\"1\"}");
+        Files.setLastModifiedTime(model, FileTime.fromMillis(lastModified.toMillis() + 10000));
+
+        assertNull(cache.get(model, journal, 1));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testGet_LockVersionOrJournalChanged() throws Exception {
+        Path model = write("shared-state.json", "{\"id\":\"0\"}");
+        Path journal = folder.getRoot().toPath().resolve("shared-state.journal");
+
+        cache.put(model, entry(new AppState("0", "Home"), model, journal, 1));
+        assertNull(cache.get(model, journal, 2));
+
+        cache.put(model, entry(new AppState("0", "Home"), model, journal, 1));
+        write("shared-state.journal", "1234 {}\n");
+        assertNull(cache.get(model, journal, 1));
+    }
+
+    @Test
+    public void testLoadCachedSharedStateModel() throws Exception {
+        MultiUser multiUser = new MultiUser(true);
+        File file = new File(folder.getRoot(), "shared-state.json");
+        multiUser.saveStateModel(file.getPath(), new AppState("0", "Home"), 1623332401000L);
+
+        AppState loaded = multiUser.loadCachedSharedStateModel(file.getPath());
+        assertNotNull(loaded);
+        assertSame(loaded, multiUser.loadCachedSharedStateModel(file.getPath()));
+
+        // Saved by another tester
+        multiUser.saveStateModel(file.getPath(), new AppState("0", "Home"), 1623332402000L);
+        writeLockVersion(file, 1623332402000L);
+        assertNotSame(loaded, multiUser.loadCachedSharedStateModel(file.getPath()));
+    }
+
+    @Test
+    public void testMergeIntoSharedStateModel_SavedModelCached() throws Exception {
+        for (boolean journalEnabled : new boolean[] { false, true }) {
+            int[] loads = new int[1];
+            MultiUser multiUser = new MultiUser(true) {
+                @Override
+                protected boolean isJournalEnabled() {
+                    return journalEnabled;
+                }
+
+                @Override
+                protected LoadedModel loadSharedModel(String filePath) {
+                    loads[0]++;
+                    return super.loadSharedModel(filePath);
+                }
+            };
+            File file = new File(folder.newFolder(), "shared-state.json");
+            AppState shared = new AppState("0", "Home");
+            multiUser.saveStateModel(file.getPath(), shared, 1623332401000L);
+
+            AppState session = new AppState("0", "Home");
+            session.addWidget(createWidget("created"));
+            multiUser.annotateDiffsInStates(shared, session);
+            assertTrue(multiUser.mergeIntoSharedStateModel(file.getPath(), session));
+            assertEquals(1, loads[0]);
+
+            // The saved model is taken from the cache instead of loading the written files
+            AppState cached = multiUser.loadCachedSharedStateModel(file.getPath());
+            assertEquals(1, loads[0]);
+            assertNotNull(cached.getWidget("created"));
+            assertNotNull(multiUser.loadSharedStateModel(file.getPath()).getWidget("created"));
+        }
+    }
+
+    private Widget createWidget(String id) {
+        Widget widget = new Widget();
+        widget.setId(id);
+        widget.setWidgetType(WidgetType.ACTION);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.putMetadata("xpath", "/html[1]/body[1]/a[" + id + "]");
+        return widget;
+    }
+
+    private Entry entry(AppState state, Path model, Path journal, long lockVersion) {
+        FileStamp stamp = FileStamp.of(model).withChecksum(SharedModelCache.checksum(model));
+        return new Entry(state, 1L, lockVersion, stamp, FileStamp.of(journal), 0);
+    }
+
+    private Path write(String fileName, String content) throws Exception {
+        Path file = folder.getRoot().toPath().resolve(fileName);
+        Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    /**
+     * Write the version to the lock file of a state model file, like a save of another tester.
+     */
+    private void writeLockVersion(File modelFile, long version) throws Exception {
+        String lockFilePath = new File(modelFile.getParentFile(), "shared-state.lock").getPath();
+        try (SharedModelLock lock = SharedModelLock.acquire(lockFilePath, 1, 0)) {
+            lock.writeVersion(version);
+        }
+    }
+}
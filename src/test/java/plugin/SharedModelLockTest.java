@@ -0,0 +1,190 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scout.AppState;
+import scout.Widget;
+
+public class SharedModelLockTest {
+
+    private static final int INCREMENTS = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testVersion() throws Exception {
+        String lockFilePath = new File(folder.getRoot(), "shared-state.lock").getPath();
+        assertEquals(0, SharedModelLock.readVersion(lockFilePath));
+
+        try (SharedModelLock lock = SharedModelLock.acquire(lockFilePath, 1, 0)) {
+            assertNotNull(lock);
+            assertEquals(0, lock.readVersion());
+            lock.writeVersion(1623332401000L);
+            lock.writeVersion(42);
+
+            // Readable without the lock while it is held
+            assertEquals(42, SharedModelLock.readVersion(lockFilePath));
+        }
+        assertEquals(42, SharedModelLock.readVersion(lockFilePath));
+    }
+
+    @Test
+    public void testAcquire_HeldByOtherThread() throws Exception {
+        String lockFilePath = new File(folder.getRoot(), "shared-state.lock").getPath();
+        long failed = SharedModelLock.getFailedCount();
+
+        try (SharedModelLock lock = SharedModelLock.acquire(lockFilePath, 1, 0)) {
+            assertNotNull(lock);
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                assertNull(executor.submit(() -> SharedModelLock.acquire(lockFilePath, 2, 10)).get());
+            } finally {
+                executor.shutdown();
+            }
+        }
+        assertEquals(failed + 1, SharedModelLock.getFailedCount());
+    }
+
+    @Test
+    public void testAcquire_OneDeadline() throws Exception {
+        String lockFilePath = new File(folder.getRoot(), "shared-state.lock").getPath();
+        long retryDelay = 200;
+
+        // The file lock is held outside of SharedModelLock, so every attempt of the threads fails
+        try (RandomAccessFile other = new RandomAccessFile(lockFilePath, "rw");
+                FileLock held = other.getChannel().lock(Long.MAX_VALUE - 1, 1, false)) {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                // Holds the lock of the threads for about 3 delays while trying the file lock
+                Future<SharedModelLock> first = executor.submit(() -> SharedModelLock.acquire(lockFilePath, 4, retryDelay));
+                Thread.sleep(retryDelay / 4);
+
+                long start = System.nanoTime();
+                assertNull(SharedModelLock.acquire(lockFilePath, 5, retryDelay));
+                long waitMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertNull(first.get());
+
+                // Waiting for the lock of the threads and then for the file lock would take about 7 delays
+                assertTrue("Waited " + waitMs + " ms", waitMs < 6 * retryDelay);
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testCreateSharedStateModel() throws Exception {
+        MultiUser multiUser = new MultiUser(true);
+        String modelFilePath = new File(folder.getRoot(), "shared-state.json").getPath();
+        String lockFilePath = new File(folder.getRoot(), "shared-state.lock").getPath();
+
+        assertNull(multiUser.createSharedStateModel(modelFilePath, 0).state);
+        long version = SharedModelLock.readVersion(lockFilePath);
+        assertTrue(version > 0);
+        assertNotNull(multiUser.loadSharedStateModel(modelFilePath));
+
+        // Saved by another tester after the model has been loaded, the model is kept
+        AppState other = new AppState("0", "Home");
+        Widget widget = new Widget();
+        widget.setId("w1");
+        other.addWidget(widget);
+        try (SharedModelLock lock = SharedModelLock.acquire(lockFilePath, 1, 0)) {
+            assertTrue(multiUser.saveStateModel(modelFilePath, other, version + 1));
+            lock.writeVersion(version + 1);
+        }
+        AppState created = multiUser.createSharedStateModel(modelFilePath, version).state;
+        assertNotNull(created);
+        assertNotNull(created.getWidget("w1"));
+        assertEquals(version + 1, SharedModelLock.readVersion(lockFilePath));
+    }
+
+    @Test
+    public void testAcquire_Threads() throws Exception {
+        String lockFilePath = new File(folder.getRoot(), "shared-state.lock").getPath();
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    increment(lockFilePath, INCREMENTS);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(threads * INCREMENTS, SharedModelLock.readVersion(lockFilePath));
+    }
+
+    @Test
+    public void testAcquire_Processes() throws Exception {
+        String lockFilePath = new File(folder.getRoot(), "shared-state.lock").getPath();
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        int processes = 3;
+
+        List<Process> started = new ArrayList<>();
+        for (int i = 0; i < processes; i++) {
+            started.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    SharedModelLockTest.class.getName(), lockFilePath, String.valueOf(INCREMENTS))
+                    .inheritIO()
+                    .start());
+        }
+        for (Process process : started) {
+            assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+            assertEquals(0, process.exitValue());
+        }
+
+        assertEquals(processes * INCREMENTS, SharedModelLock.readVersion(lockFilePath));
+    }
+
+    /**
+     * Increments the version of a lock file, started by {@link #testAcquire_Processes()}.
+     */
+    public static void main(String[] args) throws Exception {
+        increment(args[0], Integer.parseInt(args[1]));
+    }
+
+    private static void increment(String lockFilePath, int increments) throws Exception {
+        for (int i = 0; i < increments; i++) {
+            try (SharedModelLock lock = SharedModelLock.acquire(lockFilePath, 1000, 5)) {
+                if (lock == null) {
+                    throw new IllegalStateException("Lock not acquired");
+                }
+                long version = lock.readVersion();
+                Thread.yield();
+                lock.writeVersion(version + 1);
+            }
+        }
+    }
+}
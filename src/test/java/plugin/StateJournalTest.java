@@ -0,0 +1,174 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scout.AppState;
+
+public class StateJournalTest {
+
+    private static final long VERSION = 1623332401000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MultiUser multiUser = new MultiUser(true);
+
+    @Test
+    public void testReplay_SameAsMergedModel() throws Exception {
+        File snapshot = folder.newFile("shared-state.json");
+        StateJournal journal = new StateJournal(new File(folder.getRoot(), "shared-state.journal").getPath());
+
+        AppState shared = loadAppState("scenario_20/state_initial.json");
+        writeSnapshot(shared, snapshot);
+
+        AppState merged = shared;
+        for (String resource : new String[] { "scenario_20/state_user1.json", "scenario_20/state_user2.json" }) {
+            AppState session = loadAppState(resource);
+            multiUser.annotateDiffsInStates(loadAppState("scenario_20/state_initial.json"), session);
+            MergeIndex index = new MergeIndex(true);
+            merged = multiUser.mergeStateChanges(merged, session, index);
+            assertFalse(index.getRecordedChanges().isEmpty());
+            journal.append(VERSION, index.getRecordedChanges());
+        }
+
+        AppState result = readSnapshot(snapshot);
+        int applied = new StateJournal(new File(folder.getRoot(), "shared-state.journal").getPath()).replay(result, VERSION);
+
+        assertTrue(applied > 0);
+        assertEquals(reloaded(merged), asJSON(result));
+    }
+
+    @Test
+    public void testReplay_ForeignJournal() throws Exception {
+        StateJournal journal = new StateJournal(folder.newFile("shared-state.journal").getPath());
+        AppState state = loadAppState("scenario_20/state_initial.json");
+        journal.append(VERSION, Collections.singletonList(StateJournal.deletedRecord(state, state.getWidget("btnToMac"), 1L)));
+
+        int applied = journal.replay(state, VERSION + 1);
+
+        assertEquals(-1, applied);
+        assertFalse(multiUser.isMarkedAsDeleted(state.getWidget("btnToMac")));
+    }
+
+    @Test
+    public void testReplay_IncompleteRecord() throws Exception {
+        File file = folder.newFile("shared-state.journal");
+        StateJournal journal = new StateJournal(file.getPath());
+        AppState state = loadAppState("scenario_20/state_initial.json");
+        AppState stateMac = state.getWidget("btnToMac").getNextState();
+        journal.append(VERSION, Collections.singletonList(StateJournal.deletedRecord(stateMac, stateMac.getWidget("btnToAir"), 1L)));
+
+        // Record of an interrupted write
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write("1234 {\"type\":\"deleted\",\"state-".getBytes(StandardCharsets.UTF_8));
+        }
+
+        AppState result = loadAppState("scenario_20/state_initial.json");
+        assertEquals(1, journal.replay(result, VERSION));
+        AppState resultMac = result.getWidget("btnToMac").getNextState();
+        assertTrue(multiUser.isMarkedAsDeleted(resultMac.getWidget("btnToAir")));
+
+        // The incomplete record is replaced by the next records
+        journal.append(VERSION, Collections.singletonList(StateJournal.deletedRecord(stateMac, stateMac.getWidget("btnToPro13"), 2L)));
+        result = loadAppState("scenario_20/state_initial.json");
+        assertEquals(2, new StateJournal(file.getPath()).replay(result, VERSION));
+        assertTrue(multiUser.isMarkedAsDeleted(result.getWidget("btnToMac").getNextState().getWidget("btnToPro13")));
+    }
+
+    @Test
+    public void testSaveSharedStateModel_Compaction() throws Exception {
+        MultiUser journalMultiUser = new MultiUser(true) {
+            @Override
+            protected boolean isJournalEnabled() {
+                return true;
+            }
+
+            @Override
+            protected long getJournalCompactionSize() {
+                return 100;
+            }
+        };
+        File snapshot = folder.newFile("shared-state.json");
+        AppState shared = loadAppState("scenario_20/state_initial.json");
+        writeSnapshot(shared, snapshot);
+        StateJournal journal = journalMultiUser.getJournal(snapshot.getPath());
+
+        List<String> small = Collections.singletonList("{}");
+        assertTrue(journalMultiUser.saveSharedStateModel(snapshot.getPath(), shared, VERSION, small));
+        assertTrue(journal.exists());
+        assertEquals(VERSION, (long) readVersion(snapshot));
+
+        AppState session = loadAppState("scenario_20/state_user1.json");
+        journalMultiUser.annotateDiffsInStates(shared, session);
+        MergeIndex index = new MergeIndex(true);
+        AppState merged = journalMultiUser.mergeStateChanges(shared, session, index);
+        assertTrue(journalMultiUser.saveSharedStateModel(snapshot.getPath(), merged, VERSION, index.getRecordedChanges()));
+
+        assertFalse(journal.exists());
+        assertTrue(readVersion(snapshot) > VERSION);
+        assertEquals(reloaded(merged), asJSON(journalMultiUser.loadSharedStateModel(snapshot.getPath())));
+    }
+
+    private void writeSnapshot(AppState state, File file) throws Exception {
+        try (OutputStream out = new FileOutputStream(file)) {
+            JSONStateWriter.writeAppState(state, VERSION, out);
+        }
+    }
+
+    private AppState readSnapshot(File file) throws Exception {
+        try (FileReader reader = new FileReader(file)) {
+            return JSONStateReader.readCompleteAppState(reader);
+        }
+    }
+
+    private Long readVersion(File file) throws Exception {
+        JSONStateReader reader = new JSONStateReader();
+        try (FileReader in = new FileReader(file)) {
+            reader.read(in);
+        }
+        return reader.getLastUpdatedAtMs();
+    }
+
+    /**
+     * The state as it would be loaded from a state model file.
+     */
+    private Object reloaded(AppState state) throws Exception {
+        File file = folder.newFile();
+        writeSnapshot(state, file);
+        return asJSON(readSnapshot(file));
+    }
+
+    private Object asJSON(AppState state) throws Exception {
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(state, 0L, out);
+        return new JSONParser().parse(out.toString());
+    }
+
+    private AppState loadAppState(String resource) throws Exception {
+        String filePath = JSONStateParser.class.getClassLoader().getResource(resource).getPath();
+        try (FileReader reader = new FileReader(filePath)) {
+            return JSONStateParser.parseCompleteAppState((JSONObject) new JSONParser().parse(reader));
+        }
+    }
+}
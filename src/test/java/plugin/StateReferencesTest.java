@@ -0,0 +1,173 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetStatus;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+public class StateReferencesTest {
+
+    @Test
+    public void testWriteRead_SharedState() throws Exception {
+        AppState home = new AppState("0", "Home");
+        AppState shared = new AppState("1", "Shared");
+        shared.addWidget(createWidget("w3", null));
+        home.addWidget(createWidget("w1", shared));
+        home.addWidget(createWidget("w2", shared));
+
+        String json = write(home, false);
+        assertEquals(json, write(home, true));
+        assertEquals(1, count(json, "\"state-id\":\"1\""));
+
+        for (AppState result : read(json)) {
+            AppState first = result.getWidget("w1").getNextState();
+            assertEquals("1", first.getId());
+            assertSame(first, result.getWidget("w2").getNextState());
+        }
+    }
+
+    @Test
+    public void testWriteRead_Cycle() throws Exception {
+        AppState home = new AppState("0", "Home");
+        AppState list = new AppState("1", "List");
+        AppState details = new AppState("2", "Details");
+        home.addWidget(createWidget("toList", list));
+        list.addWidget(createWidget("toDetails", details));
+        details.addWidget(createWidget("back", list));
+
+        String json = write(home, false);
+        assertEquals(json, write(home, true));
+        // The JSON objects of the parser refer to states the same way
+        JSONObject state = JSONStateParser.stateTreeAsJSONObject(home, new HashMap<>(), new StateReferences(home));
+        assertEquals(((JSONObject) new JSONParser().parse(json)).get("state"), new JSONParser().parse(state.toJSONString()));
+
+        for (AppState result : read(json)) {
+            AppState resultList = result.getWidget("toList").getNextState();
+            AppState resultDetails = resultList.getWidget("toDetails").getNextState();
+            assertSame(resultList, resultDetails.getWidget("back").getNextState());
+        }
+    }
+
+    @Test
+    public void testWriteRead_SameStateId() throws Exception {
+        AppState home = new AppState("0", "Home");
+        AppState first = new AppState("1", "First");
+        AppState second = new AppState("1", "Second");
+        home.addWidget(createWidget("w1", first));
+        home.addWidget(createWidget("w2", second));
+        home.addWidget(createWidget("w3", second));
+        home.addWidget(createWidget("w4", first));
+
+        String json = write(home, false);
+        assertTrue(json.contains("\"" + StateReferences.REF_INDEX + "\":1"));
+
+        for (AppState result : read(json)) {
+            AppState resultFirst = result.getWidget("w1").getNextState();
+            AppState resultSecond = result.getWidget("w2").getNextState();
+            assertNotSame(resultFirst, resultSecond);
+            assertEquals("Second", resultSecond.getBookmark());
+            assertSame(resultSecond, result.getWidget("w3").getNextState());
+            assertSame(resultFirst, result.getWidget("w4").getNextState());
+        }
+    }
+
+    @Test
+    public void testWrite_SmallerThanInline() throws Exception {
+        AppState home = new AppStateGenerator(3, 3, 10, 3, 0.1, 17L).generate();
+        AppState shared = home.getVisibleWidgets().get(0).getNextState();
+        for (Widget widget : home.getVisibleWidgets().subList(3, 10)) {
+            widget.setNextState(shared);
+        }
+
+        StringWriter v2 = new StringWriter();
+        JSONStateWriter.writeAppState(home, 0L, v2, false, JSONStateParser.FORMAT_V2);
+        String v3 = write(home, false);
+        assertTrue(v3.length() < v2.toString().length());
+
+        AppState expected = JSONStateReader.readCompleteAppState(new StringReader(v2.toString()));
+        for (AppState result : read(v3)) {
+            assertEquals(asV2(expected), asV2(result));
+        }
+    }
+
+    @Test
+    public void testCreatedRecord_Cycle() throws Exception {
+        AppState list = new AppState("1", "List");
+        AppState details = new AppState("2", "Details");
+        Widget toDetails = createWidget("toDetails", details);
+        details.addWidget(createWidget("back", list));
+        list.addWidget(toDetails);
+
+        JSONObject record = (JSONObject) new JSONParser().parse(StateJournal.createdRecord(list, toDetails));
+        AppState wrapper = JSONStateParser.parseCompleteAppState(record);
+
+        Widget resultWidget = wrapper.getWidget("toDetails");
+        assertEquals("2", resultWidget.getNextState().getId());
+        assertEquals("1", resultWidget.getNextState().getWidget("back").getNextState().getId());
+    }
+
+    private String write(AppState state, boolean parallel) throws Exception {
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(state, 0L, out, parallel, JSONStateParser.FORMAT_V3);
+        return out.toString();
+    }
+
+    private String asV2(AppState state) throws Exception {
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(state, 0L, out, false, JSONStateParser.FORMAT_V2);
+        return out.toString();
+    }
+
+    /**
+     * @return the state read with the parser and with the streaming reader
+     */
+    private AppState[] read(String json) throws Exception {
+        AppState parsed = JSONStateParser.parseCompleteAppState((JSONObject) new JSONParser().parse(json));
+        AppState streamed = JSONStateReader.readCompleteAppState(new StringReader(json));
+        return new AppState[] { parsed, streamed };
+    }
+
+    private int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private Widget createWidget(String id, AppState nextState) {
+        Widget widget = new Widget();
+        widget.setId(id);
+        widget.setWidgetStatus(WidgetStatus.LOCATED);
+        widget.setCreatedBy("Mr. Tester");
+        widget.setWidgetType(WidgetType.ACTION);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.setLocationArea(new Rectangle(970, 117, 14, 36));
+        widget.putMetadata("xpath", "/html[1]/body[1]/div[1]/div[1]/header[1]/div[1]/a[1]");
+        widget.putMetadata("text", id);
+        widget.putMetadata("tag", "A");
+        widget.setNextState(nextState);
+        return widget;
+    }
+}
@@ -0,0 +1,359 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetStatus;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+public class StateTraversalTest {
+
+    // Deep enough to overflow a small stack with one frame per state
+    private static final int DEPTH = 5000;
+    private static final long STACK_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRun_SameOrderAsRecursion() {
+        AppState home = new AppStateGenerator(3, 3, 4, 1, 0.1, 5L).generate();
+        List<String> expected = new ArrayList<>();
+        visitRecursive(home, expected);
+
+        List<String> result = new ArrayList<>();
+        StateTraversal.run(new OrderStep(home, result));
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void testForEachState_Cycle() {
+        AppState home = new AppState("0", "Home");
+        AppState list = new AppState("1", "List");
+        AppState details = new AppState("2", "Details");
+        home.addWidget(createWidget("toList", list));
+        home.addWidget(createWidget("toDetails", details));
+        list.addWidget(createWidget("toDetails2", details));
+        details.addWidget(createWidget("back", list));
+
+        List<String> visited = new ArrayList<>();
+        StateTraversal.forEachState(home, s -> visited.add(s.getId()));
+        assertEquals(Arrays.asList("0", "1", "2"), visited);
+    }
+
+    @Test
+    public void testStateTreeAsJSONObject_Deep() throws Throwable {
+        runWithSmallStack(() -> {
+            Map<String, Widget> usedWidgets = new HashMap<>();
+            JSONObject json = JSONStateParser.stateTreeAsJSONObject(createChain(DEPTH), usedWidgets);
+            assertEquals(DEPTH, usedWidgets.size());
+
+            for (int i = 0; i < DEPTH; i++) {
+                assertEquals(String.valueOf(i), json.get("state-id"));
+                JSONObject widget = (JSONObject) ((List<?>) json.get("visible-widgets")).get(0);
+                assertEquals("w" + i, widget.get("id"));
+                json = (JSONObject) widget.get("next-state");
+            }
+            assertNull(json);
+        });
+    }
+
+    @Test
+    public void testParseCompleteAppState_Deep() throws Throwable {
+        String json = createChainJSON(DEPTH);
+        runWithSmallStack(() -> {
+            JSONObject document = (JSONObject) new JSONParser().parse(json);
+            assertChain(JSONStateParser.parseCompleteAppState(document), DEPTH);
+        });
+    }
+
+    @Test
+    public void testReadCompleteAppState_Deep() throws Throwable {
+        String json = createChainJSON(DEPTH);
+        runWithSmallStack(() -> assertChain(JSONStateReader.readCompleteAppState(new StringReader(json)), DEPTH));
+    }
+
+    @Test
+    public void testAnnotateAndMerge_Deep() throws Throwable {
+        for (boolean parallel : new boolean[] { false, true }) {
+            MultiUser multiUser = new MultiUser(true) {
+                @Override
+                protected boolean isParallelMergeEnabled() {
+                    return parallel;
+                }
+            };
+            runWithSmallStack(() -> {
+                AppState sessionStart = createChain(DEPTH);
+                AppState sharedState = AppStateCloner.copy(sessionStart);
+                AppState sessionState = AppStateCloner.copy(sessionStart);
+                Widget created = createWidget("created", null);
+                created.putMetadata("xpath", "/html[1]/body[1]/button[1]");
+                last(sessionState).addWidget(created);
+
+                multiUser.annotateDiffsInStates(sessionStart, sessionState);
+                AppState result = multiUser.mergeStateChanges(sharedState, sessionState);
+
+                assertChain(result, DEPTH);
+                assertNotNull(last(result).getWidget("created"));
+                assertNull(last(sharedState).getWidget("created"));
+                StateTraversal.forEachState(result, s -> assertNull(s.getMetadata(MultiUser.META_DATA_DIFF)));
+            });
+        }
+    }
+
+    @Test
+    public void testMergeDeletion_Deep() throws Throwable {
+        for (boolean parallel : new boolean[] { false, true }) {
+            MultiUser multiUser = new MultiUser(true) {
+                @Override
+                protected boolean isParallelMergeEnabled() {
+                    return parallel;
+                }
+            };
+            runWithSmallStack(() -> {
+                AppState sessionStart = createChain(DEPTH);
+                AppState sharedState = AppStateCloner.copy(sessionStart);
+                AppState sessionState = AppStateCloner.copy(sessionStart);
+                sessionState.removeWidget(sessionState.getWidget("w0"));
+
+                multiUser.annotateDiffsInStates(sessionStart, sessionState);
+                AppState result = multiUser.mergeStateChanges(sharedState, sessionState);
+
+                int[] deleted = new int[1];
+                StateTraversal.forEachWidget(result, (state, widget) -> {
+                    assertTrue(widget.getId(), multiUser.isMarkedAsDeleted(widget));
+                    deleted[0]++;
+                });
+                assertEquals(DEPTH, deleted[0]);
+
+                multiUser.removeAllMarkedAsDeletedWidgets(result);
+                assertTrue(result.getAllWidgets().isEmpty());
+            });
+        }
+    }
+
+    @Test
+    public void testReplayDeletion_Deep() throws Throwable {
+        long version = 1623332401000L;
+        StateJournal journal = new StateJournal(new File(folder.getRoot(), "shared-state.journal").getPath());
+        AppState shared = createChain(DEPTH);
+        journal.append(version, Collections.singletonList(StateJournal.deletedRecord(shared, shared.getWidget("w0"), 1L)));
+
+        runWithSmallStack(() -> {
+            AppState result = createChain(DEPTH);
+            assertEquals(1, journal.replay(result, version));
+            StateTraversal.forEachWidget(result, (state, widget) -> assertEquals(1L, Tombstones.deletedAt(widget)));
+            assertChain(result, DEPTH);
+        });
+    }
+
+    @Test
+    public void testSaveStateModel_Deep() throws Throwable {
+        for (int formatVersion : new int[] { JSONStateParser.FORMAT_V1, JSONStateParser.FORMAT_V4 }) {
+            MultiUser multiUser = new MultiUser(true) {
+                @Override
+                protected boolean isParallelWriteEnabled() {
+                    return false;
+                }
+
+                @Override
+                protected int getFileFormatVersion() {
+                    return formatVersion;
+                }
+            };
+            String filePath = new File(folder.getRoot(), "deep-" + formatVersion + ".json").getPath();
+            runWithSmallStack(() -> {
+                assertTrue(multiUser.saveStateModel(filePath, createChain(DEPTH)));
+                assertChain(multiUser.loadStateModel(filePath), DEPTH);
+            });
+        }
+    }
+
+    @Test
+    public void testWriteAppState_DeepParallel() throws Throwable {
+        // Far deeper than the nesting of parallel tasks
+        AppState home = createChain(DEPTH);
+        runWithSmallStack(() -> {
+            StringWriter sequential = new StringWriter();
+            JSONStateWriter.writeAppState(home, 1623332401000L, sequential, false, JSONStateParser.FORMAT_V4);
+            StringWriter parallel = new StringWriter();
+            JSONStateWriter.writeAppState(home, 1623332401000L, parallel, true, JSONStateParser.FORMAT_V4);
+            assertEquals(sequential.toString(), parallel.toString());
+
+            MultiUser multiUser = new MultiUser(true) {
+                @Override
+                protected boolean isParallelWriteEnabled() {
+                    return true;
+                }
+            };
+            String filePath = new File(folder.getRoot(), "deep-parallel.json").getPath();
+            assertTrue(multiUser.saveStateModel(filePath, home));
+            assertChain(multiUser.loadStateModel(filePath), DEPTH);
+        });
+    }
+
+    private interface Check {
+        void run() throws Exception;
+    }
+
+    private void runWithSmallStack(Check check) throws Throwable {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                check.run();
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        }, "small-stack", STACK_SIZE);
+        thread.start();
+        thread.join();
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    /**
+     * Step which records the state IDs before and after the following states, like {@link #visitRecursive(AppState, List)}.
+     */
+    private static class OrderStep implements StateTraversal.Step {
+        private final AppState state;
+        private final List<String> order;
+        private List<Widget> widgets = null;
+        private int next = 0;
+
+        OrderStep(AppState state, List<String> order) {
+            this.state = state;
+            this.order = order;
+        }
+
+        @Override
+        public StateTraversal.Step next() {
+            if (widgets == null) {
+                order.add("enter " + state.getId());
+                widgets = state.getVisibleWidgets();
+            }
+            while (next < widgets.size()) {
+                AppState nextState = widgets.get(next++).getNextState();
+                if (nextState != null && !nextState.isHome()) {
+                    return new OrderStep(nextState, order);
+                }
+            }
+            order.add("leave " + state.getId());
+            return null;
+        }
+    }
+
+    private void visitRecursive(AppState state, List<String> order) {
+        order.add("enter " + state.getId());
+        for (Widget widget : state.getVisibleWidgets()) {
+            AppState nextState = widget.getNextState();
+            if (nextState != null && !nextState.isHome()) {
+                visitRecursive(nextState, order);
+            }
+        }
+        order.add("leave " + state.getId());
+    }
+
+    /**
+     * @return chain of states with one widget each, the widget of the last state has no following state
+     */
+    private AppState createChain(int depth) {
+        AppState home = new AppState("0", "State 0");
+        AppState state = home;
+        for (int i = 0; i < depth; i++) {
+            AppState nextState = i + 1 < depth ? new AppState(String.valueOf(i + 1), "State " + (i + 1)) : null;
+            state.addWidget(createWidget("w" + i, nextState));
+            state = nextState;
+        }
+        return home;
+    }
+
+    /**
+     * @return state model file of a chain like {@link #createChain(int)}, built without recursion
+     */
+    private String createChainJSON(int depth) {
+        StringBuilder json = new StringBuilder("{\"all-widgets\":[");
+        for (int i = 0; i < depth; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(JSONStateParser.widgetAsJSONObject(createWidget("w" + i, null)).toJSONString());
+        }
+        json.append("],\"state\":");
+        for (int i = 0; i < depth; i++) {
+            json.append("{\"state-id\":\"").append(i).append("\",\"bookmarks\":\"State ").append(i)
+                    .append("\",\"visible-widgets\":[{\"id\":\"w").append(i).append("\",\"next-state\":");
+        }
+        json.append("null");
+        for (int i = 0; i < depth; i++) {
+            json.append("}]}");
+        }
+        return json.append('}').toString();
+    }
+
+    private void assertChain(AppState home, int depth) {
+        AppState state = home;
+        for (int i = 0; i < depth; i++) {
+            assertEquals(String.valueOf(i), state.getId());
+            Widget widget = state.getWidget("w" + i);
+            assertNotNull(widget);
+            state = widget.getNextState();
+        }
+        assertNull(state);
+    }
+
+    private AppState last(AppState home) {
+        AppState state = home;
+        while (true) {
+            AppState nextState = state.getVisibleWidgets().get(0).getNextState();
+            if (nextState == null) {
+                return state;
+            }
+            state = nextState;
+        }
+    }
+
+    private Widget createWidget(String id, AppState nextState) {
+        Widget widget = new Widget();
+        widget.setId(id);
+        widget.setWidgetStatus(WidgetStatus.LOCATED);
+        widget.setCreatedBy("Mr. Tester");
+        widget.setWidgetType(WidgetType.ACTION);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.setLocationArea(new Rectangle(970, 117, 14, 36));
+        widget.putMetadata("xpath", "/html[1]/body[1]/div[1]/a[" + id + "]");
+        widget.putMetadata("text", id);
+        widget.putMetadata("tag", "A");
+        widget.setNextState(nextState);
+        return widget;
+    }
+}
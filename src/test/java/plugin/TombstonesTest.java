@@ -0,0 +1,114 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+public class TombstonesTest {
+
+    private static final long DELETED_AT = 1624998389127L;
+
+    @Test
+    public void testRemoveAllMarkedAsDeletedWidgets_SameIdInOtherState() {
+        AppState home = createModel();
+        // Same ID as the deleted w3, but not deleted
+        home.getWidget("w1").setNextState(new AppState("2", "Other"));
+        home.getWidget("w1").getNextState().addWidget(createWidget("w3", null));
+
+        new MultiUser(true).removeAllMarkedAsDeletedWidgets(home);
+        assertNull(home.getWidget("w2"));
+        assertFalse(Tombstones.isMarkedAsDeleted(home.getWidget("w1").getNextState().getWidget("w3")));
+    }
+
+    @Test
+    public void testDeletedAt() {
+        Widget widget = createWidget("w1", null);
+        assertEquals(0, Tombstones.deletedAt(widget));
+
+        widget.putMetadata(MultiUser.DELETED_AT, String.valueOf(DELETED_AT));
+        assertEquals(DELETED_AT, Tombstones.deletedAt(widget));
+        widget.putMetadata(MultiUser.DELETED_AT, "not a time");
+        assertFalse(Tombstones.isMarkedAsDeleted(widget));
+
+        Tombstones.markAsDeleted(widget, DELETED_AT);
+        assertEquals(Long.valueOf(DELETED_AT), widget.getMetadata(MultiUser.DELETED_AT));
+        assertNull(Tombstones.parse(null));
+    }
+
+    @Test
+    public void testWriteRead_FormatV4() throws Exception {
+        AppState home = createModel();
+        StringWriter out = new StringWriter();
+        JSONStateWriter.writeAppState(home, 0L, out, false, JSONStateParser.FORMAT_V4);
+        String json = out.toString();
+
+        assertTrue(json.contains("\"deleted-at-ms\":" + DELETED_AT));
+        assertFalse(json.contains(MultiUser.DELETED_AT));
+
+        AppState parsed = JSONStateParser.parseCompleteAppState((JSONObject) new JSONParser().parse(json));
+        AppState streamed = JSONStateReader.readCompleteAppState(new StringReader(json));
+        for (AppState result : new AppState[] { parsed, streamed }) {
+            assertEquals(Long.valueOf(DELETED_AT), result.getWidget("w2").getMetadata(MultiUser.DELETED_AT));
+            assertNull(result.getWidget("w1").getMetadata(MultiUser.DELETED_AT));
+            assertEquals(DELETED_AT, Tombstones.deletedAt(result.getWidget("w2").getNextState().getWidget("w3")));
+        }
+    }
+
+    @Test
+    public void testRead_StringInOlderFormats() throws Exception {
+        AppState home = createModel();
+        for (int formatVersion = JSONStateParser.FORMAT_V1; formatVersion <= JSONStateParser.FORMAT_V3; formatVersion++) {
+            StringWriter out = new StringWriter();
+            JSONStateWriter.writeAppState(home, 0L, out, false, formatVersion);
+            assertTrue(out.toString().contains(MultiUser.DELETED_AT));
+
+            AppState result = JSONStateReader.readCompleteAppState(new StringReader(out.toString()));
+            assertEquals(Long.valueOf(DELETED_AT), result.getWidget("w2").getMetadata(MultiUser.DELETED_AT));
+        }
+    }
+
+    /**
+     * @return home with the widgets w1 and w2, w2 is deleted and leads to a state with the deleted widget w3
+     */
+    private AppState createModel() {
+        AppState home = new AppState("0", "Home");
+        AppState next = new AppState("1", "Next");
+        Widget w3 = createWidget("w3", null);
+        Tombstones.markAsDeleted(w3, DELETED_AT);
+        next.addWidget(w3);
+        Widget w2 = createWidget("w2", next);
+        Tombstones.markAsDeleted(w2, DELETED_AT);
+        home.addWidget(createWidget("w1", null));
+        home.addWidget(w2);
+        return home;
+    }
+
+    private Widget createWidget(String id, AppState nextState) {
+        Widget widget = new Widget();
+        widget.setId(id);
+        widget.setWidgetType(WidgetType.ACTION);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.putMetadata("xpath", "/html[1]/body[1]/a[" + id + "]");
+        widget.setNextState(nextState);
+        return widget;
+    }
+}
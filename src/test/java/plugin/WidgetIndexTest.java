@@ -0,0 +1,93 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import scout.Widget;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetVisibility;
+
+public class WidgetIndexTest {
+
+    private final MultiUser multiUser = new MultiUser(true);
+
+    @Test
+    public void testFingerprint_SameAsIsSameWidget() {
+        Widget widget = createWidget("1", "Login");
+        Widget same = createWidget("2", "Login");
+        Widget otherText = createWidget("3", "Logout");
+        Widget otherVisibility = createWidget("4", "Login");
+        otherVisibility.setWidgetVisibility(WidgetVisibility.HIDDEN);
+
+        assertTrue(multiUser.isSameWidget(widget, same));
+        assertEquals(WidgetFingerprint.of(widget), WidgetFingerprint.of(same));
+        assertEquals(WidgetFingerprint.of(widget).hashCode(), WidgetFingerprint.of(same).hashCode());
+        assertNotEquals(WidgetFingerprint.of(widget), WidgetFingerprint.of(otherText));
+        assertNotEquals(WidgetFingerprint.of(widget), WidgetFingerprint.of(otherVisibility));
+    }
+
+    @Test
+    public void testFingerprint_MissingMetaData() {
+        Widget widget = createWidget("1", "Login");
+        Widget withoutHref = createWidget("2", "Login");
+        withoutHref.removeMetadata("href");
+        Widget nullHref = createWidget("3", "Login");
+        nullHref.putMetadata("href", "null");
+        widget.removeMetadata("href");
+
+        assertEquals(WidgetFingerprint.of(widget), WidgetFingerprint.of(withoutHref));
+        // String value of a missing value, like hasEqualMetaData
+        assertEquals(WidgetFingerprint.of(widget), WidgetFingerprint.of(nullHref));
+    }
+
+    @Test
+    public void testTake_FirstMatch() {
+        Widget first = createWidget("1", "Login");
+        Widget other = createWidget("2", "Logout");
+        Widget second = createWidget("3", "Login");
+        WidgetIndex index = new WidgetIndex(Arrays.asList(first, other, second));
+
+        assertSame(first, index.take(createWidget("4", "Login")));
+        assertSame(second, index.take(createWidget("5", "Login")));
+        assertNull(index.take(createWidget("6", "Login")));
+        assertNull(index.take(createWidget("7", "Register")));
+    }
+
+    @Test
+    public void testRemaining() {
+        Widget first = createWidget("1", "Login");
+        Widget other = createWidget("2", "Logout");
+        Widget second = createWidget("3", "Login");
+        Widget third = createWidget("4", "Register");
+        WidgetIndex index = new WidgetIndex(Arrays.asList(first, other, second, third));
+
+        index.take(createWidget("5", "Login"));
+        index.take(createWidget("6", "Logout"));
+
+        assertEquals(Arrays.asList(second, third), index.remaining());
+    }
+
+    private Widget createWidget(String id, String text) {
+        Widget widget = new Widget();
+        widget.setId(id);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.putMetadata("xpath", "/html[1]/body[1]/div[1]/a[1]");
+        widget.putMetadata("href", "https://mydomain.de/login");
+        widget.putMetadata("text", text);
+        widget.putMetadata("tag", "A");
+        widget.putMetadata("class", "v-btn");
+        return widget;
+    }
+}